@@ -18,6 +18,7 @@ package org.ops4j.pax.jms.activemq;
 import java.util.Hashtable;
 
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.StreamingMessageSupport;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -28,6 +29,7 @@ import org.osgi.framework.ServiceRegistration;
 public class Activator implements BundleActivator {
 
     ServiceRegistration<ConnectionFactoryFactory> registration;
+    ServiceRegistration<StreamingMessageSupport> streamingRegistration;
 
     @Override
     public void start(BundleContext context) throws Exception {
@@ -36,10 +38,14 @@ public class Activator implements BundleActivator {
         registration = context.registerService(ConnectionFactoryFactory.class,
                 new ActiveMQConnectionFactoryFactory(),
                 props);
+        streamingRegistration = context.registerService(StreamingMessageSupport.class,
+                new ActiveMQStreamingMessageSupport(),
+                props);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        streamingRegistration.unregister();
         registration.unregister();
     }
 
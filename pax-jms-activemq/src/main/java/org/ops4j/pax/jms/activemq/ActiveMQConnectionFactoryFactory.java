@@ -15,8 +15,14 @@
  */
 package org.ops4j.pax.jms.activemq;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSContext;
@@ -26,22 +32,113 @@ import javax.jms.XAConnection;
 import javax.jms.XAConnectionFactory;
 import javax.jms.XAJMSContext;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.ActiveMQSslConnectionFactory;
+import org.apache.activemq.ActiveMQXAConnectionFactory;
 import org.apache.activemq.ActiveMQXASslConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 
+/**
+ * {@link ConnectionFactoryFactory} for ActiveMQ 5.x. All properties (except {@link ConnectionFactoryFactory#JMS_URL}
+ * and {@link ConnectionFactoryFactory#JMS_USER}, which is mapped to {@code userName}) are applied to
+ * {@link ActiveMQConnectionFactory} bean properties. Properties which can't be applied (unknown names or values that
+ * can't be converted) are reported by throwing {@link JMSRuntimeException} instead of being silently ignored.
+ * <p>
+ * {@link ActiveMQSslConnectionFactory} is used only when the URL uses SSL transport (or SSL properties like
+ * {@code trustStore} are configured). Broker-side {@code auto*} transport schemes (e.g., {@code auto+nio://}) are
+ * translated to matching client transports, so the same URL may be used for broker connector and clients.
+ */
 public class ActiveMQConnectionFactoryFactory implements ConnectionFactoryFactory {
 
+    /**
+     * Send non-transacted persistent messages without waiting for broker receipt.
+     */
+    public static final String USE_ASYNC_SEND = "useAsyncSend";
+
+    /**
+     * Acknowledge consumed messages in batches.
+     */
+    public static final String OPTIMIZE_ACKNOWLEDGE = "optimizeAcknowledge";
+
+    /**
+     * Number of bytes a producer may send asynchronously before waiting for broker acknowledgement.
+     */
+    public static final String PRODUCER_WINDOW_SIZE = "producerWindowSize";
+
+    /**
+     * Always dispatch messages to sessions using a separate thread.
+     */
+    public static final String ALWAYS_SESSION_ASYNC = "alwaysSessionAsync";
+
+    /**
+     * Request the broker to dispatch messages to consumers asynchronously.
+     */
+    public static final String DISPATCH_ASYNC = "dispatchAsync";
+
+    /**
+     * Compress message bodies.
+     */
+    public static final String USE_COMPRESSION = "useCompression";
+
+    /**
+     * Copy messages before sending them - can be disabled when producers don't modify sent messages.
+     */
+    public static final String COPY_MESSAGE_ON_SEND = "copyMessageOnSend";
+
+    /**
+     * Shorthand for {@code prefetchPolicy.all} - as configuration keys containing a dot have to be prefixed with
+     * {@code jms.} in {@code org.ops4j.connectionfactory} PIDs.
+     */
+    public static final String PREFETCH = "prefetch";
+
+    /**
+     * Prefix of nested {@code org.apache.activemq.ActiveMQPrefetchPolicy} properties, like
+     * {@code prefetchPolicy.queuePrefetch} or {@code prefetchPolicy.topicPrefetch}.
+     */
+    public static final String PREFETCH_POLICY_PREFIX = "prefetchPolicy.";
+
+    /**
+     * Properties which are supported only by {@link ActiveMQSslConnectionFactory}.
+     */
+    private static final Set<String> SSL_PROPERTIES = new HashSet<>(Arrays.asList(
+            "keyStore",
+            "keyStorePassword",
+            "keyStoreKeyPassword",
+            "keyStoreType",
+            "trustStore",
+            "trustStorePassword",
+            "trustStoreType"
+    ));
+
+    /**
+     * Properties which are not ActiveMQ bean properties. pax-jms-config registration forwards {@code decryptor}
+     * alias of encrypted configuration and {@code protocol} or {@code dataSource} keys together with provider
+     * properties. {@code name} and {@code type} are not forwarded by the registration, but other callers of
+     * {@link ConnectionFactoryFactory} may pass them.
+     */
+    private static final Set<String> NON_PROVIDER_PROPERTIES = new HashSet<>(Arrays.asList(
+            ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME,
+            ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_TYPE,
+            ConnectionFactoryFactory.JMS_PROTOCOL,
+            ConnectionFactoryFactory.JMS_DATASOURCE,
+            "decryptor"
+    ));
+
+    private static final Pattern TRANSPORT_SCHEME = Pattern.compile("([a-zA-Z][a-zA-Z0-9+.-]*)://");
+    private static final Pattern AUTO_TRANSPORT_SCHEME = Pattern.compile("(?<![a-zA-Z0-9+.-])auto(\\+nio)?(\\+ssl)?://");
+
+    private static final Set<String> BOOLEAN_OPTIONS = new HashSet<>(Arrays.asList(
+            USE_ASYNC_SEND,
+            OPTIMIZE_ACKNOWLEDGE,
+            ALWAYS_SESSION_ASYNC,
+            DISPATCH_ASYNC,
+            USE_COMPRESSION,
+            COPY_MESSAGE_ON_SEND
+    ));
+
     @Override
     public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
-        props = new HashMap<>(props);
-        rename(props, ConnectionFactoryFactory.JMS_USER, "userName");
-        String url = (String) props.remove(ConnectionFactoryFactory.JMS_URL);
-        if (url == null) {
-            throw new JMSRuntimeException("The url property must be set");
-        }
-        ActiveMQSslConnectionFactory cf = new ActiveMQSslConnectionFactory(url);
-        cf.buildFromMap(props);
+        ActiveMQConnectionFactory cf = newConnectionFactory(props, false);
         // adapt ActiveMQ connection factory to JMS 2.0
         return new ConnectionFactory() {
             @Override
@@ -78,14 +175,7 @@ public class ActiveMQConnectionFactoryFactory implements ConnectionFactoryFactor
 
     @Override
     public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
-        props = new HashMap<>(props);
-        rename(props, ConnectionFactoryFactory.JMS_USER, "userName");
-        String url = (String) props.remove(ConnectionFactoryFactory.JMS_URL);
-        if (url == null) {
-            throw new JMSRuntimeException("The url property must be set");
-        }
-        ActiveMQXASslConnectionFactory xaCf = new ActiveMQXASslConnectionFactory(url);
-        xaCf.buildFromMap(props);
+        XAConnectionFactory xaCf = (XAConnectionFactory) newConnectionFactory(props, true);
         // adapt ActiveMQ connection factory to JMS 2.0
         return new XAConnectionFactory() {
             @Override
@@ -110,6 +200,115 @@ public class ActiveMQConnectionFactoryFactory implements ConnectionFactoryFactor
         };
     }
 
+    /**
+     * Creates and configures ActiveMQ connection factory of a class matching transport scheme(s) used in the URL.
+     *
+     * @param props configuration properties (not modified)
+     * @param xa whether {@link XAConnectionFactory} should be created
+     * @return configured ActiveMQ connection factory
+     */
+    ActiveMQConnectionFactory newConnectionFactory(Map<String, Object> props, boolean xa) {
+        props = new HashMap<>(props);
+        rename(props, ConnectionFactoryFactory.JMS_USER, "userName");
+        String url = (String) props.remove(ConnectionFactoryFactory.JMS_URL);
+        if (url == null) {
+            throw new JMSRuntimeException("The url property must be set");
+        }
+        url = clientUrl(url);
+        ActiveMQConnectionFactory cf;
+        if (requiresSsl(url, props)) {
+            cf = xa ? new ActiveMQXASslConnectionFactory(url) : new ActiveMQSslConnectionFactory(url);
+        } else {
+            cf = xa ? new ActiveMQXAConnectionFactory(url) : new ActiveMQConnectionFactory(url);
+        }
+        configure(cf, props);
+        return cf;
+    }
+
+    /**
+     * {@code auto*} transports are broker-side transports detecting wire protocol. Clients (which always use
+     * OpenWire) connect to them using plain {@code tcp}, {@code nio} or {@code ssl} transports.
+     *
+     * @param url broker URL, possibly composite, like {@code failover:(auto+nio://host1:61616,auto+nio://host2:61616)}
+     * @return URL with {@code auto*} schemes translated to client transport schemes
+     */
+    static String clientUrl(String url) {
+        Matcher m = AUTO_TRANSPORT_SCHEME.matcher(url);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            boolean nio = m.group(1) != null;
+            boolean ssl = m.group(2) != null;
+            String scheme = nio ? (ssl ? "nio+ssl" : "nio") : (ssl ? "ssl" : "tcp");
+            m.appendReplacement(sb, scheme + "://");
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Checks whether {@link ActiveMQSslConnectionFactory} is needed - when any (possibly nested in composite URL)
+     * transport uses SSL or when SSL specific properties are configured.
+     *
+     * @param url broker URL
+     * @param props configuration properties
+     * @return {@code true} if {@link ActiveMQSslConnectionFactory} has to be used
+     */
+    static boolean requiresSsl(String url, Map<String, Object> props) {
+        for (String key : SSL_PROPERTIES) {
+            if (props.containsKey(key)) {
+                return true;
+            }
+        }
+        Matcher m = TRANSPORT_SCHEME.matcher(url);
+        while (m.find()) {
+            String scheme = m.group(1).toLowerCase();
+            if (scheme.contains("ssl") || "https".equals(scheme)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates throughput related options and applies all the properties to ActiveMQ connection factory.
+     * {@link ActiveMQConnectionFactory#buildFromMap(Map)} removes the properties it has applied, so whatever is left
+     * is either an unknown property or a property with a value that can't be converted. Properties which are not
+     * meant for the provider (like {@code decryptor} alias of encrypted configuration) are skipped.
+     *
+     * @param cf ActiveMQ connection factory to configure
+     * @param props a copy of configuration properties - it's modified by this method
+     */
+    private void configure(ActiveMQConnectionFactory cf, Map<String, Object> props) {
+        props.keySet().removeAll(NON_PROVIDER_PROPERTIES);
+        rename(props, PREFETCH, PREFETCH_POLICY_PREFIX + "all");
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            String key = entry.getKey();
+            String value = String.valueOf(entry.getValue()).trim();
+            if (BOOLEAN_OPTIONS.contains(key)) {
+                if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                    throw new JMSRuntimeException("Invalid value of " + key + " property: \"" + value
+                            + "\". Expected true or false");
+                }
+            } else if (PRODUCER_WINDOW_SIZE.equals(key) || key.startsWith(PREFETCH_POLICY_PREFIX)) {
+                try {
+                    if (Integer.parseInt(value) < 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new JMSRuntimeException("Invalid value of " + key + " property: \"" + value
+                            + "\". Expected non-negative integer");
+                }
+            }
+        }
+
+        cf.buildFromMap(props);
+
+        if (!props.isEmpty()) {
+            throw new JMSRuntimeException("Unknown or invalid ActiveMQ ConnectionFactory properties: "
+                    + new TreeSet<>(props.keySet()));
+        }
+    }
+
     private void rename(Map<String, Object> props, String oldName, String newName) {
         Object t = props.remove(oldName);
         if (t != null) {
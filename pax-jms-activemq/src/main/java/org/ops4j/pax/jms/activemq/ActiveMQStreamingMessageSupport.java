@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.activemq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.BlobMessage;
+import org.ops4j.pax.jms.service.StreamingMessageSupport;
+import org.ops4j.pax.jms.service.internal.DelegatingInvocationHandler;
+
+/**
+ * {@link StreamingMessageSupport} using ActiveMQ {@link BlobMessage blob messages}. Message content is uploaded
+ * out of band using connection factory's {@code blobTransferPolicy} (e.g., {@code blobTransferPolicy.uploadUrl}
+ * pointing to broker's fileserver or to shared {@code file:} location) and only its URL is sent through the broker.
+ */
+public class ActiveMQStreamingMessageSupport implements StreamingMessageSupport {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public Message createMessage(Session session, InputStream content) throws JMSException {
+        return activeMQSession(session).createBlobMessage(content);
+    }
+
+    @Override
+    public void writeTo(Message message, OutputStream output) throws JMSException {
+        try {
+            if (message instanceof BlobMessage) {
+                try (InputStream in = ((BlobMessage) message).getInputStream()) {
+                    if (in == null) {
+                        throw new JMSException("Blob message has no content");
+                    }
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        output.write(buffer, 0, read);
+                    }
+                }
+            } else if (message instanceof BytesMessage) {
+                BytesMessage bytesMessage = (BytesMessage) message;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = bytesMessage.readBytes(buffer)) > 0) {
+                    output.write(buffer, 0, read);
+                }
+            } else {
+                throw new MessageFormatException("Only blob and bytes messages can be written to output stream");
+            }
+        } catch (IOException e) {
+            throw (JMSException) new JMSException("Unable to write message body: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * Blob messages can be created only using ActiveMQ specific session API, so pooled sessions have to be
+     * unwrapped first. Sessions may be wrapped several times - by pool backend and by pax-jms proxies (borrow
+     * queue, auto-sizing, native XA mode), which expose wrapped session with {@link DelegatingInvocationHandler}.
+     *
+     * @param session ActiveMQ session or pooled session wrapping ActiveMQ session
+     * @return ActiveMQ session
+     * @throws JMSException if the session is not (and doesn't wrap) ActiveMQ session
+     */
+    private ActiveMQSession activeMQSession(Session session) throws JMSException {
+        Object current = session;
+        while (current != null) {
+            if (current instanceof ActiveMQSession) {
+                return (ActiveMQSession) current;
+            }
+            Object delegate = DelegatingInvocationHandler.delegateOf(current);
+            current = delegate != null ? delegate : internalSession(current);
+        }
+        throw new JMSException("Streaming is supported only for ActiveMQ sessions, got " + session.getClass().getName());
+    }
+
+    /**
+     * @param session pooled-jms session
+     * @return session wrapped by {@code org.messaginghub.pooled.jms.JmsPoolSession} or {@code null}
+     */
+    private Object internalSession(Object session) throws JMSException {
+        try {
+            Method getInternalSession = session.getClass().getMethod("getInternalSession");
+            return getInternalSession.invoke(session);
+        } catch (NoSuchMethodException ignored) {
+            return null;
+        } catch (Exception e) {
+            throw (JMSException) new JMSException("Unable to access ActiveMQ session: " + e.getMessage()).initCause(e);
+        }
+    }
+
+}
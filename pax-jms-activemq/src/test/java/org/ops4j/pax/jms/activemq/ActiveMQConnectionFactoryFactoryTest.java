@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.activemq;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSRuntimeException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSslConnectionFactory;
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.ActiveMQXASslConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ActiveMQConnectionFactoryFactoryTest {
+
+    private static final String URL = "tcp://0.0.0.0:61616";
+    private static final String NIO_URL = "nio://0.0.0.0:61617";
+    private static final String AUTO_NIO_URL = "auto+nio://0.0.0.0:61618";
+
+    private BrokerService broker;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.addConnector(URL);
+        broker.addConnector(NIO_URL);
+        broker.addConnector(AUTO_NIO_URL);
+        broker.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void throughputOptions() throws Exception {
+        Map<String, Object> props = props();
+        props.put(ActiveMQConnectionFactoryFactory.USE_ASYNC_SEND, "true");
+        props.put(ActiveMQConnectionFactoryFactory.OPTIMIZE_ACKNOWLEDGE, "true");
+        props.put(ActiveMQConnectionFactoryFactory.PRODUCER_WINDOW_SIZE, "1048576");
+        props.put(ActiveMQConnectionFactoryFactory.ALWAYS_SESSION_ASYNC, "false");
+        props.put(ActiveMQConnectionFactoryFactory.DISPATCH_ASYNC, "false");
+        props.put(ActiveMQConnectionFactoryFactory.USE_COMPRESSION, "true");
+        props.put(ActiveMQConnectionFactoryFactory.COPY_MESSAGE_ON_SEND, "false");
+        props.put(ActiveMQConnectionFactoryFactory.PREFETCH_POLICY_PREFIX + "queuePrefetch", "42");
+
+        ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        try (Connection con = cf.createConnection()) {
+            ActiveMQConnection amqCon = (ActiveMQConnection) con;
+            assertThat(amqCon.isUseAsyncSend(), equalTo(true));
+            assertThat(amqCon.isOptimizeAcknowledge(), equalTo(true));
+            assertThat(amqCon.getProducerWindowSize(), equalTo(1048576));
+            assertThat(amqCon.isAlwaysSessionAsync(), equalTo(false));
+            assertThat(amqCon.isDispatchAsync(), equalTo(false));
+            assertThat(amqCon.isUseCompression(), equalTo(true));
+            assertThat(amqCon.isCopyMessageOnSend(), equalTo(false));
+            assertThat(amqCon.getPrefetchPolicy().getQueuePrefetch(), equalTo(42));
+        }
+    }
+
+    @Test
+    public void prefetchShorthand() throws Exception {
+        Map<String, Object> props = props();
+        props.put(ActiveMQConnectionFactoryFactory.PREFETCH, "7");
+
+        ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        try (Connection con = cf.createConnection()) {
+            ActiveMQConnection amqCon = (ActiveMQConnection) con;
+            assertThat(amqCon.getPrefetchPolicy().getQueuePrefetch(), equalTo(7));
+            assertThat(amqCon.getPrefetchPolicy().getTopicPrefetch(), equalTo(7));
+        }
+    }
+
+    @Test
+    public void factoryClassMatchesTransport() {
+        ActiveMQConnectionFactoryFactory cff = new ActiveMQConnectionFactoryFactory();
+        Map<String, Object> props = props();
+        assertThat(cff.newConnectionFactory(props, false).getClass(), equalTo(ActiveMQConnectionFactory.class));
+        assertThat(cff.newConnectionFactory(props, true).getClass(), equalTo(ActiveMQXAConnectionFactory.class));
+
+        props.put(ConnectionFactoryFactory.JMS_URL, "failover:(nio://host1:61616,ssl://host2:61617)");
+        assertThat(cff.newConnectionFactory(props, false).getClass(), equalTo(ActiveMQSslConnectionFactory.class));
+        assertThat(cff.newConnectionFactory(props, true).getClass(), equalTo(ActiveMQXASslConnectionFactory.class));
+
+        props.put(ConnectionFactoryFactory.JMS_URL, "auto+nio+ssl://host1:61616");
+        assertThat(cff.newConnectionFactory(props, false).getClass(), equalTo(ActiveMQSslConnectionFactory.class));
+
+        props = props();
+        props.put("trustStoreType", "PKCS12");
+        assertThat(cff.newConnectionFactory(props, false).getClass(), equalTo(ActiveMQSslConnectionFactory.class));
+    }
+
+    @Test
+    public void clientUrl() {
+        assertThat(ActiveMQConnectionFactoryFactory.clientUrl("auto://host:61616"), equalTo("tcp://host:61616"));
+        assertThat(ActiveMQConnectionFactoryFactory.clientUrl("auto+nio://host:61616?wireFormat.maxInactivityDuration=0"),
+                equalTo("nio://host:61616?wireFormat.maxInactivityDuration=0"));
+        assertThat(ActiveMQConnectionFactoryFactory.clientUrl("failover:(auto+ssl://h1:61616,auto+nio+ssl://h2:61616)"),
+                equalTo("failover:(ssl://h1:61616,nio+ssl://h2:61616)"));
+        assertThat(ActiveMQConnectionFactoryFactory.clientUrl("nio://host:61616"), equalTo("nio://host:61616"));
+    }
+
+    @Test
+    public void nioTransports() throws Exception {
+        for (String url : new String[] { NIO_URL, AUTO_NIO_URL }) {
+            Map<String, Object> props = props();
+            props.put(ConnectionFactoryFactory.JMS_URL, url);
+            ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+            try (Connection con = cf.createConnection()) {
+                con.start();
+                ActiveMQQueue dest = new ActiveMQQueue("q." + url.substring(0, url.indexOf(':')));
+                try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                    try (MessageProducer producer = session.createProducer(dest)) {
+                        producer.send(session.createTextMessage("Hello!"));
+                    }
+                    try (MessageConsumer consumer = session.createConsumer(dest)) {
+                        TextMessage tm = (TextMessage) consumer.receive(5000);
+                        assertThat(tm.getText(), equalTo("Hello!"));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unknownProperties() {
+        Map<String, Object> props = props();
+        props.put("useAsyncSned", "true");
+        props.put(ActiveMQConnectionFactoryFactory.PREFETCH_POLICY_PREFIX + "queuePrefech", "10");
+        try {
+            new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+            fail("Should fail because of unknown properties");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString("useAsyncSned"));
+            assertThat(e.getMessage(), containsString("prefetchPolicy.queuePrefech"));
+        }
+        try {
+            new ActiveMQConnectionFactoryFactory().createXAConnectionFactory(props);
+            fail("Should fail because of unknown properties");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString("useAsyncSned"));
+        }
+    }
+
+    @Test
+    public void nonProviderProperties() throws Exception {
+        Map<String, Object> props = props();
+        props.put("decryptor", "jasypt");
+        props.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME, "jms/cf");
+        props.put(ConnectionFactoryFactory.JMS_PROTOCOL, "openwire");
+        props.put(ActiveMQConnectionFactoryFactory.USE_ASYNC_SEND, "true");
+
+        ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        try (Connection con = cf.createConnection()) {
+            assertThat(((ActiveMQConnection) con).isUseAsyncSend(), equalTo(true));
+        }
+        new ActiveMQConnectionFactoryFactory().createXAConnectionFactory(props);
+        assertThat(props.get("decryptor"), equalTo("jasypt"));
+    }
+
+    @Test
+    public void invalidValues() {
+        Map<String, Object> props = props();
+        props.put(ActiveMQConnectionFactoryFactory.USE_ASYNC_SEND, "yes");
+        try {
+            new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+            fail("Should fail because of invalid boolean value");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString(ActiveMQConnectionFactoryFactory.USE_ASYNC_SEND));
+        }
+
+        props = props();
+        props.put(ActiveMQConnectionFactoryFactory.PRODUCER_WINDOW_SIZE, "-1");
+        try {
+            new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+            fail("Should fail because of invalid integer value");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString(ActiveMQConnectionFactoryFactory.PRODUCER_WINDOW_SIZE));
+        }
+    }
+
+    private Map<String, Object> props() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, URL);
+        return props;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.activemq;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.RecyclingMessageProducer;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RecyclingMessageProducerTest {
+
+    private static final String URL = "tcp://0.0.0.0:61616";
+
+    private BrokerService broker;
+    private ConnectionFactory cf;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.addConnector(URL);
+        broker.start();
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, URL);
+        props.put(ActiveMQConnectionFactoryFactory.COPY_MESSAGE_ON_SEND, "false");
+        cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void recycledMessagesAreDeliveredIntact() throws Exception {
+        ActiveMQQueue dest = new ActiveMQQueue("recycled");
+        try (Connection con = cf.createConnection()) {
+            con.start();
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (RecyclingMessageProducer producer = new RecyclingMessageProducer(session, dest)) {
+                    producer.send("m1", Collections.singletonMap("p1", "v1"));
+                    producer.send("m2");
+                    producer.send(new byte[] { 1, 2, 3 }, Collections.singletonMap("p2", 42));
+                    producer.send(new byte[] { 4 });
+                }
+                try (MessageConsumer consumer = session.createConsumer(dest)) {
+                    TextMessage tm = (TextMessage) consumer.receive(5000);
+                    assertThat(tm.getText(), equalTo("m1"));
+                    assertThat(tm.getStringProperty("p1"), equalTo("v1"));
+                    tm = (TextMessage) consumer.receive(5000);
+                    assertThat(tm.getText(), equalTo("m2"));
+                    assertThat(tm.getStringProperty("p1"), nullValue());
+
+                    BytesMessage bm = (BytesMessage) consumer.receive(5000);
+                    assertThat(bm.getBodyLength(), equalTo(3L));
+                    assertThat(bm.getIntProperty("p2"), equalTo(42));
+                    bm = (BytesMessage) consumer.receive(5000);
+                    assertThat(bm.getBodyLength(), equalTo(1L));
+                    assertThat(bm.readByte(), equalTo((byte) 4));
+                    assertThat(bm.getObjectProperty("p2"), nullValue());
+                }
+            }
+        }
+    }
+
+}
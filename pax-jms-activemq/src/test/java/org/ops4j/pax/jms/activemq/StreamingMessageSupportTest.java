@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.activemq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.BlobMessage;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.StreamingMessageSupport;
+import org.ops4j.pax.jms.service.internal.AdaptivePoolSizer;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class StreamingMessageSupportTest {
+
+    private static final String URL = "tcp://0.0.0.0:61616";
+
+    private BrokerService broker;
+    private File blobs;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.addConnector(URL);
+        broker.start();
+
+        blobs = new File("target/blobs").getAbsoluteFile();
+        blobs.mkdirs();
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void streamBlobMessage() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, URL);
+        props.put("blobTransferPolicy.uploadUrl", blobs.toURI().toString());
+        ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        StreamingMessageSupport streaming = new ActiveMQStreamingMessageSupport();
+
+        byte[] content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+        Path source = new File("target/blob-source.bin").toPath();
+        Path target = new File("target/blob-target.bin").toPath();
+        Files.write(source, content);
+
+        ActiveMQQueue dest = new ActiveMQQueue("blobs");
+        try (Connection con = cf.createConnection()) {
+            con.start();
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (MessageProducer producer = session.createProducer(dest);
+                     FileChannel channel = FileChannel.open(source)) {
+                    producer.send(streaming.createMessage(session, channel));
+                }
+                try (MessageConsumer consumer = session.createConsumer(dest);
+                     FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    Message message = consumer.receive(5000);
+                    assertThat(message, instanceOf(BlobMessage.class));
+                    streaming.writeTo(message, channel);
+                }
+            }
+        }
+        assertThat(Files.readAllBytes(target), equalTo(content));
+    }
+
+    @Test
+    public void streamThroughSessionProxies() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, URL);
+        props.put("blobTransferPolicy.uploadUrl", blobs.toURI().toString());
+        ConnectionFactory pool = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        Map<String, Object> poolProps = new HashMap<>();
+        poolProps.put(AdaptivePoolSizer.AUTO_SIZE_INTERVAL, "60000");
+        AdaptivePoolSizer sizer = AdaptivePoolSizer.create(poolProps)
+                .connections(() -> 1, limit -> { })
+                .sessions(() -> 1, limit -> { });
+        ConnectionFactory cf = sizer.wrap(pool);
+        StreamingMessageSupport streaming = new ActiveMQStreamingMessageSupport();
+
+        try (Connection con = cf.createConnection()) {
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                assertThat(Proxy.isProxyClass(session.getClass()), equalTo(true));
+                Message message = streaming.createMessage(session, new ByteArrayInputStream(new byte[] { 42 }));
+                assertThat(message, instanceOf(BlobMessage.class));
+            }
+        } finally {
+            sizer.close();
+        }
+    }
+
+    @Test
+    public void writeRegularBytesMessage() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, URL);
+        ConnectionFactory cf = new ActiveMQConnectionFactoryFactory().createConnectionFactory(props);
+        StreamingMessageSupport streaming = new ActiveMQStreamingMessageSupport();
+
+        ActiveMQQueue dest = new ActiveMQQueue("bytes");
+        try (Connection con = cf.createConnection()) {
+            con.start();
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (MessageProducer producer = session.createProducer(dest)) {
+                    BytesMessage bm = session.createBytesMessage();
+                    bm.writeBytes("Hello!".getBytes());
+                    producer.send(bm);
+                }
+                try (MessageConsumer consumer = session.createConsumer(dest)) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    streaming.writeTo(consumer.receive(5000), output);
+                    assertThat(new String(output.toByteArray()), equalTo("Hello!"));
+                }
+            }
+        }
+    }
+
+}
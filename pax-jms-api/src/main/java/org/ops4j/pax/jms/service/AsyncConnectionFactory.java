@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.util.concurrent.CompletionStage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+
+/**
+ * <p>Non-blocking companion of managed {@link ConnectionFactory}. It's registered by pax-jms-config with the same
+ * service properties as the {@link ConnectionFactory} it delegates to, so it can be looked up using the same
+ * {@code osgi.jndi.service.name} or {@link ConnectionFactoryFactory#JMS_CONNECTIONFACTORY_NAME}.</p>
+ *
+ * <p>Connections and contexts are created by a dedicated, bounded connect executor, so a slow broker handshake
+ * doesn't block the caller. Returned stages complete exceptionally with
+ * {@link java.util.concurrent.RejectedExecutionException} when too many connects are already pending and with
+ * {@link java.util.concurrent.TimeoutException} when the connect takes longer than configured
+ * {@link #ASYNC_TIMEOUT}. Cancelling a returned {@link java.util.concurrent.CompletableFuture} interrupts
+ * the connect. Connection created after its stage was cancelled or timed out is closed.</p>
+ */
+public interface AsyncConnectionFactory {
+
+    /**
+     * Number of threads of connect executor. {@code 0} disables registration of {@code AsyncConnectionFactory}.
+     */
+    String ASYNC_THREADS = "async.threads";
+
+    /**
+     * Maximum number of connects waiting for a free thread of connect executor.
+     */
+    String ASYNC_QUEUE_SIZE = "async.queueSize";
+
+    /**
+     * Connect timeout in milliseconds. {@code 0} means no timeout.
+     */
+    String ASYNC_TIMEOUT = "async.timeout";
+
+    /**
+     * Asynchronous version of {@link ConnectionFactory#createConnection()}
+     * @return stage completed with new connection
+     */
+    CompletionStage<Connection> createConnectionAsync();
+
+    /**
+     * Asynchronous version of {@link ConnectionFactory#createConnection(String, String)}
+     * @param userName the caller's user name
+     * @param password the caller's password
+     * @return stage completed with new connection
+     */
+    CompletionStage<Connection> createConnectionAsync(String userName, String password);
+
+    /**
+     * Asynchronous version of {@link ConnectionFactory#createContext()}
+     * @return stage completed with new context
+     */
+    CompletionStage<JMSContext> createContextAsync();
+
+    /**
+     * Asynchronous version of {@link ConnectionFactory#createContext(int)}
+     * @param sessionMode session mode of the context
+     * @return stage completed with new context
+     */
+    CompletionStage<JMSContext> createContextAsync(int sessionMode);
+
+    /**
+     * Asynchronous version of {@link ConnectionFactory#createContext(String, String, int)}
+     * @param userName the caller's user name
+     * @param password the caller's password
+     * @param sessionMode session mode of the context
+     * @return stage completed with new context
+     */
+    CompletionStage<JMSContext> createContextAsync(String userName, String password, int sessionMode);
+
+}
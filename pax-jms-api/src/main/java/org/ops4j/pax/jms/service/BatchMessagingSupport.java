@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+
+/**
+ * <p>Provider specific support for sending and receiving many messages with single call, for providers where
+ * each {@code send()}/{@code receive()} is a round trip (like Oracle AQ, where each call is single PL/SQL call).
+ * It's registered by broker-specific bundles with the same {@link ConnectionFactoryFactory#JMS_CONNECTIONFACTORY_TYPE}
+ * service property as their {@link ConnectionFactoryFactory}.</p>
+ *
+ * <p>Default methods send and receive messages one by one - when used with transacted session, the batch is
+ * still committed with single {@code commit()}.</p>
+ */
+public interface BatchMessagingSupport {
+
+    /**
+     * Sends all the messages to producer's destination.
+     *
+     * @param producer producer with destination
+     * @param messages messages to send
+     * @throws JMSException if the messages can't be sent
+     */
+    default void send(MessageProducer producer, List<? extends Message> messages) throws JMSException {
+        for (Message message : messages) {
+            producer.send(message);
+        }
+    }
+
+    /**
+     * Receives up to {@code maxMessages} messages. Waits up to {@code timeout} for the first message only -
+     * the remaining messages are received only if already available.
+     *
+     * @param consumer consumer to receive messages with
+     * @param maxMessages maximal number of returned messages
+     * @param timeout timeout in milliseconds for first message ({@code 0} waits indefinitely)
+     * @return received messages - empty list if no message arrived within the timeout
+     * @throws JMSException if the messages can't be received
+     */
+    default List<Message> receive(MessageConsumer consumer, int maxMessages, long timeout) throws JMSException {
+        List<Message> messages = new ArrayList<>(Math.min(maxMessages, 64));
+        Message message = consumer.receive(timeout);
+        while (message != null) {
+            messages.add(message);
+            if (messages.size() >= maxMessages) {
+                break;
+            }
+            message = consumer.receiveNoWait();
+        }
+        return messages;
+    }
+
+}
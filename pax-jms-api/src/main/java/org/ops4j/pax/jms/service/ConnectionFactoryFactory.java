@@ -54,6 +54,12 @@ public interface ConnectionFactoryFactory {
      */
     String JMS_URL = "url";
 
+    /**
+     * The "dataSource" property holding {@code javax.sql.DataSource} object (not a String), passed when
+     * calling {@link #createConnectionFactory(Map)} of factories for JDBC based providers (like Oracle AQ).
+     */
+    String JMS_DATASOURCE = "dataSource";
+
     /**
      * Create a new {@code ConnectionFactory} using the given properties.
      *
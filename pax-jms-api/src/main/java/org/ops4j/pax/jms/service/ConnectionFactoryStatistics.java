@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.util.Map;
+import javax.jms.ConnectionFactory;
+
+/**
+ * <p>Statistics of managed {@link ConnectionFactory}. When the factory created by pax-jms-config (usually a pool)
+ * collects any statistics, they are registered as {@code ConnectionFactoryStatistics} service with the same
+ * service properties as the {@link ConnectionFactory}, so they can be looked up using the same
+ * {@code osgi.jndi.service.name} or {@link ConnectionFactoryFactory#JMS_CONNECTIONFACTORY_NAME}.</p>
+ *
+ * <p>Connection factories implementing this interface expose their statistics this way.</p>
+ */
+public interface ConnectionFactoryStatistics {
+
+    /**
+     * Current values of statistics, keyed by dot-separated names, like {@code xa.onePhaseCommits} or
+     * {@code borrow.rejected}. Returned map is a snapshot.
+     *
+     * @return statistic values
+     */
+    Map<String, Long> getStatistics();
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * <p>A {@link MessageProducer} companion, which reuses single {@link TextMessage} and single {@link BytesMessage}
+ * instance for all the messages it sends, instead of creating new message for each send.</p>
+ *
+ * <p>JMS specification allows sending the same message object many times and modifying it after synchronous
+ * {@code send()} returns. Providers which don't copy sent messages (ActiveMQ with {@code copyMessageOnSend=false},
+ * Artemis core client) benefit most, as no message object is allocated per send at all.</p>
+ *
+ * <p>Just as {@link Session}, this class may be used by single thread only. Messages returned from
+ * {@link #textMessage(String)} and {@link #bytesMessage(byte[], int, int)} are valid only until next call of any
+ * method of this class - they must not be kept by the caller. Don't use it with transports that keep references
+ * to sent messages after {@code send()} returns (like ActiveMQ {@code vm://} transport with
+ * {@code copyMessageOnSend=false}).</p>
+ */
+public class RecyclingMessageProducer implements AutoCloseable {
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final boolean ownsProducer;
+
+    private TextMessage textMessage;
+    private BytesMessage bytesMessage;
+
+    /**
+     * Creates recycling producer using existing {@link MessageProducer}, which is not closed by
+     * {@link #close()}.
+     *
+     * @param session session that created the producer
+     * @param producer producer used to send recycled messages
+     */
+    public RecyclingMessageProducer(Session session, MessageProducer producer) {
+        this(session, producer, false);
+    }
+
+    /**
+     * Creates recycling producer with new {@link MessageProducer} for given destination. The producer is closed
+     * by {@link #close()}.
+     *
+     * @param session session used to create the producer and messages
+     * @param destination target destination (may be {@code null} for unidentified producer)
+     * @throws JMSException if the producer can't be created
+     */
+    public RecyclingMessageProducer(Session session, Destination destination) throws JMSException {
+        this(session, session.createProducer(destination), true);
+    }
+
+    private RecyclingMessageProducer(Session session, MessageProducer producer, boolean ownsProducer) {
+        this.session = session;
+        this.producer = producer;
+        this.ownsProducer = ownsProducer;
+    }
+
+    /**
+     * Returns the recycled {@link TextMessage} with cleared properties and given body. Caller may set additional
+     * properties and headers before sending it with {@link #getProducer()}.
+     *
+     * @param text message body
+     * @return recycled message
+     * @throws JMSException if the message can't be prepared
+     */
+    public TextMessage textMessage(String text) throws JMSException {
+        if (textMessage == null) {
+            textMessage = session.createTextMessage();
+        } else {
+            reset(textMessage);
+        }
+        textMessage.setText(text);
+        return textMessage;
+    }
+
+    /**
+     * Returns the recycled {@link BytesMessage} with cleared properties and given body.
+     *
+     * @param bytes array containing message body
+     * @param offset offset of the body in the array
+     * @param length length of the body
+     * @return recycled message
+     * @throws JMSException if the message can't be prepared
+     */
+    public BytesMessage bytesMessage(byte[] bytes, int offset, int length) throws JMSException {
+        if (bytesMessage == null) {
+            bytesMessage = session.createBytesMessage();
+        } else {
+            reset(bytesMessage);
+        }
+        bytesMessage.writeBytes(bytes, offset, length);
+        return bytesMessage;
+    }
+
+    /**
+     * Sends text message using recycled {@link TextMessage}.
+     *
+     * @param text message body
+     * @throws JMSException if the message can't be sent
+     */
+    public void send(String text) throws JMSException {
+        producer.send(textMessage(text));
+    }
+
+    /**
+     * Sends text message with properties using recycled {@link TextMessage}.
+     *
+     * @param text message body
+     * @param properties message properties, may be {@code null}
+     * @throws JMSException if the message can't be sent
+     */
+    public void send(String text, Map<String, Object> properties) throws JMSException {
+        producer.send(withProperties(textMessage(text), properties));
+    }
+
+    /**
+     * Sends bytes message using recycled {@link BytesMessage}.
+     *
+     * @param bytes message body
+     * @throws JMSException if the message can't be sent
+     */
+    public void send(byte[] bytes) throws JMSException {
+        producer.send(bytesMessage(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Sends bytes message with properties using recycled {@link BytesMessage}.
+     *
+     * @param bytes message body
+     * @param properties message properties, may be {@code null}
+     * @throws JMSException if the message can't be sent
+     */
+    public void send(byte[] bytes, Map<String, Object> properties) throws JMSException {
+        producer.send(withProperties(bytesMessage(bytes, 0, bytes.length), properties));
+    }
+
+    public MessageProducer getProducer() {
+        return producer;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        textMessage = null;
+        bytesMessage = null;
+        if (ownsProducer) {
+            producer.close();
+        }
+    }
+
+    private void reset(Message message) throws JMSException {
+        message.clearBody();
+        message.clearProperties();
+        message.setJMSCorrelationID(null);
+        message.setJMSReplyTo(null);
+        message.setJMSType(null);
+    }
+
+    private Message withProperties(Message message, Map<String, Object> properties) throws JMSException {
+        if (properties == null) {
+            return message;
+        }
+        for (Map.Entry<String, Object> e : properties.entrySet()) {
+            message.setObjectProperty(e.getKey(), e.getValue());
+        }
+        return message;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * <p>Provider specific support for sending and receiving large payloads with bounded memory, without buffering
+ * entire message body on heap. It's registered by broker-specific bundles with the same
+ * {@link ConnectionFactoryFactory#JMS_CONNECTIONFACTORY_TYPE} service property as their
+ * {@link ConnectionFactoryFactory}.</p>
+ *
+ * <p>Sessions passed to this service have to be created by connection factories of matching provider (possibly
+ * pooled).</p>
+ */
+public interface StreamingMessageSupport {
+
+    /**
+     * Creates a message which streams the content when it's sent. The stream is read during {@code send()}
+     * and the returned message should be sent only once.
+     *
+     * @param session session used to create and send the message
+     * @param content message body
+     * @return a message to be sent with producer of the same session
+     * @throws JMSException if the message can't be created
+     */
+    Message createMessage(Session session, InputStream content) throws JMSException;
+
+    /**
+     * Writes body of received message to the output stream, blocking until all the content is written.
+     * Non-streamed {@link javax.jms.BytesMessage bytes messages} are supported as well.
+     *
+     * @param message received message
+     * @param output target of message body - not closed by this method
+     * @throws JMSException if the body can't be written
+     */
+    void writeTo(Message message, OutputStream output) throws JMSException;
+
+    /**
+     * Creates a message which streams the content of a file channel, starting at channel's current position.
+     *
+     * @param session session used to create and send the message
+     * @param content message body
+     * @return a message to be sent with producer of the same session
+     * @throws JMSException if the message can't be created
+     */
+    default Message createMessage(Session session, FileChannel content) throws JMSException {
+        return createMessage(session, Channels.newInputStream(content));
+    }
+
+    /**
+     * Writes body of received message to the file channel, at channel's current position.
+     *
+     * @param message received message
+     * @param output target of message body - not closed by this method
+     * @throws JMSException if the body can't be written
+     */
+    default void writeTo(Message message, FileChannel output) throws JMSException {
+        writeTo(message, Channels.newOutputStream(output));
+    }
+
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+import javax.jms.QueueConnectionFactory;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TopicConnection;
+import javax.jms.TopicConnectionFactory;
+import javax.jms.TopicSession;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.jms.XAQueueConnection;
+import javax.jms.XAQueueConnectionFactory;
+import javax.jms.XASession;
+import javax.jms.XATopicConnection;
+import javax.jms.XATopicConnectionFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getDouble;
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getLong;
+
+/**
+ * <p>AIMD controller of pool limits. Borrow wait time (duration of {@code createConnection()},
+ * {@code createSession()} and {@code createContext()} calls of the pool), utilization (peak number of borrowed
+ * sessions and contexts relative to {@code maxConnections * maxSessionsPerConnection}) and latency of
+ * connections created by the broker-specific factory are sampled, and at the end of each interval:</p><ul>
+ *     <li>if average borrow wait exceeds {@code autoSize.targetWait}, one of the limits is increased by one -
+ *     sessions per connection when creating connections takes longer than the target wait (or when connection
+ *     limit is at its bound), connections otherwise,</li>
+ *     <li>if there was no congestion and utilization was below {@code autoSize.lowUtilization}, connection
+ *     limit (or, when it's at its lower bound, session limit) is multiplied by {@code autoSize.decreaseFactor}.</li>
+ * </ul>
+ *
+ * <p>Limits are applied through pool setters and are kept within {@code autoSize.min*}/{@code autoSize.max*}
+ * bounds. The controller is enabled with {@code pool.autoSize.interval} property by pooled-jms based pooled
+ * connection factory factories.</p>
+ */
+public class AdaptivePoolSizer implements AutoCloseable {
+
+    public static final Logger LOG = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+
+    /** Sizing interval in milliseconds, sizing is disabled when not set or {@code 0} */
+    public static final String AUTO_SIZE_INTERVAL = "autoSize.interval";
+    /** Lower bound of connection limit, defaults to {@code 1} */
+    public static final String MIN_CONNECTIONS = "autoSize.minConnections";
+    /** Upper bound of connection limit, defaults to 4 times the configured limit */
+    public static final String MAX_CONNECTIONS = "autoSize.maxConnections";
+    /** Lower bound of sessions per connection limit, defaults to {@code 1} */
+    public static final String MIN_SESSIONS = "autoSize.minSessionsPerConnection";
+    /** Upper bound of sessions per connection limit, defaults to 4 times the configured limit */
+    public static final String MAX_SESSIONS = "autoSize.maxSessionsPerConnection";
+    /** Average borrow wait (ms) above which the pool grows, defaults to {@code 10} */
+    public static final String TARGET_WAIT = "autoSize.targetWait";
+    /** Utilization below which the pool shrinks, defaults to {@code 0.5} */
+    public static final String LOW_UTILIZATION = "autoSize.lowUtilization";
+    /** Multiplier of shrinking limit, defaults to {@code 0.75} */
+    public static final String DECREASE_FACTOR = "autoSize.decreaseFactor";
+
+    private static final String PREFIX = "autoSize.";
+
+    private static final Class<?>[] FACTORY_INTERFACES = new Class<?>[] {
+            XAQueueConnectionFactory.class, XATopicConnectionFactory.class, XAConnectionFactory.class,
+            QueueConnectionFactory.class, TopicConnectionFactory.class, ConnectionFactory.class
+    };
+    private static final Class<?>[] BORROWED_INTERFACES = new Class<?>[] {
+            XAQueueConnection.class, XATopicConnection.class, XAConnection.class,
+            QueueConnection.class, TopicConnection.class, Connection.class,
+            XASession.class, QueueSession.class, TopicSession.class, Session.class,
+            XAJMSContext.class, JMSContext.class
+    };
+
+    private final long interval;
+    private final Map<String, Object> bounds;
+    private final long targetWait;
+    private final double lowUtilization;
+    private final double decreaseFactor;
+
+    private IntSupplier maxConnections;
+    private IntConsumer connectionsSetter;
+    private IntSupplier maxSessions;
+    private IntConsumer sessionsSetter;
+    private int minConnectionLimit;
+    private int maxConnectionLimit;
+    private int minSessionLimit;
+    private int maxSessionLimit;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder borrowWait = new LongAdder();
+    private final LongAdder creates = new LongAdder();
+    private final LongAdder createTime = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger peakOutstanding = new AtomicInteger();
+    private volatile long createLatency;
+
+    private ScheduledExecutorService scheduler;
+
+    private AdaptivePoolSizer(long interval, Map<String, Object> bounds) {
+        this.interval = interval;
+        this.bounds = bounds;
+        targetWait = TimeUnit.MILLISECONDS.toNanos(getLong(bounds, TARGET_WAIT, 10L));
+        lowUtilization = getDouble(bounds, LOW_UTILIZATION, 0.5d);
+        decreaseFactor = getDouble(bounds, DECREASE_FACTOR, 0.75d);
+        if (decreaseFactor <= 0d || decreaseFactor >= 1d) {
+            throw new IllegalArgumentException("Invalid " + DECREASE_FACTOR + " value: " + decreaseFactor
+                    + ". Expected value between 0 and 1");
+        }
+    }
+
+    /**
+     * Creates the controller if {@link #AUTO_SIZE_INTERVAL} pool property is set. All {@code autoSize.*}
+     * properties are removed from pool properties.
+     *
+     * @param poolProps pool properties
+     * @return new controller or {@code null} if sizing is not enabled
+     */
+    public static AdaptivePoolSizer create(Map<String, Object> poolProps) {
+        Map<String, Object> bounds = new HashMap<>();
+        poolProps.entrySet().removeIf(e -> {
+            if (e.getKey().startsWith(PREFIX)) {
+                bounds.put(e.getKey(), e.getValue());
+                return true;
+            }
+            return false;
+        });
+        long interval = getLong(bounds, AUTO_SIZE_INTERVAL, 0L);
+        return interval > 0 ? new AdaptivePoolSizer(interval, bounds) : null;
+    }
+
+    /**
+     * Sets live accessors of connection limit. Bounds not configured explicitly are derived from current value.
+     *
+     * @param getter current limit
+     * @param setter changes the limit of the pool
+     * @return this controller
+     */
+    public AdaptivePoolSizer connections(IntSupplier getter, IntConsumer setter) {
+        maxConnections = getter;
+        connectionsSetter = setter;
+        int current = getter.getAsInt();
+        minConnectionLimit = (int) getLong(bounds, MIN_CONNECTIONS, 1L);
+        maxConnectionLimit = (int) getLong(bounds, MAX_CONNECTIONS, 4L * current);
+        return this;
+    }
+
+    /**
+     * Sets live accessors of sessions per connection limit. Bounds not configured explicitly are derived from
+     * current value.
+     *
+     * @param getter current limit
+     * @param setter changes the limit of the pool
+     * @return this controller
+     */
+    public AdaptivePoolSizer sessions(IntSupplier getter, IntConsumer setter) {
+        maxSessions = getter;
+        sessionsSetter = setter;
+        int current = getter.getAsInt();
+        minSessionLimit = (int) getLong(bounds, MIN_SESSIONS, 1L);
+        maxSessionLimit = (int) getLong(bounds, MAX_SESSIONS, 4L * current);
+        return this;
+    }
+
+    /**
+     * Wraps broker-specific connection factory used by the pool to measure latency of creating connections.
+     *
+     * @param cf broker-specific {@link ConnectionFactory} or {@link XAConnectionFactory}
+     * @param <T> type of the connection factory
+     * @return measured connection factory
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T measureCreates(T cf) {
+        return (T) Proxy.newProxyInstance(AdaptivePoolSizer.class.getClassLoader(), interfaces(cf, FACTORY_INTERFACES),
+                (proxy, method, args) -> {
+                    if (!method.getName().startsWith("create") || !method.getName().endsWith("Connection")) {
+                        return invoke(cf, method, args);
+                    }
+                    long start = System.nanoTime();
+                    Object result = invoke(cf, method, args);
+                    creates.increment();
+                    createTime.add(System.nanoTime() - start);
+                    return result;
+                });
+    }
+
+    /**
+     * Wraps the pool to measure borrow wait and utilization and starts periodic sizing. Closing returned
+     * connection factory stops the controller and closes the pool, if it's {@link AutoCloseable}.
+     *
+     * @param pool pooled {@link ConnectionFactory}
+     * @return measured pool
+     */
+    public ConnectionFactory wrap(ConnectionFactory pool) {
+        if (maxConnections == null || maxSessions == null) {
+            throw new IllegalStateException("Pool limits are not set");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pax-jms-autosize");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::adjust, interval, interval, TimeUnit.MILLISECONDS);
+        return new SizedConnectionFactory(pool);
+    }
+
+    /**
+     * Single sizing step - normally called periodically after {@link #wrap(ConnectionFactory)}.
+     */
+    public synchronized void adjust() {
+        long count = borrows.sumThenReset();
+        long wait = borrowWait.sumThenReset();
+        long createCount = creates.sumThenReset();
+        long createNanos = createTime.sumThenReset();
+        int peak = peakOutstanding.getAndSet(outstanding.get());
+        if (createCount > 0) {
+            createLatency = createNanos / createCount;
+        }
+
+        int connections = maxConnections.getAsInt();
+        int sessions = maxSessions.getAsInt();
+        long averageWait = count == 0 ? 0L : wait / count;
+        if (averageWait > targetWait) {
+            // additive increase of cheaper resource
+            boolean preferSessions = createLatency > targetWait || connections >= maxConnectionLimit;
+            if (preferSessions && sessions < maxSessionLimit) {
+                setSessions(sessions, sessions + 1, averageWait);
+            } else if (connections < maxConnectionLimit) {
+                setConnections(connections, connections + 1, averageWait);
+            } else if (sessions < maxSessionLimit) {
+                setSessions(sessions, sessions + 1, averageWait);
+            }
+        } else if (peak < lowUtilization * connections * sessions) {
+            // multiplicative decrease
+            if (connections > minConnectionLimit) {
+                setConnections(connections, Math.max(minConnectionLimit,
+                        Math.min(connections - 1, (int) (connections * decreaseFactor))), averageWait);
+            } else if (sessions > minSessionLimit) {
+                setSessions(sessions, Math.max(minSessionLimit,
+                        Math.min(sessions - 1, (int) (sessions * decreaseFactor))), averageWait);
+            }
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections.getAsInt();
+    }
+
+    public int getMaxSessionsPerConnection() {
+        return maxSessions.getAsInt();
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void setConnections(int from, int to, long averageWait) {
+        LOG.info("Changing pool maxConnections {} -> {} (average borrow wait {}us)", from, to,
+                TimeUnit.NANOSECONDS.toMicros(averageWait));
+        connectionsSetter.accept(to);
+    }
+
+    private void setSessions(int from, int to, long averageWait) {
+        LOG.info("Changing pool maxSessionsPerConnection {} -> {} (average borrow wait {}us)", from, to,
+                TimeUnit.NANOSECONDS.toMicros(averageWait));
+        sessionsSetter.accept(to);
+    }
+
+    private Object borrowed(Object target, long start, Set<Borrowed> owner) {
+        borrows.increment();
+        borrowWait.add(System.nanoTime() - start);
+        if (target instanceof Connection) {
+            // connection itself doesn't use pool capacity - its sessions do
+            return track(target, null, null);
+        }
+        int current = outstanding.incrementAndGet();
+        peakOutstanding.accumulateAndGet(current, Math::max);
+        return track(target, new AtomicBoolean(), owner);
+    }
+
+    private Object track(Object target, AtomicBoolean closed, Set<Borrowed> owner) {
+        return Proxy.newProxyInstance(AdaptivePoolSizer.class.getClassLoader(), interfaces(target, BORROWED_INTERFACES),
+                new Borrowed(target, closed, owner));
+    }
+
+    private static Class<?>[] interfaces(Object target, Class<?>[] candidates) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : candidates) {
+            if (iface.isInstance(target)) {
+                interfaces.add(iface);
+            }
+        }
+        return interfaces.toArray(new Class<?>[0]);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    /**
+     * Borrowed connection, session or context. Sessions created by a connection are timed as borrows, closing
+     * a session or context ends its use of pool capacity. Closing a connection ends it for its sessions which
+     * were not closed explicitly (JMS closes sessions together with their connection).
+     */
+    private class Borrowed implements DelegatingInvocationHandler {
+
+        private final Object target;
+        private final AtomicBoolean closed;
+        /** Sessions created by this connection and not closed yet */
+        private final Set<Borrowed> sessions;
+        /** {@link #sessions} of the connection which created this session */
+        private final Set<Borrowed> owner;
+
+        Borrowed(Object target, AtomicBoolean closed, Set<Borrowed> owner) {
+            this.target = target;
+            this.closed = closed;
+            this.sessions = target instanceof Connection ? ConcurrentHashMap.newKeySet() : null;
+            this.owner = owner;
+            if (owner != null) {
+                owner.add(this);
+            }
+        }
+
+        private void release() {
+            if (closed != null && closed.compareAndSet(false, true)) {
+                outstanding.decrementAndGet();
+            }
+            if (owner != null) {
+                owner.remove(this);
+            }
+        }
+
+        @Override
+        public Object getDelegate() {
+            return target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return target.toString();
+                case "close":
+                    try {
+                        return AdaptivePoolSizer.invoke(target, method, args);
+                    } finally {
+                        release();
+                        if (sessions != null) {
+                            for (Borrowed session : sessions) {
+                                session.release();
+                            }
+                        }
+                    }
+                default:
+                    if (sessions != null && name.startsWith("create") && name.endsWith("Session")) {
+                        long start = System.nanoTime();
+                        return borrowed(AdaptivePoolSizer.invoke(target, method, args), start, sessions);
+                    }
+                    return AdaptivePoolSizer.invoke(target, method, args);
+            }
+        }
+    }
+
+    /**
+     * Pool wrapper measuring borrow wait of connections and contexts.
+     */
+    private class SizedConnectionFactory implements ConnectionFactory, AutoCloseable {
+
+        private final ConnectionFactory delegate;
+
+        SizedConnectionFactory(ConnectionFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Connection createConnection() throws JMSException {
+            long start = System.nanoTime();
+            return (Connection) borrowed(delegate.createConnection(), start, null);
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) throws JMSException {
+            long start = System.nanoTime();
+            return (Connection) borrowed(delegate.createConnection(userName, password), start, null);
+        }
+
+        @Override
+        public JMSContext createContext() {
+            long start = System.nanoTime();
+            return (JMSContext) borrowed(delegate.createContext(), start, null);
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            long start = System.nanoTime();
+            return (JMSContext) borrowed(delegate.createContext(userName, password), start, null);
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            long start = System.nanoTime();
+            return (JMSContext) borrowed(delegate.createContext(userName, password, sessionMode), start, null);
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            long start = System.nanoTime();
+            return (JMSContext) borrowed(delegate.createContext(sessionMode), start, null);
+        }
+
+        @Override
+        public void close() throws Exception {
+            AdaptivePoolSizer.this.close();
+            if (delegate instanceof AutoCloseable) {
+                ((AutoCloseable) delegate).close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.QueueConnection;
+import javax.jms.TopicConnection;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.jms.XAQueueConnection;
+import javax.jms.XATopicConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link ConnectionFactory} spreading {@code createConnection()}/{@code createContext()} calls across
+ * {@link Member members} - other connection factories, usually connected to different brokers.</p>
+ *
+ * <p>Health of members is tracked passively - when a member fails to create a connection, it's ejected for
+ * configured time and the call is retried with another member. Ejected members are used only when there are
+ * no healthy members left.</p>
+ *
+ * <p>Connections and contexts are returned as proxies implementing only standard JMS interfaces, so closing them
+ * can be tracked as decrease of member's outstanding count.</p>
+ */
+public class BalancingConnectionFactory implements ConnectionFactory, XAConnectionFactory {
+
+    public static final Logger LOG = LoggerFactory.getLogger(BalancingConnectionFactory.class);
+
+    private static final Class<?>[] TRACKED_INTERFACES = new Class<?>[] {
+            XAQueueConnection.class, XATopicConnection.class, XAConnection.class,
+            QueueConnection.class, TopicConnection.class, Connection.class,
+            XAJMSContext.class, JMSContext.class
+    };
+
+    /**
+     * How a member is selected for each created connection or context.
+     */
+    public enum Strategy {
+        /** Smooth weighted round-robin */
+        WEIGHTED("weighted"),
+        /** Member with the lowest number of open connections (relative to its weight) */
+        LEAST_OUTSTANDING("leastOutstanding"),
+        /** Better of two random members - by number of open connections, then by connection-create latency */
+        POWER_OF_TWO_CHOICES("powerOfTwoChoices");
+
+        private final String value;
+
+        Strategy(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static Strategy of(String value) {
+            for (Strategy s : values()) {
+                if (s.value.equalsIgnoreCase(value.trim())) {
+                    return s;
+                }
+            }
+            List<String> allowed = new ArrayList<>();
+            for (Strategy s : values()) {
+                allowed.add(s.value);
+            }
+            throw new JMSRuntimeException("Unknown balancing strategy \"" + value + "\". Allowed values: " + allowed);
+        }
+    }
+
+    /**
+     * Single target of balanced connection factory.
+     */
+    public static class Member {
+
+        private final String name;
+        private final int weight;
+        private final Object connectionFactory;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long ejectedUntil;
+        private volatile long createNanos;
+        // guarded by the BalancingConnectionFactory
+        private int currentWeight;
+
+        /**
+         * @param name name used in logs
+         * @param weight positive weight of the member
+         * @param connectionFactory {@link ConnectionFactory} and/or {@link XAConnectionFactory}
+         */
+        public Member(String name, int weight, Object connectionFactory) {
+            if (weight <= 0) {
+                throw new JMSRuntimeException("Weight of \"" + name + "\" must be positive, was " + weight);
+            }
+            this.name = name;
+            this.weight = weight;
+            this.connectionFactory = connectionFactory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public Object getConnectionFactory() {
+            return connectionFactory;
+        }
+
+        /**
+         * @return number of connections and contexts created using this member and not closed yet
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return exponentially weighted average time of creating connection with this member
+         */
+        public long getCreateNanos() {
+            return createNanos;
+        }
+
+        public boolean isEjected() {
+            return ejectedUntil - System.nanoTime() > 0;
+        }
+
+        private void succeeded(long nanos) {
+            long avg = createNanos;
+            createNanos = avg == 0 ? nanos : avg + (nanos - avg) / 4;
+            ejectedUntil = 0;
+        }
+
+        private void failed(long ejectionNanos) {
+            ejectedUntil = System.nanoTime() + ejectionNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private interface Create<T> {
+        T create(Object connectionFactory) throws JMSException;
+    }
+
+    private final Supplier<List<Member>> members;
+    private final Strategy strategy;
+    private final long ejectionNanos;
+
+    public BalancingConnectionFactory(List<Member> members, Strategy strategy, long ejectionMillis) {
+        this(() -> members, strategy, ejectionMillis);
+    }
+
+    /**
+     * Creates balancing connection factory with dynamic set of members.
+     *
+     * @param members supplier of currently available members, called for each created connection
+     * @param strategy member selection strategy
+     * @param ejectionMillis how long a member is avoided after failure
+     */
+    public BalancingConnectionFactory(Supplier<List<Member>> members, Strategy strategy, long ejectionMillis) {
+        this.members = members;
+        this.strategy = strategy;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+    }
+
+    public List<Member> getMembers() {
+        return members.get();
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return create(ConnectionFactory.class, cf -> ((ConnectionFactory) cf).createConnection());
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        return create(ConnectionFactory.class, cf -> ((ConnectionFactory) cf).createConnection(userName, password));
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return createContext(cf -> ((ConnectionFactory) cf).createContext());
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return createContext(cf -> ((ConnectionFactory) cf).createContext(userName, password));
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        return createContext(cf -> ((ConnectionFactory) cf).createContext(userName, password, sessionMode));
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return createContext(cf -> ((ConnectionFactory) cf).createContext(sessionMode));
+    }
+
+    @Override
+    public XAConnection createXAConnection() throws JMSException {
+        return create(XAConnectionFactory.class, cf -> ((XAConnectionFactory) cf).createXAConnection());
+    }
+
+    @Override
+    public XAConnection createXAConnection(String userName, String password) throws JMSException {
+        return create(XAConnectionFactory.class, cf -> ((XAConnectionFactory) cf).createXAConnection(userName, password));
+    }
+
+    @Override
+    public XAJMSContext createXAContext() {
+        return createContext(XAConnectionFactory.class, cf -> ((XAConnectionFactory) cf).createXAContext());
+    }
+
+    @Override
+    public XAJMSContext createXAContext(String userName, String password) {
+        return createContext(XAConnectionFactory.class, cf -> ((XAConnectionFactory) cf).createXAContext(userName, password));
+    }
+
+    private JMSContext createContext(Create<JMSContext> create) {
+        return createContext(ConnectionFactory.class, create);
+    }
+
+    private <T> T createContext(Class<?> type, Create<T> create) {
+        try {
+            return create(type, create);
+        } catch (JMSException e) {
+            throw new JMSRuntimeException(e.getMessage(), e.getErrorCode(), e);
+        }
+    }
+
+    private <T> T create(Class<?> type, Create<T> create) throws JMSException {
+        List<Member> candidates = new ArrayList<>();
+        for (Member m : members.get()) {
+            if (type.isInstance(m.connectionFactory)) {
+                candidates.add(m);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new JMSException("No " + type.getSimpleName() + " members available");
+        }
+
+        Exception last = null;
+        while (!candidates.isEmpty()) {
+            Member member = select(candidates);
+            candidates.remove(member);
+            long start = System.nanoTime();
+            member.outstanding.incrementAndGet();
+            try {
+                T created = create.create(member.connectionFactory);
+                member.succeeded(System.nanoTime() - start);
+                return track(created, member);
+            } catch (JMSException | JMSRuntimeException e) {
+                member.outstanding.decrementAndGet();
+                member.failed(ejectionNanos);
+                LOG.warn("Can't create connection using {}, ejecting it for {}ms: {}", member,
+                        TimeUnit.NANOSECONDS.toMillis(ejectionNanos), e.getMessage());
+                last = e;
+            }
+        }
+        if (last instanceof JMSException) {
+            throw (JMSException) last;
+        }
+        throw (JMSRuntimeException) last;
+    }
+
+    private Member select(List<Member> candidates) {
+        List<Member> healthy = new ArrayList<>(candidates.size());
+        for (Member m : candidates) {
+            if (!m.isEjected()) {
+                healthy.add(m);
+            }
+        }
+        if (healthy.isEmpty()) {
+            healthy = candidates;
+        }
+        if (healthy.size() == 1) {
+            return healthy.get(0);
+        }
+        switch (strategy) {
+            case WEIGHTED:
+                return selectWeighted(healthy);
+            case LEAST_OUTSTANDING: {
+                Member best = healthy.get(0);
+                for (Member m : healthy) {
+                    if ((long) m.getOutstanding() * best.weight < (long) best.getOutstanding() * m.weight) {
+                        best = m;
+                    }
+                }
+                return best;
+            }
+            case POWER_OF_TWO_CHOICES:
+            default: {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int i1 = random.nextInt(healthy.size());
+                int i2 = random.nextInt(healthy.size() - 1);
+                Member m1 = healthy.get(i1);
+                Member m2 = healthy.get(i2 >= i1 ? i2 + 1 : i2);
+                int o1 = m1.getOutstanding();
+                int o2 = m2.getOutstanding();
+                if (o1 != o2) {
+                    return o1 < o2 ? m1 : m2;
+                }
+                return m1.createNanos <= m2.createNanos ? m1 : m2;
+            }
+        }
+    }
+
+    private synchronized Member selectWeighted(List<Member> healthy) {
+        Member best = null;
+        int total = 0;
+        for (Member m : healthy) {
+            m.currentWeight += m.weight;
+            total += m.weight;
+            if (best == null || m.currentWeight > best.currentWeight) {
+                best = m;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T track(T target, Member member) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : TRACKED_INTERFACES) {
+            if (iface.isInstance(target)) {
+                interfaces.add(iface);
+            }
+        }
+        if (interfaces.isEmpty()) {
+            member.outstanding.decrementAndGet();
+            return target;
+        }
+        return (T) Proxy.newProxyInstance(BalancingConnectionFactory.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[0]), new Tracked(target, member));
+    }
+
+    /**
+     * Decrements outstanding count of the member when tracked connection or context is closed.
+     */
+    private static class Tracked implements InvocationHandler {
+
+        private final Object target;
+        private final Member member;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Tracked(Object target, Member member) {
+            this.target = target;
+            this.member = member;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return args.length == 1 && proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return target.toString();
+                default:
+                    break;
+            }
+            if ("close".equals(method.getName()) && (args == null || args.length == 0)
+                    && closed.compareAndSet(false, true)) {
+                member.outstanding.decrementAndGet();
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+}
@@ -16,6 +16,7 @@
 package org.ops4j.pax.jms.service.internal;
 
 import java.lang.reflect.Method;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -130,6 +131,53 @@ public class BeanConfig {
         return getPrefixed(props, POOL_PREFIX);
     }
 
+    /**
+     * Reads numeric configuration property given as number or string.
+     *
+     * @param props configuration
+     * @param key property name
+     * @param defaultValue value used when the property is not set
+     * @return property value
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public static long getLong(Map<String, ?> props, String key, long defaultValue) {
+        Object value = props.get(key);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    public static int getInt(Map<String, ?> props, String key, int defaultValue) {
+        return toInt(key, props.get(key), defaultValue);
+    }
+
+    public static int getInt(Dictionary<String, ?> props, String key, int defaultValue) {
+        return toInt(key, props.get(key), defaultValue);
+    }
+
+    public static double getDouble(Map<String, ?> props, String key, double defaultValue) {
+        Object value = props.get(key);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    private static int toInt(String key, Object value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw invalid(key, value);
+        }
+    }
+
+    private static IllegalArgumentException invalid(String key, Object value) {
+        return new IllegalArgumentException("Problem in ConnectionFactory config: invalid " + key + " value: " + value);
+    }
+
     static Map<String, Object> getPrefixed(Map<String, Object> props, String prefix) {
         Map<String, Object> prefixedProps = new HashMap<String, Object>();
         for (String key : props.keySet()) {
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link TransactionManager} passed to XA-aware pools, which wraps {@link XAResource XA resources} enlisted by
+ * the pool to count how transactions are completed - see {@link Statistics}. Most transaction managers already
+ * use one-phase commit when there's single participant in a transaction, which is counted as
+ * {@link Statistics#getOnePhaseCommits()}. Pool can't see other participants of a transaction, so the decision
+ * is always left to the transaction manager.</p>
+ *
+ * <p>Single wrapper is used for each transaction in progress - it's released after the transaction completes.</p>
+ */
+public class CompletionCountingTransactionManager implements TransactionManager {
+
+    public static final Logger LOG = LoggerFactory.getLogger(CompletionCountingTransactionManager.class);
+
+    private final TransactionManager delegate;
+    private final Statistics statistics = new Statistics();
+    private final Map<Transaction, MonitoredTransaction> transactions = new ConcurrentHashMap<>();
+
+    public CompletionCountingTransactionManager(TransactionManager delegate) {
+        this.delegate = delegate;
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public Transaction getTransaction() throws SystemException {
+        Transaction tx = delegate.getTransaction();
+        if (tx == null) {
+            return null;
+        }
+        MonitoredTransaction monitored = transactions.get(tx);
+        if (monitored == null) {
+            monitored = new MonitoredTransaction(tx);
+            try {
+                tx.registerSynchronization(monitored);
+                transactions.put(tx, monitored);
+            } catch (RollbackException | IllegalStateException | SystemException e) {
+                // transaction is already completing - don't cache its wrapper
+                LOG.debug("Can't register synchronization of {}: {}", tx, e.getMessage());
+            }
+        }
+        return monitored;
+    }
+
+    @Override
+    public int getStatus() throws SystemException {
+        return delegate.getStatus();
+    }
+
+    @Override
+    public void begin() throws NotSupportedException, SystemException {
+        delegate.begin();
+    }
+
+    @Override
+    public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
+            SecurityException, IllegalStateException, SystemException {
+        delegate.commit();
+    }
+
+    @Override
+    public void rollback() throws IllegalStateException, SecurityException, SystemException {
+        delegate.rollback();
+    }
+
+    @Override
+    public void setRollbackOnly() throws IllegalStateException, SystemException {
+        delegate.setRollbackOnly();
+    }
+
+    @Override
+    public void setTransactionTimeout(int seconds) throws SystemException {
+        delegate.setTransactionTimeout(seconds);
+    }
+
+    @Override
+    public Transaction suspend() throws SystemException {
+        return delegate.suspend();
+    }
+
+    @Override
+    public void resume(Transaction tx) throws InvalidTransactionException, IllegalStateException, SystemException {
+        delegate.resume(tx instanceof MonitoredTransaction ? ((MonitoredTransaction) tx).delegate : tx);
+    }
+
+    /**
+     * Counters of completed transaction branches of the pool
+     */
+    public static class Statistics implements ConnectionFactoryStatistics {
+
+        private final AtomicLong onePhaseCommits = new AtomicLong();
+        private final AtomicLong twoPhaseCommits = new AtomicLong();
+        private final AtomicLong readOnly = new AtomicLong();
+        private final AtomicLong rollbacks = new AtomicLong();
+
+        /**
+         * @return branches committed with one-phase commit by transaction manager
+         */
+        public long getOnePhaseCommits() {
+            return onePhaseCommits.get();
+        }
+
+        /**
+         * @return branches committed after successful {@code prepare()}
+         */
+        public long getTwoPhaseCommits() {
+            return twoPhaseCommits.get();
+        }
+
+        /**
+         * @return branches prepared as read-only by the broker
+         */
+        public long getReadOnly() {
+            return readOnly.get();
+        }
+
+        public long getRollbacks() {
+            return rollbacks.get();
+        }
+
+        @Override
+        public Map<String, Long> getStatistics() {
+            Map<String, Long> values = new LinkedHashMap<>();
+            values.put("xa.onePhaseCommits", getOnePhaseCommits());
+            values.put("xa.twoPhaseCommits", getTwoPhaseCommits());
+            values.put("xa.readOnly", getReadOnly());
+            values.put("xa.rollbacks", getRollbacks());
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return "one-phase commits: " + onePhaseCommits + ", two-phase commits: " + twoPhaseCommits + ", read-only: " + readOnly
+                    + ", rollbacks: " + rollbacks;
+        }
+    }
+
+    /**
+     * {@link Transaction} wrapping enlisted resources
+     */
+    private class MonitoredTransaction implements Transaction, Synchronization {
+
+        private final Transaction delegate;
+
+        MonitoredTransaction(Transaction delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean enlistResource(XAResource xaResource) throws RollbackException, IllegalStateException,
+                SystemException {
+            return delegate.enlistResource(new MonitoredXAResource(xaResource));
+        }
+
+        @Override
+        public boolean delistResource(XAResource xaResource, int flag) throws IllegalStateException, SystemException {
+            // wrappers are equal when wrapped resources are equal
+            return delegate.delistResource(xaResource instanceof MonitoredXAResource ? xaResource
+                    : new MonitoredXAResource(xaResource), flag);
+        }
+
+        @Override
+        public void registerSynchronization(Synchronization synchronization) throws RollbackException,
+                IllegalStateException, SystemException {
+            delegate.registerSynchronization(synchronization);
+        }
+
+        @Override
+        public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
+                SecurityException, IllegalStateException, SystemException {
+            delegate.commit();
+        }
+
+        @Override
+        public void rollback() throws IllegalStateException, SystemException {
+            delegate.rollback();
+        }
+
+        @Override
+        public void setRollbackOnly() throws IllegalStateException, SystemException {
+            delegate.setRollbackOnly();
+        }
+
+        @Override
+        public int getStatus() throws SystemException {
+            return delegate.getStatus();
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            transactions.remove(delegate);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof MonitoredTransaction) {
+                return delegate.equals(((MonitoredTransaction) o).delegate);
+            }
+            return delegate.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    /**
+     * {@link XAResource} counting completions
+     */
+    private class MonitoredXAResource implements XAResource {
+
+        private final XAResource delegate;
+
+        MonitoredXAResource(XAResource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void start(Xid xid, int flags) throws XAException {
+            delegate.start(xid, flags);
+        }
+
+        @Override
+        public void end(Xid xid, int flags) throws XAException {
+            delegate.end(xid, flags);
+        }
+
+        @Override
+        public int prepare(Xid xid) throws XAException {
+            int result = delegate.prepare(xid);
+            if (result == XA_RDONLY) {
+                statistics.readOnly.incrementAndGet();
+            }
+            return result;
+        }
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            delegate.commit(xid, onePhase);
+            if (onePhase) {
+                statistics.onePhaseCommits.incrementAndGet();
+            } else {
+                statistics.twoPhaseCommits.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void rollback(Xid xid) throws XAException {
+            delegate.rollback(xid);
+            statistics.rollbacks.incrementAndGet();
+        }
+
+        @Override
+        public void forget(Xid xid) throws XAException {
+            delegate.forget(xid);
+        }
+
+        @Override
+        public Xid[] recover(int flag) throws XAException {
+            return delegate.recover(flag);
+        }
+
+        @Override
+        public boolean isSameRM(XAResource xaResource) throws XAException {
+            return delegate.isSameRM(xaResource instanceof MonitoredXAResource
+                    ? ((MonitoredXAResource) xaResource).delegate : xaResource);
+        }
+
+        @Override
+        public int getTransactionTimeout() throws XAException {
+            return delegate.getTransactionTimeout();
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return delegate.setTransactionTimeout(seconds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            return o instanceof MonitoredXAResource && delegate.equals(((MonitoredXAResource) o).delegate);
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate.hashCode();
+        }
+    }
+
+}
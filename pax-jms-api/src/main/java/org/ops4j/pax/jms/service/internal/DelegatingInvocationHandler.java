@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+
+/**
+ * {@link InvocationHandler} of a {@link Proxy} wrapping JMS object (like pooled session). Exposes the wrapped
+ * object, so provider specific API (e.g., ActiveMQ blob messages) remains reachable through the proxies.
+ */
+public interface DelegatingInvocationHandler extends InvocationHandler {
+
+    /**
+     * @return object wrapped by the proxy
+     */
+    Object getDelegate();
+
+    /**
+     * Returns object wrapped by given proxy.
+     *
+     * @param object possibly a proxy
+     * @return wrapped object or {@code null} if given object is not a proxy with {@link DelegatingInvocationHandler}
+     */
+    static Object delegateOf(Object object) {
+        if (object != null && Proxy.isProxyClass(object.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(object);
+            if (handler instanceof DelegatingInvocationHandler) {
+                return ((DelegatingInvocationHandler) handler).getDelegate();
+            }
+        }
+        return null;
+    }
+
+}
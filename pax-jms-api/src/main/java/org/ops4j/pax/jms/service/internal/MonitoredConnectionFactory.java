@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+
+/**
+ * {@link ConnectionFactory} delegating to a pool and exposing statistics collected outside of the pool (like
+ * {@link CompletionCountingTransactionManager.Statistics}). Closing it closes the delegate.
+ */
+public class MonitoredConnectionFactory implements ConnectionFactory, ConnectionFactoryStatistics, AutoCloseable {
+
+    private final ConnectionFactory delegate;
+    private final ConnectionFactoryStatistics statistics;
+
+    public MonitoredConnectionFactory(ConnectionFactory delegate, ConnectionFactoryStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    public ConnectionFactory getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        return statistics.getStatistics();
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return delegate.createConnection();
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        return delegate.createConnection(userName, password);
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return delegate.createContext();
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return delegate.createContext(userName, password);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        return delegate.createContext(userName, password, sessionMode);
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return delegate.createContext(sessionMode);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (delegate instanceof AutoCloseable) {
+            ((AutoCloseable) delegate).close();
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.QueueConnection;
+import javax.jms.Session;
+import javax.jms.TopicConnection;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link ConnectionFactory} wrapping XA-aware pool and keeping transaction affinity of borrowed resources.
+ * Within single JTA transaction (and for the same credentials), all {@code createConnection()} calls return the same
+ * connection and all {@code createSession()} calls return the same, already enlisted session - so the transaction
+ * has single branch for the pool instead of new branch (and {@code XAResource.start()/end()} pair) for each
+ * session. With single branch, transaction manager can use one-phase commit.</p>
+ *
+ * <p>{@code close()} of returned connections (and contexts) is ignored - they're closed after the transaction
+ * completes, so they can't be used after the transaction any more. The wrapped pool is expected to ignore
+ * {@code close()} of enlisted sessions and to release them after completion (which is what pooled-jms does).
+ * Outside of a transaction, all calls are passed to the pool.</p>
+ *
+ * <p>Because of that changed lifecycle of connections, it's opt-in - enabled with {@code pool.transactionAffinity=true}
+ * property by XA pooled connection factory factories.</p>
+ */
+public class TransactionAffinityConnectionFactory implements ConnectionFactory {
+
+    public static final Logger LOG = LoggerFactory.getLogger(TransactionAffinityConnectionFactory.class);
+
+    public static final String TRANSACTION_AFFINITY = "transactionAffinity";
+
+    private final ConnectionFactory delegate;
+    private final TransactionManager transactionManager;
+
+    private final Map<Key, Affinity> affinities = new ConcurrentHashMap<>();
+
+    public TransactionAffinityConnectionFactory(ConnectionFactory delegate, TransactionManager transactionManager) {
+        this.delegate = delegate;
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * Wraps the pool if {@link #TRANSACTION_AFFINITY} pool property is enabled. The property is removed from
+     * pool properties.
+     *
+     * @param pool XA-aware pool
+     * @param transactionManager transaction manager used by the pool
+     * @param poolProps pool properties
+     * @return wrapped or original pool
+     */
+    public static ConnectionFactory wrap(ConnectionFactory pool, TransactionManager transactionManager,
+            Map<String, Object> poolProps) {
+        Object affinity = poolProps.remove(TRANSACTION_AFFINITY);
+        if (affinity == null || !Boolean.parseBoolean(affinity.toString().trim())) {
+            return pool;
+        }
+        return new TransactionAffinityConnectionFactory(pool, transactionManager);
+    }
+
+    public ConnectionFactory getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return createConnection(null, null);
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        Affinity affinity;
+        try {
+            affinity = affinity(userName, password);
+        } catch (JMSRuntimeException e) {
+            throw (JMSException) new JMSException(e.getMessage()).initCause(e);
+        }
+        if (affinity == null) {
+            return userName == null ? delegate.createConnection() : delegate.createConnection(userName, password);
+        }
+        synchronized (affinity) {
+            if (affinity.connection == null) {
+                Connection connection = userName == null ? delegate.createConnection()
+                        : delegate.createConnection(userName, password);
+                affinity.connection = connection;
+                affinity.connectionHandle = connectionHandle(affinity, connection);
+            }
+            return affinity.connectionHandle;
+        }
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return createContext(null, null, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return createContext(userName, password, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return createContext(null, null, sessionMode);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        Affinity affinity = affinity(userName, password);
+        if (affinity == null) {
+            return userName == null ? delegate.createContext(sessionMode)
+                    : delegate.createContext(userName, password, sessionMode);
+        }
+        synchronized (affinity) {
+            if (affinity.context == null) {
+                // session mode is ignored by XA contexts within transaction anyway
+                JMSContext context = userName == null ? delegate.createContext(sessionMode)
+                        : delegate.createContext(userName, password, sessionMode);
+                affinity.context = context;
+                affinity.contextHandle = (JMSContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { JMSContext.class }, (proxy, method, args) -> {
+                            if ("close".equals(method.getName())) {
+                                return null;
+                            }
+                            return invoke(context, method, args);
+                        });
+            }
+            return affinity.contextHandle;
+        }
+    }
+
+    /**
+     * @return number of transactions with resources held by this connection factory
+     */
+    public int getTransactionCount() {
+        return affinities.size();
+    }
+
+    /**
+     * Returns affinity of current transaction or {@code null} if there's no active transaction
+     */
+    private Affinity affinity(String userName, String password) {
+        Transaction tx;
+        try {
+            if (transactionManager.getStatus() != Status.STATUS_ACTIVE) {
+                return null;
+            }
+            tx = transactionManager.getTransaction();
+        } catch (SystemException e) {
+            throw (JMSRuntimeException) new JMSRuntimeException("Can't get current transaction: "
+                    + e.getMessage()).initCause(e);
+        }
+        if (tx == null) {
+            return null;
+        }
+        Key key = new Key(tx, userName, password);
+        Affinity affinity = affinities.get(key);
+        if (affinity == null) {
+            affinity = new Affinity(key);
+            try {
+                tx.registerSynchronization(affinity);
+            } catch (RollbackException | SystemException | IllegalStateException e) {
+                // transaction can't be used for new work, let the pool handle it
+                LOG.debug("Can't register synchronization in {}: {}", tx, e.getMessage());
+                return null;
+            }
+            affinities.put(key, affinity);
+        }
+        return affinity;
+    }
+
+    private Connection connectionHandle(Affinity affinity, Connection connection) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : new Class<?>[] { QueueConnection.class, TopicConnection.class }) {
+            if (iface.isInstance(connection)) {
+                interfaces.add(iface);
+            }
+        }
+        interfaces.add(Connection.class);
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), interfaces.toArray(new Class<?>[0]),
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            return null;
+                        case "createSession":
+                        case "createQueueSession":
+                        case "createTopicSession":
+                            synchronized (affinity) {
+                                if (affinity.session != null && method.getReturnType().isInstance(affinity.session)) {
+                                    return affinity.session;
+                                }
+                                Session session = (Session) invoke(connection, method, args);
+                                if (affinity.session == null) {
+                                    affinity.session = session;
+                                }
+                                return session;
+                            }
+                        default:
+                            return invoke(connection, method, args);
+                    }
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Key {
+        private final Transaction transaction;
+        private final String userName;
+        private final String password;
+
+        Key(Transaction transaction, String userName, String password) {
+            this.transaction = transaction;
+            this.userName = userName;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return transaction.equals(key.transaction) && Objects.equals(userName, key.userName)
+                    && Objects.equals(password, key.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(transaction, userName, password);
+        }
+    }
+
+    /**
+     * Resources used by single transaction, released after the transaction completes
+     */
+    private class Affinity implements Synchronization {
+        private final Key key;
+        private Connection connection;
+        private Connection connectionHandle;
+        private Session session;
+        private JMSContext context;
+        private JMSContext contextHandle;
+
+        Affinity(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            affinities.remove(key);
+            synchronized (this) {
+                if (context != null) {
+                    try {
+                        context.close();
+                    } catch (JMSRuntimeException e) {
+                        LOG.warn("Error closing JMS context: " + e.getMessage(), e);
+                    }
+                }
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (JMSException e) {
+                        LOG.warn("Error closing connection: " + e.getMessage(), e);
+                    }
+                }
+                session = null;
+                connectionHandle = null;
+                contextHandle = null;
+            }
+        }
+    }
+
+}
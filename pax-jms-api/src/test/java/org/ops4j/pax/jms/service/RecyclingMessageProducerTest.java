@@ -0,0 +1,185 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RecyclingMessageProducerTest {
+
+    private Session session;
+    private MessageProducer producer;
+
+    @Before
+    public void before() throws Exception {
+        session = mock(Session.class);
+        producer = mock(MessageProducer.class);
+        when(session.createTextMessage()).thenAnswer(i -> message(TextMessage.class));
+        when(session.createBytesMessage()).thenAnswer(i -> message(BytesMessage.class));
+        when(session.createProducer(any())).thenReturn(producer);
+    }
+
+    @Test
+    public void textMessageIsReusedWithoutLeftovers() throws Exception {
+        RecyclingMessageProducer recycling = new RecyclingMessageProducer(session, producer);
+
+        TextMessage first = recycling.textMessage("m1");
+        first.setStringProperty("p1", "v1");
+        first.setJMSCorrelationID("c1");
+        first.setJMSReplyTo(mock(Queue.class));
+        first.setJMSType("t1");
+        producer.send(first);
+
+        TextMessage second = recycling.textMessage("m2");
+        assertThat(second, sameInstance(first));
+        assertThat(second.getText(), equalTo("m2"));
+        assertThat(second.getObjectProperty("p1"), nullValue());
+        assertThat(second.getJMSCorrelationID(), nullValue());
+        assertThat(second.getJMSReplyTo(), nullValue());
+        assertThat(second.getJMSType(), nullValue());
+        verify(session, times(1)).createTextMessage();
+    }
+
+    @Test
+    public void bytesMessageIsReusedWithoutLeftovers() throws Exception {
+        RecyclingMessageProducer recycling = new RecyclingMessageProducer(session, producer);
+
+        recycling.send(new byte[] { 1, 2, 3 }, Collections.singletonMap("p2", 42));
+        BytesMessage first = recycling.bytesMessage(new byte[] { 9, 4, 9 }, 1, 1);
+        assertThat(first.getBodyLength(), equalTo(1L));
+        assertThat(first.getObjectProperty("p2"), nullValue());
+
+        recycling.send(new byte[] { 5, 6 });
+        BytesMessage second = recycling.bytesMessage(new byte[0], 0, 0);
+        assertThat(second, sameInstance(first));
+        assertThat(second.getBodyLength(), equalTo(0L));
+        verify(session, times(1)).createBytesMessage();
+        verify(producer, times(2)).send(first);
+    }
+
+    @Test
+    public void propertiesApplyToSingleSend() throws Exception {
+        RecyclingMessageProducer recycling = new RecyclingMessageProducer(session, producer);
+
+        Map<String, Object> sent = new HashMap<>();
+        doAnswer(i -> {
+            Message m = i.getArgument(0);
+            sent.put(((TextMessage) m).getText(), m.getObjectProperty("p1"));
+            return null;
+        }).when(producer).send(any(Message.class));
+
+        recycling.send("m1", Collections.singletonMap("p1", "v1"));
+        recycling.send("m2");
+        assertThat(sent.get("m1"), equalTo("v1"));
+        assertThat(sent.containsKey("m2"), equalTo(true));
+        assertThat(sent.get("m2"), nullValue());
+    }
+
+    @Test
+    public void nullPropertiesAreEmpty() throws Exception {
+        RecyclingMessageProducer recycling = new RecyclingMessageProducer(session, producer);
+
+        recycling.send("m1", null);
+        recycling.send(new byte[] { 1 }, null);
+        verify(producer, times(2)).send(any(Message.class));
+    }
+
+    @Test
+    public void closesOnlyOwnProducer() throws Exception {
+        new RecyclingMessageProducer(session, producer).close();
+        verify(producer, never()).close();
+
+        new RecyclingMessageProducer(session, mock(Destination.class)).close();
+        verify(producer).close();
+    }
+
+    /**
+     * Creates minimal in-memory message keeping body, properties and the headers reset by
+     * {@link RecyclingMessageProducer}.
+     */
+    private static <T extends Message> T message(Class<T> type) {
+        Map<String, Object> headers = new HashMap<>();
+        Map<String, Object> properties = new HashMap<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "clearBody":
+                    headers.remove("text");
+                    bytes.reset();
+                    return null;
+                case "clearProperties":
+                    properties.clear();
+                    return null;
+                case "setText":
+                    headers.put("text", args[0]);
+                    return null;
+                case "getText":
+                    return headers.get("text");
+                case "writeBytes":
+                    bytes.write((byte[]) args[0], args.length > 1 ? (int) args[1] : 0,
+                            args.length > 1 ? (int) args[2] : ((byte[]) args[0]).length);
+                    return null;
+                case "getBodyLength":
+                    return (long) bytes.size();
+                case "setStringProperty":
+                case "setObjectProperty":
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                case "getObjectProperty":
+                    return properties.get((String) args[0]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    if (name.startsWith("setJMS")) {
+                        headers.put(name.substring(3), args[0]);
+                        return null;
+                    } else if (name.startsWith("getJMS")) {
+                        return headers.get(name.substring(3));
+                    }
+                    throw new UnsupportedOperationException(name);
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Strategy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BalancingConnectionFactoryTest {
+
+    @Test
+    public void weighted() throws Exception {
+        ConnectionFactory cf1 = cf();
+        Member m1 = new Member("m1", 2, cf1);
+        Member m2 = new Member("m2", 1, cf());
+        BalancingConnectionFactory cf = new BalancingConnectionFactory(Arrays.asList(m1, m2), Strategy.WEIGHTED, 1000);
+
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            connections.add(cf.createConnection());
+        }
+        assertThat(m1.getOutstanding(), equalTo(4));
+        assertThat(m2.getOutstanding(), equalTo(2));
+        verify(cf1, times(4)).createConnection();
+        for (Connection c : connections) {
+            c.close();
+            c.close();
+        }
+        assertThat(m1.getOutstanding(), equalTo(0));
+        assertThat(m2.getOutstanding(), equalTo(0));
+    }
+
+    @Test
+    public void leastOutstanding() throws Exception {
+        Member m1 = new Member("m1", 1, cf());
+        Member m2 = new Member("m2", 1, cf());
+        BalancingConnectionFactory cf = new BalancingConnectionFactory(Arrays.asList(m1, m2), Strategy.LEAST_OUTSTANDING, 1000);
+
+        Connection c1 = cf.createConnection();
+        Connection c2 = cf.createConnection();
+        assertThat(m1.getOutstanding(), equalTo(1));
+        assertThat(m2.getOutstanding(), equalTo(1));
+        c1.close();
+        try (Connection c3 = cf.createConnection()) {
+            assertThat(m1.getOutstanding(), equalTo(1));
+            assertThat(m2.getOutstanding(), equalTo(1));
+        }
+        c2.close();
+        assertThat(m1.getOutstanding() + m2.getOutstanding(), equalTo(0));
+    }
+
+    @Test
+    public void failingMemberIsEjected() throws Exception {
+        ConnectionFactory deadCf = mock(ConnectionFactory.class);
+        when(deadCf.createConnection()).thenThrow(new JMSException("Connection refused"));
+        when(deadCf.createContext()).thenThrow(new JMSRuntimeException("Connection refused"));
+        Member dead = new Member("dead", 10, deadCf);
+        Member live = new Member("live", 1, cf());
+        BalancingConnectionFactory cf = new BalancingConnectionFactory(Arrays.asList(dead, live), Strategy.POWER_OF_TWO_CHOICES, 60000);
+
+        for (int i = 0; i < 5; i++) {
+            cf.createConnection().close();
+        }
+        assertThat(dead.isEjected(), equalTo(true));
+        assertThat(live.isEjected(), equalTo(false));
+        assertThat(dead.getOutstanding(), equalTo(0));
+        // ejected member is not tried while there's a healthy one
+        verify(deadCf, times(1)).createConnection();
+
+        BalancingConnectionFactory deadOnly = new BalancingConnectionFactory(Collections.singletonList(dead), Strategy.WEIGHTED, 60000);
+        try {
+            deadOnly.createConnection();
+            fail("Should not connect to dead member");
+        } catch (JMSException expected) {
+        }
+        try {
+            deadOnly.createContext();
+            fail("Should not create context with dead member");
+        } catch (JMSRuntimeException expected) {
+        }
+        assertThat(dead.getOutstanding(), equalTo(0));
+    }
+
+    @Test
+    public void membersOfOtherType() throws Exception {
+        BalancingConnectionFactory cf = new BalancingConnectionFactory(
+                Collections.singletonList(new Member("m1", 1, cf())), Strategy.WEIGHTED, 1000);
+        try {
+            cf.createXAConnection();
+            fail("Should fail without XA members");
+        } catch (JMSException expected) {
+        }
+        try {
+            new Member("m2", 0, cf());
+            fail("Should fail because of invalid weight");
+        } catch (JMSRuntimeException expected) {
+        }
+    }
+
+    private ConnectionFactory cf() throws JMSException {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        when(cf.createConnection()).thenAnswer(i -> mock(Connection.class));
+        when(cf.createContext()).thenAnswer(i -> mock(JMSContext.class));
+        return cf;
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.service.internal;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BeanConfigTest {
+
+    @Test
+    public void numericProperties() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.a", " 42 ");
+        props.put("pool.b", 7);
+        props.put("pool.c", "0.25");
+        assertThat(BeanConfig.getLong(props, "pool.a", 1L), equalTo(42L));
+        assertThat(BeanConfig.getInt(props, "pool.b", 1), equalTo(7));
+        assertThat(BeanConfig.getInt(props, "pool.x", 1), equalTo(1));
+        assertThat(BeanConfig.getDouble(props, "pool.c", 1d), equalTo(0.25d));
+
+        Dictionary<String, Object> config = new Hashtable<>();
+        config.put("async.threads", "3");
+        assertThat(BeanConfig.getInt(config, "async.threads", 4), equalTo(3));
+        assertThat(BeanConfig.getInt(config, "async.queueSize", 4), equalTo(4));
+    }
+
+    @Test
+    public void invalidNumericProperty() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.a", "many");
+        try {
+            BeanConfig.getLong(props, "pool.a", 1L);
+            fail("Should not accept non-numeric value");
+        } catch (IllegalArgumentException expected) {
+            assertThat(expected.getMessage(), equalTo("Problem in ConnectionFactory config: invalid pool.a value: many"));
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.artemis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.Session;
+
+import org.apache.activemq.artemis.jms.client.ActiveMQBytesMessage;
+import org.ops4j.pax.jms.service.StreamingMessageSupport;
+
+/**
+ * {@link StreamingMessageSupport} using Artemis core protocol large messages. Content is sent in chunks of
+ * {@code minLargeMessageSize} bytes and received messages are written to output stream chunk by chunk.
+ */
+public class ArtemisStreamingMessageSupport implements StreamingMessageSupport {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public Message createMessage(Session session, InputStream content) throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        if (!(message instanceof ActiveMQBytesMessage)) {
+            throw new JMSException("Streaming is supported only for sessions using Artemis core protocol");
+        }
+        ((ActiveMQBytesMessage) message).setInputStream(content);
+        return message;
+    }
+
+    @Override
+    public void writeTo(Message message, OutputStream output) throws JMSException {
+        if (message instanceof ActiveMQBytesMessage) {
+            ((ActiveMQBytesMessage) message).saveToOutputStream(output);
+        } else if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            try {
+                while ((read = bytesMessage.readBytes(buffer)) > 0) {
+                    output.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                throw (JMSException) new JMSException("Unable to write message body: " + e.getMessage()).initCause(e);
+            }
+        } else {
+            throw new MessageFormatException("Only bytes messages can be written to output stream");
+        }
+    }
+
+}
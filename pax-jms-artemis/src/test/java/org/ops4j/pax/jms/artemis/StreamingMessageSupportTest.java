@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.artemis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.artemis.jms.client.ActiveMQQueue;
+import org.apache.activemq.artemis.junit.EmbeddedActiveMQResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.StreamingMessageSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class StreamingMessageSupportTest {
+
+    public static final Logger LOG = LoggerFactory.getLogger(StreamingMessageSupportTest.class);
+
+    private static final long SIZE = 32L * 1024 * 1024;
+
+    @Rule
+    public EmbeddedActiveMQResource resource = new EmbeddedActiveMQResource(new File("target/test-classes/test-broker.xml").getAbsoluteFile().toURI().toURL().toString());
+
+    public StreamingMessageSupportTest() throws MalformedURLException {
+    }
+
+    @Test
+    public void streamLargeMessage() throws Exception {
+        StreamingMessageSupport streaming = new ArtemisStreamingMessageSupport();
+        HashMap<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, "tcp://127.0.0.1:61616");
+        ConnectionFactory cf = new ArtemisConnectionFactoryFactory().createConnectionFactory(props);
+
+        try (Connection con = cf.createConnection()) {
+            con.start();
+            ActiveMQQueue dest = new ActiveMQQueue("large");
+
+            CheckedInputStream content = new CheckedInputStream(new PatternInputStream(SIZE), new CRC32());
+            long start = System.currentTimeMillis();
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (MessageProducer producer = session.createProducer(dest)) {
+                    producer.send(streaming.createMessage(session, content));
+                }
+            }
+
+            CountingOutputStream counter = new CountingOutputStream();
+            CheckedOutputStream output = new CheckedOutputStream(counter, new CRC32());
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (MessageConsumer consumer = session.createConsumer(dest)) {
+                    Message message = consumer.receive(10000);
+                    streaming.writeTo(message, output);
+                }
+            }
+            LOG.info("Streamed {}MB in {}ms", SIZE / 1024 / 1024, System.currentTimeMillis() - start);
+
+            assertThat(counter.count, equalTo(SIZE));
+            assertThat(output.getChecksum().getValue(), equalTo(content.getChecksum().getValue()));
+        }
+    }
+
+    @Test
+    public void writeRegularBytesMessage() throws Exception {
+        StreamingMessageSupport streaming = new ArtemisStreamingMessageSupport();
+        HashMap<String, Object> props = new HashMap<>();
+        props.put(ConnectionFactoryFactory.JMS_URL, "tcp://127.0.0.1:61616");
+        ConnectionFactory cf = new ArtemisConnectionFactoryFactory().createConnectionFactory(props);
+
+        try (Connection con = cf.createConnection()) {
+            con.start();
+            ActiveMQQueue dest = new ActiveMQQueue("small");
+            try (Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
+                try (MessageProducer producer = session.createProducer(dest)) {
+                    producer.send(streaming.createMessage(session, new ByteArrayInputStream("Hello!".getBytes())));
+                }
+                try (MessageConsumer consumer = session.createConsumer(dest)) {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    streaming.writeTo(consumer.receive(10000), output);
+                    assertThat(new String(output.toByteArray()), equalTo("Hello!"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates content of given size without keeping it in memory.
+     */
+    private static class PatternInputStream extends InputStream {
+        private final long size;
+        private long position;
+
+        PatternInputStream(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            return position < size ? (int) (position++ % 251) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            int n = (int) Math.min(len, size - position);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) (position++ % 251);
+            }
+            return n;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.ops4j.pax.jms.service.RecyclingMessageProducer;
+
+/**
+ * <p>Allocation of sending with a new message per send compared to {@link RecyclingMessageProducer}. Session and
+ * producer are in-memory stubs creating ActiveMQ message implementations, so the broker and the network don't hide
+ * allocation of the messages themselves. Run with GC profiler to see allocation per send:</p>
+ * <pre>
+ * mvn -Pbenchmark -pl pax-jms-api,pax-jms-benchmark package
+ * java -jar pax-jms-benchmark/target/benchmarks.jar RecyclingMessageProducerBenchmark -prof gc
+ * </pre>
+ * <p>Compare {@code gc.alloc.rate.norm} (bytes per operation) of the benchmarks.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecyclingMessageProducerBenchmark {
+
+    private static final Map<String, Object> PROPERTIES = Collections.singletonMap("key", "value");
+
+    private final byte[] bytes = new byte[256];
+
+    private Session session;
+    private MessageProducer producer;
+    private RecyclingMessageProducer recycling;
+
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createTextMessage":
+                            return new ActiveMQTextMessage();
+                        case "createBytesMessage":
+                            return new ActiveMQBytesMessage();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        // consumes sent message, like a producer which doesn't keep a reference to it after send()
+        producer = (MessageProducer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { MessageProducer.class }, (proxy, method, args) -> {
+                    if (args != null && args.length > 0) {
+                        this.blackhole.consume(args[0]);
+                    }
+                    return null;
+                });
+        recycling = new RecyclingMessageProducer(session, producer);
+    }
+
+    @Benchmark
+    public void newTextMessage() throws JMSException {
+        Message message = session.createTextMessage("Hello");
+        message.setObjectProperty("key", "value");
+        producer.send(message);
+    }
+
+    @Benchmark
+    public void recycledTextMessage() throws JMSException {
+        recycling.send("Hello", PROPERTIES);
+    }
+
+    @Benchmark
+    public void newBytesMessage() throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        message.writeBytes(bytes);
+        producer.send(message);
+    }
+
+    @Benchmark
+    public void recycledBytesMessage() throws JMSException {
+        recycling.send(bytes);
+    }
+
+}
@@ -19,6 +19,7 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 
 import org.ops4j.pax.jms.config.ConfigLoader;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -29,6 +30,7 @@ import org.osgi.util.tracker.ServiceTracker;
 public class Activator implements BundleActivator {
 
     private static final String FACTORY_PID = "org.ops4j.connectionfactory";
+    private static final String CONSUMER_FACTORY_PID = "org.ops4j.consumer";
 
     private ServiceTracker<?, ?> connectionFactoryTracker;
 
@@ -36,6 +38,10 @@ public class Activator implements BundleActivator {
     private ServiceRegistration<ConfigLoader> configLoaderRegistration;
     private ConnectionFactoryConfigManager configManager;
     private ServiceRegistration<ManagedServiceFactory> registration;
+    private ConsumerConfigManager consumerConfigManager;
+    private ServiceRegistration<ManagedServiceFactory> consumerRegistration;
+    private ServiceRegistration<ConnectionFactoryFactory> balancedRegistration;
+    private ServiceRegistration<ConnectionFactoryFactory> shardedRegistration;
 
     @Override
     public void start(BundleContext context) throws Exception {
@@ -50,6 +56,25 @@ public class Activator implements BundleActivator {
         //  - org.ops4j.pax.jms.service.ConnectionFactoryFactory services
         registration = context.registerService(ManagedServiceFactory.class, configManager, props);
 
+        // this service will track org.ops4j.consumer factory PIDs binding javax.jms.MessageListener services
+        // to managed javax.jms.ConnectionFactory services
+        Dictionary<String, String> consumerProps = new Hashtable<>();
+        consumerProps.put(Constants.SERVICE_PID, CONSUMER_FACTORY_PID);
+        consumerConfigManager = new ConsumerConfigManager(context);
+        consumerRegistration = context.registerService(ManagedServiceFactory.class, consumerConfigManager, consumerProps);
+
+        // provider-independent ConnectionFactoryFactory balancing connections across other connection factories
+        Dictionary<String, String> balancedProps = new Hashtable<>();
+        balancedProps.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_TYPE, BalancedConnectionFactoryFactory.TYPE);
+        balancedRegistration = context.registerService(ConnectionFactoryFactory.class,
+                new BalancedConnectionFactoryFactory(context), balancedProps);
+
+        // ConnectionFactoryFactory routing destinations to other connection factories by consistent hashing
+        Dictionary<String, String> shardedProps = new Hashtable<>();
+        shardedProps.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_TYPE, ShardedConnectionFactoryFactory.TYPE);
+        shardedRegistration = context.registerService(ConnectionFactoryFactory.class,
+                new ShardedConnectionFactoryFactory(context), shardedProps);
+
         // this service will track:
         //  - javax.jms.ConnectionFactory services
         //  - javax.jms.XAConnectionFactory services
@@ -72,8 +97,12 @@ public class Activator implements BundleActivator {
         if (connectionFactoryTracker != null) {
             connectionFactoryTracker.close();
         }
+        consumerRegistration.unregister();
+        consumerConfigManager.destroy();
         registration.unregister();
         configManager.destroy();
+        balancedRegistration.unregister();
+        shardedRegistration.unregister();
         configLoaderRegistration.unregister();
         externalConfigLoader.destroy();
     }
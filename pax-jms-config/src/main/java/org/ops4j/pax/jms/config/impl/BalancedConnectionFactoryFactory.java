@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSRuntimeException;
+import javax.jms.XAConnectionFactory;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Strategy;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link ConnectionFactoryFactory} registered with {@code type=balanced}. Created connection factory spreads
+ * {@code createConnection()} calls across members, which are either:</p>
+ * <ul>
+ *     <li>other {@link ConnectionFactory} services, configured with {@code members} property - a comma separated
+ *     list of their PIDs or names ({@code name} or {@code osgi.jndi.service.name}), each optionally followed by
+ *     {@code *weight}. Members are tracked dynamically - only currently registered ones are used.</li>
+ *     <li>connection factories created for each of comma separated {@code urls} (optionally followed by
+ *     {@code *weight}) by {@link ConnectionFactoryFactory} of {@code memberType} type. All other properties are
+ *     passed to this factory. The factory is tracked dynamically - members are created when it becomes available
+ *     and closed when it goes away.</li>
+ * </ul>
+ * <p>Members are selected using {@code balancing} strategy ({@code powerOfTwoChoices} by default,
+ * {@code leastOutstanding} or {@code weighted}). Members failing to create connections are ejected for
+ * {@code ejectionTime} milliseconds (30000 by default).</p>
+ *
+ * <p>XA connection factories are not supported, because transaction recovery would reach only single member.</p>
+ */
+public class BalancedConnectionFactoryFactory implements ConnectionFactoryFactory {
+
+    public static final String TYPE = "balanced";
+
+    static final String MEMBERS = "members";
+    static final String URLS = "urls";
+    static final String MEMBER_TYPE = "memberType";
+    static final String BALANCING = "balancing";
+    static final String EJECTION_TIME = "ejectionTime";
+
+    private static final long DEFAULT_EJECTION_TIME = 30000L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(BalancedConnectionFactoryFactory.class);
+
+    private final BundleContext context;
+
+    public BalancedConnectionFactoryFactory(BundleContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        Map<String, Object> config = new HashMap<>(props);
+        Object members = config.remove(MEMBERS);
+        Object urls = config.remove(URLS);
+        Object memberType = config.remove(MEMBER_TYPE);
+        Object balancing = config.remove(BALANCING);
+        Object ejection = config.remove(EJECTION_TIME);
+
+        Strategy strategy = balancing == null ? Strategy.POWER_OF_TWO_CHOICES : Strategy.of(balancing.toString());
+        long ejectionMillis = DEFAULT_EJECTION_TIME;
+        if (ejection != null) {
+            try {
+                ejectionMillis = Long.parseLong(ejection.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new JMSRuntimeException("Invalid " + EJECTION_TIME + " value: " + ejection);
+            }
+        }
+
+        if ((members == null) == (urls == null)) {
+            throw new JMSRuntimeException("Balanced ConnectionFactory requires either " + MEMBERS + " or "
+                    + URLS + " property");
+        }
+        if (members != null) {
+            MemberTracker tracker = new MemberTracker(context, MemberTracker.weights(members.toString()), m -> { });
+            tracker.open();
+            return new BalancedConnectionFactory(tracker::getMembers, strategy, ejectionMillis, tracker::close);
+        }
+
+        if (memberType == null) {
+            throw new JMSRuntimeException("The " + MEMBER_TYPE + " property is required when using " + URLS);
+        }
+        UrlMemberTracker tracker = new UrlMemberTracker(context, memberType.toString(),
+                MemberTracker.weights(urls.toString()), config);
+        tracker.open();
+        return new BalancedConnectionFactory(tracker::getMembers, strategy, ejectionMillis, tracker::close);
+    }
+
+    @Override
+    public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        throw new JMSRuntimeException("Balanced XA ConnectionFactory is not supported");
+    }
+
+    private static void closeMembers(List<Member> members) {
+        for (Member m : members) {
+            if (m.getConnectionFactory() instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) m.getConnectionFactory()).close();
+                } catch (Exception e) {
+                    LOG.warn("Error closing " + m + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks {@link ConnectionFactoryFactory} services of {@code memberType} and creates member connection factories
+     * for configured URLs using one of them. Members are recreated when the used factory goes away and another one
+     * (or a new one) is available.
+     */
+    private static class UrlMemberTracker extends ServiceTracker<ConnectionFactoryFactory, ConnectionFactoryFactory> {
+
+        private final String memberType;
+        private final Map<String, Integer> urls;
+        private final Map<String, Object> config;
+
+        // guarded by this
+        private ConnectionFactoryFactory current;
+        private volatile List<Member> members = Collections.emptyList();
+
+        UrlMemberTracker(BundleContext context, String memberType, Map<String, Integer> urls,
+                Map<String, Object> config) {
+            super(context, filter(context, memberType), null);
+            this.memberType = memberType;
+            this.urls = urls;
+            this.config = config;
+        }
+
+        List<Member> getMembers() {
+            return members;
+        }
+
+        @Override
+        public ConnectionFactoryFactory addingService(ServiceReference<ConnectionFactoryFactory> reference) {
+            ConnectionFactoryFactory cff = context.getService(reference);
+            if (cff == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (current == null) {
+                    use(cff);
+                }
+            }
+            return cff;
+        }
+
+        @Override
+        public void removedService(ServiceReference<ConnectionFactoryFactory> reference,
+                ConnectionFactoryFactory cff) {
+            synchronized (this) {
+                if (cff == current) {
+                    LOG.info("ConnectionFactoryFactory of {} type unavailable", memberType);
+                    List<Member> old = members;
+                    members = Collections.emptyList();
+                    current = null;
+                    closeMembers(old);
+                    ConnectionFactoryFactory replacement = getService();
+                    if (replacement != null && replacement != cff) {
+                        use(replacement);
+                    }
+                }
+            }
+            context.ungetService(reference);
+        }
+
+        private void use(ConnectionFactoryFactory cff) {
+            current = cff;
+            List<Member> list = new ArrayList<>();
+            try {
+                for (Map.Entry<String, Integer> e : urls.entrySet()) {
+                    Map<String, Object> memberConfig = new HashMap<>(config);
+                    memberConfig.put(ConnectionFactoryFactory.JMS_URL, e.getKey());
+                    list.add(new Member(e.getKey(), e.getValue(), cff.createConnectionFactory(memberConfig)));
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Can't create ConnectionFactory members of {} type: {}", memberType, e.getMessage(), e);
+                closeMembers(list);
+                return;
+            }
+            LOG.info("ConnectionFactory members {} available", urls.keySet());
+            members = list;
+        }
+
+        private static Filter filter(BundleContext context, String memberType) {
+            try {
+                return context.createFilter("(&(" + Constants.OBJECTCLASS + "="
+                        + ConnectionFactoryFactory.class.getName() + ")("
+                        + ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_TYPE + "="
+                        + MemberTracker.escape(memberType) + "))");
+            } catch (InvalidSyntaxException e) {
+                throw (JMSRuntimeException) new JMSRuntimeException("Invalid " + MEMBER_TYPE + ": " + memberType)
+                        .initCause(e);
+            }
+        }
+    }
+
+    /**
+     * Balancing connection factory closed together with its {@link ConnectionFactoryRegistration}.
+     */
+    static class BalancedConnectionFactory extends BalancingConnectionFactory implements AutoCloseable {
+
+        private final Runnable onClose;
+
+        BalancedConnectionFactory(Supplier<List<Member>> members, Strategy strategy, long ejectionMillis,
+                Runnable onClose) {
+            super(members, strategy, ejectionMillis);
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void close() {
+            onClose.run();
+        }
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TopicConnection;
+import javax.jms.TopicSession;
+import javax.jms.XAConnection;
+import javax.jms.XAJMSContext;
+import javax.jms.XAQueueConnection;
+import javax.jms.XASession;
+import javax.jms.XATopicConnection;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+import org.ops4j.pax.jms.service.internal.DelegatingInvocationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getInt;
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getLong;
+
+/**
+ * <p>Pooled {@link ConnectionFactory} wrapper limiting number of concurrently borrowed sessions and contexts,
+ * independently of pool backend. Callers over the limit wait in a fair (FIFO) queue for at most configured time.
+ * When the queue is full, borrow is rejected immediately.</p>
+ *
+ * <p>Rejected and timed out borrows fail with {@link #QUEUE_FULL} or {@link #BORROW_TIMEOUT} error code - with
+ * {@link JMSRuntimeException} for {@code createContext()} and {@link JMSException} for {@code createSession()}
+ * methods, which declare checked exceptions.</p>
+ *
+ * <p>Wait time histogram, rejected and timed out borrows and current queue depth are exported as
+ * {@link ConnectionFactoryStatistics} ({@code borrow.*} keys) together with statistics of the pool, so
+ * pax-jms-config registers them as a service next to the connection factory.</p>
+ */
+public class BorrowQueueConnectionFactory implements ConnectionFactory, ConnectionFactoryStatistics, AutoCloseable {
+
+    /** Maximum number of concurrently borrowed sessions and contexts - the queue is enabled when set */
+    public static final String BORROW_MAX_ACTIVE = "pool.borrow.maxActive";
+    /** Maximum wait time (ms) of single borrow, defaults to {@code 30000} */
+    public static final String BORROW_TIMEOUT_PROPERTY = "pool.borrow.timeout";
+    /** Maximum number of waiting callers, unlimited by default */
+    public static final String BORROW_MAX_QUEUE_DEPTH = "pool.borrow.maxQueueDepth";
+
+    /** Error code of borrow rejected because of full queue */
+    public static final String QUEUE_FULL = "PAX-JMS-POOL-QUEUE-FULL";
+    /** Error code of borrow which waited too long */
+    public static final String BORROW_TIMEOUT = "PAX-JMS-POOL-BORROW-TIMEOUT";
+
+    private static final Logger LOG = LoggerFactory.getLogger(BorrowQueueConnectionFactory.class);
+
+    private static final long DEFAULT_TIMEOUT = 30000L;
+
+    private static final Class<?>[] BORROWED_INTERFACES = new Class<?>[] {
+            XAQueueConnection.class, XATopicConnection.class, XAConnection.class,
+            QueueConnection.class, TopicConnection.class, Connection.class,
+            XASession.class, QueueSession.class, TopicSession.class, Session.class,
+            XAJMSContext.class, JMSContext.class
+    };
+
+    private final ConnectionFactory delegate;
+    private final Semaphore permits;
+    private final long timeout;
+    private final int maxQueueDepth;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Statistics statistics = new Statistics();
+
+    /**
+     * @param delegate pooled connection factory
+     * @param maxActive maximum number of concurrently borrowed sessions and contexts
+     * @param timeout maximum wait time in milliseconds
+     * @param maxQueueDepth maximum number of waiting callers
+     */
+    public BorrowQueueConnectionFactory(ConnectionFactory delegate, int maxActive, long timeout, int maxQueueDepth) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxActive, true);
+        this.timeout = timeout;
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * Prepares wrapping of the pool according to {@code pool.borrow.*} properties, which are removed from the map.
+     *
+     * @param props pool properties
+     * @return function wrapping the pool if {@link #BORROW_MAX_ACTIVE} is configured
+     */
+    public static UnaryOperator<ConnectionFactory> configure(Map<String, Object> props) {
+        int maxActive = getInt(props, BORROW_MAX_ACTIVE, 0);
+        long timeout = getLong(props, BORROW_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+        int maxQueueDepth = getInt(props, BORROW_MAX_QUEUE_DEPTH, Integer.MAX_VALUE);
+        props.keySet().removeIf(key -> key.startsWith("pool.borrow."));
+        if (maxActive <= 0) {
+            return UnaryOperator.identity();
+        }
+        return pool -> new BorrowQueueConnectionFactory(pool, maxActive, timeout, maxQueueDepth);
+    }
+
+    public ConnectionFactory getDelegate() {
+        return delegate;
+    }
+
+    public Statistics getBorrowStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        if (delegate instanceof ConnectionFactoryStatistics) {
+            values.putAll(((ConnectionFactoryStatistics) delegate).getStatistics());
+        }
+        statistics.getWaitTimeHistogram().forEach((bucket, count) -> values.put("borrow.waitTime." + bucket, count));
+        values.put("borrow.rejected", statistics.getRejected());
+        values.put("borrow.timedOut", statistics.getTimedOut());
+        values.put("borrow.queueDepth", (long) getQueueDepth());
+        return values;
+    }
+
+    /**
+     * Number of callers waiting for a session or context.
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return (Connection) track(delegate.createConnection(), null, null);
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        return (Connection) track(delegate.createConnection(userName, password), null, null);
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return borrowContext(() -> delegate.createContext());
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return borrowContext(() -> delegate.createContext(userName, password));
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        return borrowContext(() -> delegate.createContext(userName, password, sessionMode));
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return borrowContext(() -> delegate.createContext(sessionMode));
+    }
+
+    @Override
+    public void close() throws Exception {
+        LOG.info("Borrow statistics of closed connection factory - {}", statistics);
+        if (delegate instanceof AutoCloseable) {
+            ((AutoCloseable) delegate).close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private JMSContext borrowContext(ContextSupplier supplier) {
+        String error = acquire();
+        if (error != null) {
+            throw new JMSRuntimeException(message(error), error);
+        }
+        try {
+            return (JMSContext) track(supplier.get(), new AtomicBoolean(), null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Object borrowSession(Object connection, Method method, Object[] args, Set<Borrowed> sessions)
+            throws Throwable {
+        String error = acquire();
+        if (error != null) {
+            throw new JMSException(message(error), error);
+        }
+        try {
+            return track(invoke(connection, method, args), new AtomicBoolean(), sessions);
+        } catch (Throwable t) {
+            permits.release();
+            throw t;
+        }
+    }
+
+    /**
+     * Acquires a permit, waiting in fair queue if needed.
+     *
+     * @return {@code null} when acquired or error code otherwise
+     */
+    private String acquire() {
+        long start = System.nanoTime();
+        try {
+            // zero timeout (unlike plain tryAcquire()) doesn't overtake waiting callers
+            if (permits.tryAcquire(0L, TimeUnit.NANOSECONDS)) {
+                statistics.record(0L);
+                return null;
+            }
+            if (waiting.incrementAndGet() > maxQueueDepth) {
+                waiting.decrementAndGet();
+                statistics.rejected.increment();
+                return QUEUE_FULL;
+            }
+            try {
+                if (permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    statistics.record(System.nanoTime() - start);
+                    return null;
+                }
+                statistics.timedOut.increment();
+                return BORROW_TIMEOUT;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            statistics.timedOut.increment();
+            return BORROW_TIMEOUT;
+        }
+    }
+
+    private String message(String error) {
+        if (QUEUE_FULL.equals(error)) {
+            return "Can't borrow from the pool: " + maxQueueDepth + " callers are already waiting";
+        }
+        return "Can't borrow from the pool: no session available within " + timeout + "ms";
+    }
+
+    private Object track(Object target, AtomicBoolean released, Set<Borrowed> owner) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : BORROWED_INTERFACES) {
+            if (iface.isInstance(target)) {
+                interfaces.add(iface);
+            }
+        }
+        return Proxy.newProxyInstance(BorrowQueueConnectionFactory.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[0]), new Borrowed(target, released, owner));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    @FunctionalInterface
+    private interface ContextSupplier {
+        JMSContext get();
+    }
+
+    /**
+     * Borrowed connection, session or context. Sessions are borrowed through connections, closing a session or
+     * context returns its permit. Closing a connection returns permits of its sessions which were not closed
+     * explicitly (JMS closes sessions together with their connection).
+     */
+    private class Borrowed implements DelegatingInvocationHandler {
+
+        private final Object target;
+        private final AtomicBoolean released;
+        /** Sessions borrowed through this connection and not closed yet */
+        private final Set<Borrowed> sessions;
+        /** {@link #sessions} of the connection through which this session was borrowed */
+        private final Set<Borrowed> owner;
+
+        Borrowed(Object target, AtomicBoolean released, Set<Borrowed> owner) {
+            this.target = target;
+            this.released = released;
+            this.sessions = target instanceof Connection ? ConcurrentHashMap.newKeySet() : null;
+            this.owner = owner;
+            if (owner != null) {
+                owner.add(this);
+            }
+        }
+
+        @Override
+        public Object getDelegate() {
+            return target;
+        }
+
+        private void release() {
+            if (released != null && released.compareAndSet(false, true)) {
+                permits.release();
+            }
+            if (owner != null) {
+                owner.remove(this);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return target.toString();
+                case "close":
+                    try {
+                        return BorrowQueueConnectionFactory.invoke(target, method, args);
+                    } finally {
+                        release();
+                        if (sessions != null) {
+                            for (Borrowed session : sessions) {
+                                session.release();
+                            }
+                        }
+                    }
+                default:
+                    if (sessions != null && name.startsWith("create") && name.endsWith("Session")) {
+                        return borrowSession(target, method, args, sessions);
+                    }
+                    return BorrowQueueConnectionFactory.invoke(target, method, args);
+            }
+        }
+    }
+
+    /**
+     * Histogram of borrow wait times with counts of rejected and timed out borrows.
+     */
+    public static class Statistics {
+
+        /** Upper bounds (ms, inclusive) of histogram buckets, the last bucket is unbounded */
+        private static final long[] BUCKETS = new long[] { 0L, 1L, 5L, 10L, 50L, 100L, 500L, 1000L, 5000L };
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+
+        Statistics() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long waitNanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+        }
+
+        /**
+         * Returns wait time histogram of successful borrows, keyed by bucket label ({@code "<=10ms"} or
+         * {@code ">5000ms"}).
+         *
+         * @return number of borrows per bucket
+         */
+        public Map<String, Long> getWaitTimeHistogram() {
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                histogram.put("<=" + BUCKETS[i] + "ms", counts[i].sum());
+            }
+            histogram.put(">" + BUCKETS[BUCKETS.length - 1] + "ms", counts[BUCKETS.length].sum());
+            return histogram;
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        public long getTimedOut() {
+            return timedOut.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "wait time: " + getWaitTimeHistogram() + ", rejected: " + getRejected()
+                    + ", timed out: " + getTimedOut();
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.JMSSecurityException;
+import javax.jms.JMSSecurityRuntimeException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getInt;
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getLong;
+
+/**
+ * <p>Circuit breaker of connections created by broker-specific connection factory for the pool. After
+ * configured number of consecutive failed (or slow) connects, the breaker opens and all connects fail immediately
+ * with {@link #CIRCUIT_OPEN} error code, instead of waiting for connect timeout of unavailable broker. After open
+ * time, single connect is let through as a probe (half-open state) - its success closes the breaker, failure
+ * opens it again.</p>
+ *
+ * <p>Authentication failures ({@link JMSSecurityException}, {@link JMSSecurityRuntimeException}) are not counted
+ * as failures - the broker is reachable, it only rejected the credentials.</p>
+ */
+public class CircuitBreaker {
+
+    /** Number of consecutive failed connects which opens the breaker - the breaker is enabled when set */
+    public static final String FAILURE_THRESHOLD = "pool.circuitBreaker.failureThreshold";
+    /** Connects taking longer (ms) are counted as failures, not used by default */
+    public static final String SLOW_CONNECT_THRESHOLD = "pool.circuitBreaker.slowConnectThreshold";
+    /** How long (ms) the breaker stays open before a probe is let through, defaults to {@code 30000} */
+    public static final String OPEN_TIME = "pool.circuitBreaker.openTime";
+
+    /** Error code of connects rejected by open breaker */
+    public static final String CIRCUIT_OPEN = "PAX-JMS-CIRCUIT-OPEN";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final long DEFAULT_OPEN_TIME = 30000L;
+
+    /**
+     * State of the breaker.
+     */
+    public enum State {
+        /** Connects are passed to the broker */
+        CLOSED,
+        /** Connects fail immediately */
+        OPEN,
+        /** Single probing connect is in progress, other connects fail immediately */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowConnectThreshold;
+    private final long openTime;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold number of consecutive failures which opens the breaker
+     * @param slowConnectThreshold connect time (ms) counted as failure, {@code 0} to count only errors
+     * @param openTime time (ms) before open breaker lets a probe through
+     */
+    public CircuitBreaker(int failureThreshold, long slowConnectThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.slowConnectThreshold = TimeUnit.MILLISECONDS.toNanos(slowConnectThreshold);
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+    }
+
+    /**
+     * Creates breaker configured by {@code pool.circuitBreaker.*} properties, which are removed from the map.
+     *
+     * @param props pool properties
+     * @return configured breaker or {@code null} if it's not enabled
+     */
+    public static CircuitBreaker create(Map<String, Object> props) {
+        int failureThreshold = getInt(props, FAILURE_THRESHOLD, 0);
+        long slowConnectThreshold = getLong(props, SLOW_CONNECT_THRESHOLD, 0L);
+        long openTime = getLong(props, OPEN_TIME, DEFAULT_OPEN_TIME);
+        props.keySet().removeIf(key -> key.startsWith("pool.circuitBreaker."));
+        return failureThreshold > 0 ? new CircuitBreaker(failureThreshold, slowConnectThreshold, openTime) : null;
+    }
+
+    /**
+     * Returns {@link ConnectionFactoryFactory} which wraps connection factories created by given
+     * {@link ConnectionFactoryFactory}, so all their connects go through this breaker.
+     *
+     * @param cff broker-specific {@link ConnectionFactoryFactory}
+     * @return guarded {@link ConnectionFactoryFactory}
+     */
+    public ConnectionFactoryFactory wrap(ConnectionFactoryFactory cff) {
+        return new ConnectionFactoryFactory() {
+            @Override
+            public ConnectionFactory createConnectionFactory(Map<String, Object> props) {
+                return wrap(cff.createConnectionFactory(props));
+            }
+
+            @Override
+            public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) {
+                return wrap(cff.createXAConnectionFactory(props));
+            }
+        };
+    }
+
+    /**
+     * Returns a wrapper of given connection factory guarded by this breaker. The wrapper implements
+     * {@link XAConnectionFactory} only if the delegate does.
+     *
+     * @param cf {@link ConnectionFactory} or {@link XAConnectionFactory}
+     * @param <T> type of the connection factory
+     * @return guarded connection factory
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T wrap(T cf) {
+        if (cf instanceof XAConnectionFactory) {
+            return (T) new GuardedXAConnectionFactory(cf);
+        }
+        return (T) new GuardedConnectionFactory(cf);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Checks if a connect may proceed. When open time has passed, the caller becomes the probe.
+     *
+     * @return {@code null} if connect may proceed, otherwise message of rejection
+     */
+    private synchronized String acquire() {
+        switch (state) {
+            case CLOSED:
+                return null;
+            case OPEN:
+                if (System.nanoTime() - openedAt >= openTime) {
+                    LOG.info("Circuit breaker half-open, probing broker connection");
+                    state = State.HALF_OPEN;
+                    return null;
+                }
+                return "Circuit breaker is open after " + failures + " failed connects";
+            default:
+                return "Circuit breaker is half-open, waiting for probing connect";
+        }
+    }
+
+    private synchronized void completed(long nanos, Throwable failure) {
+        boolean failed = failure != null || (slowConnectThreshold > 0 && nanos > slowConnectThreshold);
+        if (!failed) {
+            if (state != State.CLOSED) {
+                LOG.info("Circuit breaker closed, broker connection succeeded");
+            }
+            state = State.CLOSED;
+            failures = 0;
+            return;
+        }
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            LOG.warn("Circuit breaker open after {} failed connects, last failure: {}", failures,
+                    failure != null ? failure.toString() : "connect took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    private <T> T connect(Connect<T> connect) throws JMSException {
+        String rejection = acquire();
+        if (rejection != null) {
+            throw new JMSException(rejection, CIRCUIT_OPEN);
+        }
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return connect.call();
+        } catch (JMSSecurityException | JMSSecurityRuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            // always settles the state, so even an Error of the probe can't leave the breaker half-open
+            completed(System.nanoTime() - start, failure);
+        }
+    }
+
+    private <T> T connectUnchecked(Connect<T> connect) {
+        try {
+            return connect(connect);
+        } catch (JMSException e) {
+            throw (JMSRuntimeException) new JMSRuntimeException(e.getMessage(), e.getErrorCode()).initCause(e);
+        }
+    }
+
+
+    @FunctionalInterface
+    private interface Connect<T> {
+        T call() throws JMSException;
+    }
+
+    private class GuardedConnectionFactory implements ConnectionFactory {
+
+        protected final Object delegate;
+
+        GuardedConnectionFactory(Object delegate) {
+            this.delegate = delegate;
+        }
+
+        private ConnectionFactory cf() {
+            return (ConnectionFactory) delegate;
+        }
+
+        @Override
+        public Connection createConnection() throws JMSException {
+            return connect(() -> cf().createConnection());
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) throws JMSException {
+            return connect(() -> cf().createConnection(userName, password));
+        }
+
+        @Override
+        public JMSContext createContext() {
+            return connectUnchecked(() -> cf().createContext());
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            return connectUnchecked(() -> cf().createContext(userName, password));
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            return connectUnchecked(() -> cf().createContext(userName, password, sessionMode));
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            return connectUnchecked(() -> cf().createContext(sessionMode));
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private class GuardedXAConnectionFactory extends GuardedConnectionFactory implements XAConnectionFactory {
+
+        GuardedXAConnectionFactory(Object delegate) {
+            super(delegate);
+        }
+
+        private XAConnectionFactory xacf() {
+            return (XAConnectionFactory) delegate;
+        }
+
+        @Override
+        public XAConnection createXAConnection() throws JMSException {
+            return connect(() -> xacf().createXAConnection());
+        }
+
+        @Override
+        public XAConnection createXAConnection(String userName, String password) throws JMSException {
+            return connect(() -> xacf().createXAConnection(userName, password));
+        }
+
+        @Override
+        public XAJMSContext createXAContext() {
+            return connectUnchecked(() -> xacf().createXAContext());
+        }
+
+        @Override
+        public XAJMSContext createXAContext(String userName, String password) {
+            return connectUnchecked(() -> xacf().createXAContext(userName, password));
+        }
+    }
+
+}
@@ -15,17 +15,21 @@
  */
 package org.ops4j.pax.jms.config.impl;
 
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import javax.sql.DataSource;
 
 import org.jasypt.encryption.StringEncryptor;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.ops4j.pax.jms.service.PooledConnectionFactoryFactory;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedServiceFactory;
 import org.osgi.util.tracker.ServiceTracker;
@@ -41,6 +45,11 @@ public class ConnectionFactoryConfigManager implements ManagedServiceFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionFactoryConfigManager.class);
 
+    /**
+     * Filter selecting {@link DataSource} service passed to factories of JDBC based providers (like Oracle AQ)
+     */
+    static final String DATASOURCE_FILTER = "dataSource.filter";
+
     private BundleContext context;
     private ExternalConfigLoader externalConfigLoader;
 
@@ -71,6 +80,7 @@ public class ConnectionFactoryConfigManager implements ManagedServiceFactory {
         String seFilter = getStringEncryptorFilter(loadedConfig);
         String cffFilter = getCFFFilter(loadedConfig);
         String pcffFilter = getPooledCFFFilter(loadedConfig);
+        String dsFilter = getDataSourceFilter(loadedConfig);
 
         ServiceTrackerHelper helper = ServiceTrackerHelper.helper(context);
         ServiceTracker<?, ?> tracker;
@@ -78,20 +88,22 @@ public class ConnectionFactoryConfigManager implements ManagedServiceFactory {
         if (Objects.nonNull(pcffFilter)) {
             tracker = helper.track(StringEncryptor.class, seFilter, se ->
                     helper.track(PooledConnectionFactoryFactory.class, pcffFilter, pcff ->
+                            helper.track(DataSource.class, dsFilter, ds ->
+                                    helper.track(ConnectionFactoryFactory.class, cffFilter, cff ->
+                                                    new ConnectionFactoryRegistration(context,
+                                                            new PoolingWrapper(pcff, withDataSource(cff, ds)),
+                                                            loadedConfig,
+                                                            new Decryptor(se).decrypt(loadedConfig)),
+                                            ConnectionFactoryRegistration::close))));
+        } else {
+            tracker = helper.track(StringEncryptor.class, seFilter, se ->
+                    helper.track(DataSource.class, dsFilter, ds ->
                             helper.track(ConnectionFactoryFactory.class, cffFilter, cff ->
                                             new ConnectionFactoryRegistration(context,
-                                                    new PoolingWrapper(pcff, cff),
+                                                    withDataSource(cff, ds),
                                                     loadedConfig,
                                                     new Decryptor(se).decrypt(loadedConfig)),
                                     ConnectionFactoryRegistration::close)));
-        } else {
-            tracker = helper.track(StringEncryptor.class, seFilter, se ->
-                    helper.track(ConnectionFactoryFactory.class, cffFilter, cff ->
-                                    new ConnectionFactoryRegistration(context,
-                                            cff,
-                                            loadedConfig,
-                                            new Decryptor(se).decrypt(loadedConfig)),
-                            ConnectionFactoryRegistration::close));
         }
 
         trackers.put(pid, tracker);
@@ -127,11 +139,37 @@ public class ConnectionFactoryConfigManager implements ManagedServiceFactory {
                 return null;
             }
         }
+        if (isXa && Collections.list(config.keys()).stream()
+                .anyMatch(key -> key.startsWith(PartitionedConnectionFactory.PARTITION_PREFIX))) {
+            throw new ConfigurationException(PartitionedConnectionFactory.MAX_PARTITIONS,
+                    "Can not partition XA Connection Factory: evicted partitions would unregister their XA recovery.");
+        }
         return andFilter(eqFilter("objectClass", PooledConnectionFactoryFactory.class.getName()),
                 eqFilter("pool", pool),
                 eqFilter("xa", Boolean.toString(isXa)));
     }
 
+    static String getDataSourceFilter(Dictionary<String, Object> config) throws ConfigurationException {
+        String filter = (String) config.get(DATASOURCE_FILTER);
+        if (filter == null) {
+            return null;
+        }
+        filter = filter.trim();
+        if (!filter.startsWith("(")) {
+            filter = "(" + filter + ")";
+        }
+        try {
+            FrameworkUtil.createFilter(filter);
+        } catch (InvalidSyntaxException e) {
+            throw new ConfigurationException(DATASOURCE_FILTER, "Invalid DataSource filter: " + e.getMessage(), e);
+        }
+        return andFilter(eqFilter("objectClass", DataSource.class.getName()), filter);
+    }
+
+    private static ConnectionFactoryFactory withDataSource(ConnectionFactoryFactory cff, DataSource ds) {
+        return ds == null ? cff : new DataSourceWrapper(cff, ds);
+    }
+
     static boolean isXa(Dictionary<String, Object> config) throws ConfigurationException {
         String xa = (String) config.remove(PooledConnectionFactoryFactory.XA_KEY);
         if (xa == null) {
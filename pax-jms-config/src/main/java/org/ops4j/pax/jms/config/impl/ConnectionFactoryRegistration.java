@@ -30,12 +30,16 @@ import javax.jms.ConnectionFactory;
 import javax.jms.JMSRuntimeException;
 import javax.jms.XAConnectionFactory;
 
+import org.ops4j.pax.jms.service.AsyncConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getInt;
+
 @SuppressWarnings({
         "rawtypes", "unchecked"
 })
@@ -64,8 +68,15 @@ public class ConnectionFactoryRegistration implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionFactoryRegistration.class);
 
+    private static final int DEFAULT_ASYNC_THREADS = 4;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 256;
+
     private AutoCloseable connectionFactory;
+    private AutoCloseable connectionFactoryFactory;
     private ServiceRegistration<ConnectionFactory> serviceReg;
+    private ExecutorAsyncConnectionFactory asyncConnectionFactory;
+    private ServiceRegistration<AsyncConnectionFactory> asyncServiceReg;
+    private ServiceRegistration<ConnectionFactoryStatistics> statisticsServiceReg;
 
     public ConnectionFactoryRegistration(BundleContext context, ConnectionFactoryFactory cff, final Dictionary<String, Object> config, final Dictionary<String, Object> decryptedConfig) {
         String cfName = getCFName(config);
@@ -76,6 +87,13 @@ public class ConnectionFactoryRegistration implements Closeable {
             LOG.info("Found ConnectionFactoryFactory. Creating ConnectionFactory {}", cfName);
             String typeName = (String) config.get(CONNECTION_FACTORY_TYPE);
             Class<?> type = getType(typeName);
+            int asyncThreads = getInt(config, AsyncConnectionFactory.ASYNC_THREADS, DEFAULT_ASYNC_THREADS);
+            int asyncQueueSize = getInt(config, AsyncConnectionFactory.ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE);
+            int asyncTimeout = getInt(config, AsyncConnectionFactory.ASYNC_TIMEOUT, 0);
+            if (cff instanceof PoolingWrapper) {
+                // owns connection validator of the pool
+                connectionFactoryFactory = (PoolingWrapper) cff;
+            }
             Object cf = createCF(cff, type, decryptedConfig);
             if (cf instanceof AutoCloseable) {
                 connectionFactory = (AutoCloseable) cf;
@@ -83,6 +101,16 @@ public class ConnectionFactoryRegistration implements Closeable {
             Dictionary serviceProperties = filterHidden(config);
             serviceProperties.put(MANAGED_CF, "true");
             serviceReg = context.registerService(type.getName(), cf, serviceProperties);
+            if (cf instanceof ConnectionFactory && asyncThreads > 0) {
+                // non-blocking companion registered with the same properties
+                asyncConnectionFactory = new ExecutorAsyncConnectionFactory(cfName, (ConnectionFactory) cf,
+                        asyncThreads, asyncQueueSize, asyncTimeout);
+                asyncServiceReg = context.registerService(AsyncConnectionFactory.class, asyncConnectionFactory, serviceProperties);
+            }
+            if (cf instanceof ConnectionFactoryStatistics) {
+                statisticsServiceReg = context.registerService(ConnectionFactoryStatistics.class,
+                        (ConnectionFactoryStatistics) cf, serviceProperties);
+            }
         } catch (JMSRuntimeException e) {
             LOG.warn(e.getMessage(), e);
         }
@@ -97,12 +125,23 @@ public class ConnectionFactoryRegistration implements Closeable {
         return jndiName != null ? jndiName : cfName;
     }
 
+
     @Override
     public void close() {
+        if (statisticsServiceReg != null) {
+            statisticsServiceReg.unregister();
+        }
+        if (asyncServiceReg != null) {
+            asyncServiceReg.unregister();
+        }
+        if (asyncConnectionFactory != null) {
+            asyncConnectionFactory.close();
+        }
         if (serviceReg != null) {
             serviceReg.unregister();
         }
         safeClose(connectionFactory);
+        safeClose(connectionFactoryFactory);
     }
 
     private Class<?> getType(String typeName) {
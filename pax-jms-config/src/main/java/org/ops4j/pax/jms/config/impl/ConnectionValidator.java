@@ -0,0 +1,480 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSSecurityException;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TopicConnection;
+import javax.jms.TopicSession;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.jms.XAQueueConnection;
+import javax.jms.XAQueueSession;
+import javax.jms.XASession;
+import javax.jms.XATopicConnection;
+import javax.jms.XATopicSession;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.DelegatingInvocationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getLong;
+
+/**
+ * <p>Background validation of physical connections created by any pool backend. Broker-specific connection
+ * factories are wrapped, so each connection the pool opens is registered here. Connections without any activity
+ * for configured idle time are periodically checked off the request path with a broker round trip (a session
+ * creating and deleting a temporary queue). Calls on the connection and on sessions created from it count as
+ * activity - calls on producers and consumers of those sessions don't. This also keeps idle connections alive
+ * behind firewalls dropping inactive TCP connections.</p>
+ *
+ * <p>Connection which fails the check or doesn't respond in time is evicted the same way as connection reporting
+ * asynchronous failure - the {@link ExceptionListener} set by the pool (pooled-jms and pax-transx both set one
+ * on each physical connection) is notified and then the connection is closed.</p>
+ */
+public class ConnectionValidator implements AutoCloseable {
+
+    /** Period of validation runs in milliseconds - validation is disabled when not set or {@code 0} */
+    public static final String VALIDATION_INTERVAL = "pool.validation.interval";
+    /** How long (ms) a connection has to be idle to be validated, defaults to {@link #VALIDATION_INTERVAL} */
+    public static final String VALIDATION_IDLE_TIME = "pool.validation.idleTime";
+    /** How long (ms) to wait for validation round trip before the connection is evicted */
+    public static final String VALIDATION_TIMEOUT = "pool.validation.timeout";
+
+    static final String VALIDATION_PREFIX = "pool.validation.";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionValidator.class);
+
+    private static final long DEFAULT_TIMEOUT = 5000L;
+
+    private static final Class<?>[] CONNECTION_INTERFACES = new Class<?>[] {
+            XAQueueConnection.class, XATopicConnection.class, XAConnection.class,
+            QueueConnection.class, TopicConnection.class, Connection.class
+    };
+
+    private static final Class<?>[] SESSION_INTERFACES = new Class<?>[] {
+            XAQueueSession.class, XATopicSession.class, XASession.class,
+            QueueSession.class, TopicSession.class, Session.class
+    };
+
+    private final long idleTime;
+    private final long timeout;
+    private final Set<ValidatedConnection> connections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService pinger;
+
+    /**
+     * @param interval period of validation runs in milliseconds
+     * @param idleTime minimal idle time (ms) of validated connections
+     * @param timeout validation timeout in milliseconds
+     */
+    public ConnectionValidator(long interval, long idleTime, long timeout) {
+        this.idleTime = TimeUnit.MILLISECONDS.toNanos(idleTime);
+        this.timeout = timeout;
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("pax-jms-validation"));
+        // round trips may hang on half-open connections - they never block the scheduler
+        pinger = Executors.newCachedThreadPool(threadFactory("pax-jms-validation-ping"));
+        scheduler.scheduleWithFixedDelay(this::validate, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates validator configured by {@code pool.validation.*} properties, which are removed from the map.
+     *
+     * @param props pool properties
+     * @return configured validator or {@code null} if validation is not enabled
+     */
+    public static ConnectionValidator create(Map<String, Object> props) {
+        long interval = getLong(props, VALIDATION_INTERVAL, 0L);
+        long idleTime = getLong(props, VALIDATION_IDLE_TIME, interval);
+        long timeout = getLong(props, VALIDATION_TIMEOUT, DEFAULT_TIMEOUT);
+        props.keySet().removeIf(key -> key.startsWith(VALIDATION_PREFIX));
+        if (interval <= 0) {
+            return null;
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Problem in ConnectionFactory config: invalid " + VALIDATION_TIMEOUT
+                    + " value: " + timeout);
+        }
+        return new ConnectionValidator(interval, idleTime, timeout);
+    }
+
+    /**
+     * Returns {@link ConnectionFactoryFactory} which wraps connection factories created by given
+     * {@link ConnectionFactoryFactory}, so all their connections are validated.
+     *
+     * @param cff broker-specific {@link ConnectionFactoryFactory}
+     * @return validating {@link ConnectionFactoryFactory}
+     */
+    public ConnectionFactoryFactory wrap(ConnectionFactoryFactory cff) {
+        return new ConnectionFactoryFactory() {
+            @Override
+            public ConnectionFactory createConnectionFactory(Map<String, Object> props) {
+                return wrap(cff.createConnectionFactory(props));
+            }
+
+            @Override
+            public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) {
+                return wrap(cff.createXAConnectionFactory(props));
+            }
+        };
+    }
+
+    /**
+     * Returns a wrapper of given connection factory that registers created connections for validation. The
+     * wrapper implements {@link XAConnectionFactory} only if the delegate does.
+     *
+     * @param cf {@link ConnectionFactory} or {@link XAConnectionFactory}
+     * @param <T> type of the connection factory
+     * @return validating connection factory
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T wrap(T cf) {
+        if (cf instanceof XAConnectionFactory) {
+            return (T) new ValidatingXAConnectionFactory(cf);
+        }
+        return (T) new ValidatingConnectionFactory(cf);
+    }
+
+    /**
+     * Number of connections currently registered for validation.
+     *
+     * @return number of connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        pinger.shutdownNow();
+        connections.clear();
+    }
+
+    /**
+     * Single validation run - all idle connections are checked in parallel and the run waits at most
+     * configured timeout for all of them.
+     */
+    void validate() {
+        long now = System.nanoTime();
+        List<ValidatedConnection> checked = new ArrayList<>();
+        List<Future<?>> pings = new ArrayList<>();
+        for (ValidatedConnection c : connections) {
+            if (now - c.lastActive >= idleTime && c.validating.compareAndSet(false, true)) {
+                try {
+                    pings.add(pinger.submit(() -> {
+                        ping(c.connection);
+                        return null;
+                    }));
+                    checked.add(c);
+                } catch (RejectedExecutionException e) {
+                    // closed
+                    return;
+                }
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int i = 0; i < pings.size(); i++) {
+            ValidatedConnection c = checked.get(i);
+            Future<?> ping = pings.get(i);
+            try {
+                ping.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                c.lastActive = System.nanoTime();
+                c.validating.set(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                evict(c, e.getCause());
+            } catch (TimeoutException e) {
+                ping.cancel(true);
+                evict(c, new TimeoutException("No response within " + timeout + "ms"));
+            }
+        }
+    }
+
+    private static void ping(Connection connection) throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            TemporaryQueue queue = session.createTemporaryQueue();
+            queue.delete();
+        } catch (JMSSecurityException e) {
+            // the broker has answered, it just doesn't allow temporary destinations
+            LOG.debug("Temporary queue can't be used for validation: {}", e.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+
+    private void evict(ValidatedConnection c, Throwable cause) {
+        if (!connections.remove(c)) {
+            return;
+        }
+        LOG.warn("Evicting connection {} which failed validation: {}", c.connection, cause.toString());
+        JMSException failure = new JMSException("Connection validation failed: " + cause.getMessage());
+        failure.initCause(cause);
+        if (cause instanceof Exception) {
+            failure.setLinkedException((Exception) cause);
+        }
+        try {
+            // the pool may close the connection in the listener, which may block on dead connection too
+            pinger.execute(() -> {
+                ExceptionListener listener = c.listener;
+                if (listener != null) {
+                    try {
+                        listener.onException(failure);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Error notifying about failed connection: " + e.getMessage(), e);
+                    }
+                }
+                try {
+                    c.connection.close();
+                } catch (JMSException | RuntimeException e) {
+                    LOG.debug("Error closing failed connection: {}", e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // closed
+        }
+    }
+
+    private Connection register(Connection connection) {
+        ValidatedConnection c = new ValidatedConnection(connection);
+        connections.add(c);
+        return (Connection) Proxy.newProxyInstance(ConnectionValidator.class.getClassLoader(),
+                interfaces(connection, CONNECTION_INTERFACES), c);
+    }
+
+    private static Class<?>[] interfaces(Object target, Class<?>[] candidates) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : candidates) {
+            if (iface.isInstance(target)) {
+                interfaces.add(iface);
+            }
+        }
+        return interfaces.toArray(new Class<?>[0]);
+    }
+
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Physical connection handed to the pool. Any call made by the pool counts as activity and the exception
+     * listener set by the pool is remembered to be notified about failed validation. Created sessions are
+     * wrapped, so calls on them count as activity of the connection too.
+     */
+    private class ValidatedConnection implements InvocationHandler {
+
+        private final Connection connection;
+        private final AtomicBoolean validating = new AtomicBoolean();
+        private volatile long lastActive = System.nanoTime();
+        private volatile ExceptionListener listener;
+
+        ValidatedConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return connection.toString();
+                case "setExceptionListener":
+                    listener = (ExceptionListener) args[0];
+                    break;
+                case "close":
+                    connections.remove(this);
+                    break;
+                default:
+                    lastActive = System.nanoTime();
+            }
+            Object result;
+            try {
+                result = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Session) {
+                return Proxy.newProxyInstance(ConnectionValidator.class.getClassLoader(),
+                        interfaces(result, SESSION_INTERFACES), new ActiveSession(this, (Session) result));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Session of validated connection - any call counts as activity of the connection.
+     */
+    private static class ActiveSession implements DelegatingInvocationHandler {
+
+        private final ValidatedConnection connection;
+        private final Session session;
+
+        ActiveSession(ValidatedConnection connection, Session session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        @Override
+        public Object getDelegate() {
+            return session;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return session.toString();
+                default:
+                    connection.lastActive = System.nanoTime();
+            }
+            try {
+                return method.invoke(session, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * {@link ConnectionFactory} registering all created connections. Contexts are created directly by the
+     * delegate - pools create their contexts from pooled connections.
+     */
+    private class ValidatingConnectionFactory implements ConnectionFactory {
+
+        protected final Object delegate;
+
+        ValidatingConnectionFactory(Object delegate) {
+            this.delegate = delegate;
+        }
+
+        private ConnectionFactory cf() {
+            return (ConnectionFactory) delegate;
+        }
+
+        @Override
+        public Connection createConnection() throws JMSException {
+            return register(cf().createConnection());
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) throws JMSException {
+            return register(cf().createConnection(userName, password));
+        }
+
+        @Override
+        public JMSContext createContext() {
+            return cf().createContext();
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            return cf().createContext(userName, password);
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            return cf().createContext(userName, password, sessionMode);
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            return cf().createContext(sessionMode);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private class ValidatingXAConnectionFactory extends ValidatingConnectionFactory implements XAConnectionFactory {
+
+        ValidatingXAConnectionFactory(Object delegate) {
+            super(delegate);
+        }
+
+        private XAConnectionFactory xacf() {
+            return (XAConnectionFactory) delegate;
+        }
+
+        @Override
+        public XAConnection createXAConnection() throws JMSException {
+            return (XAConnection) register(xacf().createXAConnection());
+        }
+
+        @Override
+        public XAConnection createXAConnection(String userName, String password) throws JMSException {
+            return (XAConnection) register(xacf().createXAConnection(userName, password));
+        }
+
+        @Override
+        public XAJMSContext createXAContext() {
+            return xacf().createXAContext();
+        }
+
+        @Override
+        public XAJMSContext createXAContext(String userName, String password) {
+            return xacf().createXAContext(userName, password);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+
+/**
+ * Immutable consistent hash ring of {@link Member members}. Each member is placed on the ring
+ * {@code virtualNodes * weight} times, so adding or removing a member remaps only keys of its ring segments.
+ */
+class ConsistentHashRing {
+
+    private final NavigableMap<Long, Member> ring = new TreeMap<>();
+
+    ConsistentHashRing(List<Member> members, int virtualNodes) {
+        for (Member member : members) {
+            int points = virtualNodes * member.getWeight();
+            for (int i = 0; i < points; i++) {
+                ring.put(hash(member.getName() + "#" + i), member);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /**
+     * @param key routing key (e.g., destination name)
+     * @return member owning the key or {@code null} if the ring is empty
+     */
+    Member select(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, Member> e = ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+}
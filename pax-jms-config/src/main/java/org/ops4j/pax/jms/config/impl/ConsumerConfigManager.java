@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.jms.ConnectionFactory;
+import javax.jms.MessageListener;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedServiceFactory;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches for consumer configs ({@code org.ops4j.consumer} factory PIDs) in OSGi configuration admin and creates
+ * {@link ConsumerContainer consumer containers} when both the {@link ConnectionFactory} and the
+ * {@link MessageListener} services referenced by name are available ({@link KeyedMessageDispatcher} when
+ * {@code workers} are configured).
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class ConsumerConfigManager implements ManagedServiceFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerConfigManager.class);
+
+    private final BundleContext context;
+
+    /**
+     * Stores one ServiceTracker for ConnectionFactories for each config pid
+     */
+    private final Map<String, ServiceTracker<?, ?>> trackers = new HashMap<>();
+
+    public ConsumerConfigManager(BundleContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public String getName() {
+        return "consumer";
+    }
+
+    @Override
+    public synchronized void updated(String pid, Dictionary config) throws ConfigurationException {
+        deleted(pid);
+        if (config == null) {
+            return;
+        }
+
+        String cfFilter = nameFilter(config, ConsumerContainer.CONNECTION_FACTORY, ConnectionFactory.class);
+        String listenerFilter = nameFilter(config, ConsumerContainer.LISTENER, MessageListener.class);
+        ConsumerContainer.Settings settings = new ConsumerContainer.Settings(config);
+        String name = config.get(ConsumerContainer.LISTENER) + "@" + settings.destination;
+
+        ServiceTrackerHelper helper = ServiceTrackerHelper.helper(context);
+        ServiceTracker<?, ?> tracker = helper.track(ConnectionFactory.class, cfFilter, cf ->
+                helper.track(MessageListener.class, listenerFilter, listener ->
+                                settings.workers > 0
+                                        ? new KeyedMessageDispatcher(name, cf, listener, settings)
+                                        : new ConsumerContainer(name, cf, listener, settings),
+                        ConsumerConfigManager::close));
+        trackers.put(pid, tracker);
+    }
+
+    /**
+     * Filter matching service of given class by PID or name ({@code name} or {@code osgi.jndi.service.name})
+     */
+    static String nameFilter(Dictionary<String, Object> config, String key, Class<?> objectClass) throws ConfigurationException {
+        Object value = config.get(key);
+        if (value == null) {
+            throw new ConfigurationException(key, "Name of " + objectClass.getSimpleName() + " service is required");
+        }
+        String name = MemberTracker.escape(value.toString().trim());
+        StringBuilder sb = new StringBuilder("(&(" + Constants.OBJECTCLASS + "=" + objectClass.getName() + ")(|");
+        for (String nameKey : MemberTracker.NAME_KEYS) {
+            sb.append("(").append(nameKey).append("=").append(name).append(")");
+        }
+        return sb.append("))").toString();
+    }
+
+    private static void close(AutoCloseable consumer) {
+        try {
+            consumer.close();
+        } catch (Exception e) {
+            LOG.warn("Error closing " + consumer.getClass() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void deleted(String pid) {
+        ServiceTracker<?, ?> tracker = trackers.remove(pid);
+        if (tracker != null) {
+            tracker.close();
+        }
+    }
+
+    synchronized void destroy() {
+        Set<String> pidsToDestroy = new HashSet<>(trackers.keySet());
+        for (String pid : pidsToDestroy) {
+            deleted(pid);
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Dictionary;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.osgi.service.cm.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Managed consumer container delivering messages of single destination to a whiteboard {@link MessageListener}.
+ * Configured using {@code org.ops4j.consumer} factory PID.</p>
+ *
+ * <p>Each concurrent consumer has its own session (of single, shared connection) and runs receive loop in its
+ * own thread - a virtual thread if the JVM supports them. Number of consumers is adjusted between
+ * {@code minConsumers} and {@code maxConsumers}:</p>
+ * <ul>
+ *     <li>when a consumer receives a message while no other consumer is idle (there's a backlog), new consumer
+ *     is started - at most once per average handling time of a message (at least 100ms)</li>
+ *     <li>consumer which didn't receive any message in {@code idleReceives} consecutive receives stops</li>
+ * </ul>
+ * <p>The listener is called concurrently and has to be thread safe. In non-transacted mode each message is
+ * acknowledged after the listener returns; when the listener throws an exception, the session is recovered (or
+ * rolled back when {@code transacted=true}) and the message is redelivered.</p>
+ *
+ * <p>When {@code workers} is configured, {@link KeyedMessageDispatcher} is used instead.</p>
+ */
+public class ConsumerContainer implements AutoCloseable {
+
+    static final String CONNECTION_FACTORY = "connectionFactory";
+    static final String LISTENER = "listener";
+    static final String DESTINATION = "destination";
+    static final String DESTINATION_TYPE = "destinationType";
+    static final String MESSAGE_SELECTOR = "messageSelector";
+    static final String TRANSACTED = "transacted";
+    static final String MIN_CONSUMERS = "minConsumers";
+    static final String MAX_CONSUMERS = "maxConsumers";
+    static final String RECEIVE_TIMEOUT = "receiveTimeout";
+    static final String IDLE_RECEIVES = "idleReceives";
+    static final String RECOVERY_INTERVAL = "recoveryInterval";
+    static final String VIRTUAL_THREADS = "virtualThreads";
+    static final String WORKERS = "workers";
+    static final String ORDERING_KEY = "orderingKey";
+    static final String ACKNOWLEDGE_MODE = "acknowledgeMode";
+    static final String MAX_IN_FLIGHT = "maxInFlight";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerContainer.class);
+
+    private static final long MIN_SCALE_UP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private final ConnectionFactory connectionFactory;
+    private final MessageListener listener;
+    private final Settings settings;
+    private final ThreadFactory threadFactory;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final AtomicLong lastScaleUp = new AtomicLong(System.nanoTime());
+    private final AtomicLong handlerNanos = new AtomicLong();
+
+    private volatile boolean running = true;
+    private Connection connection;
+
+    public ConsumerContainer(String name, ConnectionFactory connectionFactory, MessageListener listener, Settings settings) {
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.listener = listener;
+        this.settings = settings;
+        this.threadFactory = threadFactory(name, settings.virtualThreads);
+        LOG.info("Starting {} consumer(s) of {}", settings.minConsumers, name);
+        for (int i = 0; i < settings.minConsumers; i++) {
+            startConsumer();
+        }
+    }
+
+    /**
+     * @return current number of consumers
+     */
+    public int getConsumerCount() {
+        return active.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        closeConnection(null);
+        for (Thread thread : threads) {
+            try {
+                thread.join(settings.receiveTimeout + 5000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // connection could be recreated by consumer not yet aware of closing
+        closeConnection(null);
+        LOG.info("Stopped consumers of {}", name);
+    }
+
+    private void startConsumer() {
+        int count;
+        do {
+            count = active.get();
+            if (count >= settings.maxConsumers) {
+                return;
+            }
+        } while (!active.compareAndSet(count, count + 1));
+        Thread thread = threadFactory.newThread(new Consumer());
+        thread.setName("pax-jms-consumer-" + name + "-" + (count + 1));
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Called after receiving a message - starts new consumer if no consumer is idle.
+     */
+    private void maybeScaleUp() {
+        if (idle.get() > 0 || active.get() >= settings.maxConsumers) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastScaleUp.get();
+        if (now - last >= Math.max(MIN_SCALE_UP_INTERVAL, handlerNanos.get()) && lastScaleUp.compareAndSet(last, now)) {
+            LOG.debug("Backlog of {}, adding consumer", name);
+            startConsumer();
+        }
+    }
+
+    /**
+     * Called by idle consumer - decrements number of consumers if it's above minimum.
+     */
+    private boolean tryRetire() {
+        int count;
+        do {
+            count = active.get();
+            if (count <= settings.minConsumers) {
+                return false;
+            }
+        } while (!active.compareAndSet(count, count - 1));
+        LOG.debug("Consumer of {} idle, stopping", name);
+        return true;
+    }
+
+    private synchronized Connection connection() throws JMSException {
+        if (connection == null) {
+            if (!running) {
+                throw new JMSException("Consumer container " + name + " is closed");
+            }
+            connection = connectionFactory.createConnection();
+            connection.start();
+        }
+        return connection;
+    }
+
+    /**
+     * Closes given (or any if {@code null}) shared connection
+     */
+    private synchronized void closeConnection(Connection broken) {
+        if (connection != null && (broken == null || broken == connection)) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                LOG.debug("Error closing connection: " + e.getMessage(), e);
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Returns factory of virtual threads when requested and supported by the JVM, factory of daemon platform
+     * threads otherwise.
+     */
+    static ThreadFactory threadFactory(String name, boolean virtualThreads) {
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory() : null;
+        if (factory != null) {
+            LOG.debug("Using virtual threads for consumers of {}", name);
+            return factory;
+        }
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory() - Java 21
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // preview feature not enabled
+            return null;
+        }
+    }
+
+    private final class Consumer implements Runnable {
+
+        private Connection sessionConnection;
+        private Session session;
+        private MessageConsumer consumer;
+        private int idleReceives;
+        private boolean retired;
+
+        @Override
+        public void run() {
+            try {
+                while (running && !retired) {
+                    try {
+                        Message message = receive();
+                        if (message == null) {
+                            if (idleReceives++ == 0) {
+                                idle.incrementAndGet();
+                            }
+                            retired = idleReceives >= settings.idleReceives && tryRetire();
+                            continue;
+                        }
+                        if (idleReceives > 0) {
+                            idleReceives = 0;
+                            idle.decrementAndGet();
+                        }
+                        maybeScaleUp();
+                        handle(message);
+                    } catch (JMSException e) {
+                        if (!running) {
+                            break;
+                        }
+                        LOG.warn("Error consuming from " + name + ", reconnecting in " + settings.recoveryInterval
+                                + "ms: " + e.getMessage(), e);
+                        closeSession();
+                        closeConnection(sessionConnection);
+                        Thread.sleep(settings.recoveryInterval);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (idleReceives > 0) {
+                    idle.decrementAndGet();
+                }
+                if (!retired) {
+                    active.decrementAndGet();
+                }
+                closeSession();
+                threads.remove(Thread.currentThread());
+            }
+        }
+
+        private Message receive() throws JMSException {
+            if (session == null) {
+                sessionConnection = connection();
+                session = sessionConnection.createSession(settings.transacted,
+                        settings.transacted ? Session.SESSION_TRANSACTED : Session.CLIENT_ACKNOWLEDGE);
+                Destination destination = settings.topic ? session.createTopic(settings.destination)
+                        : session.createQueue(settings.destination);
+                consumer = session.createConsumer(destination, settings.messageSelector);
+            }
+            return consumer.receive(settings.receiveTimeout);
+        }
+
+        private void handle(Message message) throws JMSException {
+            long start = System.nanoTime();
+            try {
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                LOG.warn("Listener of " + name + " failed, message will be redelivered: " + e.getMessage(), e);
+                if (settings.transacted) {
+                    session.rollback();
+                } else {
+                    session.recover();
+                }
+                return;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                handlerNanos.accumulateAndGet(elapsed, (avg, x) -> avg == 0 ? x : avg - (avg >> 3) + (x >> 3));
+            }
+            if (settings.transacted) {
+                session.commit();
+            } else {
+                message.acknowledge();
+            }
+        }
+
+        private void closeSession() {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (JMSException e) {
+                    LOG.debug("Error closing session: " + e.getMessage(), e);
+                }
+                session = null;
+                consumer = null;
+            }
+        }
+    }
+
+    /**
+     * Parsed configuration of the container
+     */
+    public static class Settings {
+
+        final String destination;
+        final boolean topic;
+        final String messageSelector;
+        final boolean transacted;
+        final int minConsumers;
+        final int maxConsumers;
+        final long receiveTimeout;
+        final int idleReceives;
+        final long recoveryInterval;
+        final boolean virtualThreads;
+        final int workers;
+        final String orderingKey;
+        final int acknowledgeMode;
+        final int maxInFlight;
+
+        Settings(Dictionary<String, Object> config) throws ConfigurationException {
+            destination = (String) config.get(DESTINATION);
+            if (destination == null) {
+                throw new ConfigurationException(DESTINATION, "Destination name is required");
+            }
+            String type = (String) config.get(DESTINATION_TYPE);
+            if (type == null || "queue".equalsIgnoreCase(type)) {
+                topic = false;
+            } else if ("topic".equalsIgnoreCase(type)) {
+                topic = true;
+            } else {
+                throw new ConfigurationException(DESTINATION_TYPE, "Destination type should be queue or topic");
+            }
+            messageSelector = (String) config.get(MESSAGE_SELECTOR);
+            transacted = Boolean.parseBoolean(String.valueOf(config.get(TRANSACTED)));
+            minConsumers = (int) getLong(config, MIN_CONSUMERS, 1);
+            int max = (int) getLong(config, MAX_CONSUMERS, 10);
+            if (minConsumers < 1 || max < minConsumers) {
+                throw new ConfigurationException(MAX_CONSUMERS, "Should be 1 <= " + MIN_CONSUMERS + " <= " + MAX_CONSUMERS);
+            }
+            if (topic && max > 1) {
+                // each consumer of a topic gets its own copy of the message
+                LOG.warn("Topic {} is consumed by single consumer, ignoring {}={}", destination, MAX_CONSUMERS, max);
+                max = 1;
+            }
+            maxConsumers = max;
+            receiveTimeout = getLong(config, RECEIVE_TIMEOUT, 1000L);
+            idleReceives = (int) getLong(config, IDLE_RECEIVES, 10);
+            recoveryInterval = getLong(config, RECOVERY_INTERVAL, 5000L);
+            Object vt = config.get(VIRTUAL_THREADS);
+            virtualThreads = vt == null || Boolean.parseBoolean(vt.toString());
+            workers = config.get(WORKERS) == null ? 0 : (int) getLong(config, WORKERS, 0);
+            String key = (String) config.get(ORDERING_KEY);
+            orderingKey = key == null ? "JMSXGroupID" : key.trim();
+            acknowledgeMode = (int) getLong(config, ACKNOWLEDGE_MODE, Session.CLIENT_ACKNOWLEDGE);
+            maxInFlight = (int) getLong(config, MAX_IN_FLIGHT, 1000);
+            if (workers > 0 && transacted) {
+                throw new ConfigurationException(WORKERS, "Keyed dispatch to workers doesn't support transacted sessions");
+            }
+        }
+
+        private static long getLong(Dictionary<String, Object> config, String key, long defaultValue) throws ConfigurationException {
+            Object value = config.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                long result = Long.parseLong(value.toString().trim());
+                if (result > 0) {
+                    return result;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            throw new ConfigurationException(key, "Should be positive number: " + value);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSRuntimeException;
+import javax.jms.XAConnectionFactory;
+import javax.sql.DataSource;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+
+/**
+ * Passes tracked {@link DataSource} service to {@link ConnectionFactoryFactory} of JDBC based provider using
+ * {@link ConnectionFactoryFactory#JMS_DATASOURCE} property.
+ */
+public class DataSourceWrapper implements ConnectionFactoryFactory {
+
+    private ConnectionFactoryFactory cff;
+    private DataSource dataSource;
+
+    public DataSourceWrapper(ConnectionFactoryFactory cff, DataSource dataSource) {
+        this.cff = cff;
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        return cff.createConnectionFactory(withDataSource(props));
+    }
+
+    @Override
+    public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        return cff.createXAConnectionFactory(withDataSource(props));
+    }
+
+    private Map<String, Object> withDataSource(Map<String, Object> props) {
+        Map<String, Object> properties = new HashMap<>(props);
+        properties.put(JMS_DATASOURCE, dataSource);
+        return properties;
+    }
+
+}
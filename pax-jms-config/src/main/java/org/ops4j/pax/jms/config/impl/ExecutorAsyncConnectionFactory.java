@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+
+import org.ops4j.pax.jms.service.AsyncConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link AsyncConnectionFactory} running connects of delegate {@link ConnectionFactory} in bounded thread pool.
+ * Threads are started on demand and stopped after a minute of inactivity.
+ */
+public class ExecutorAsyncConnectionFactory implements AsyncConnectionFactory, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutorAsyncConnectionFactory.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final long timeout;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param name name used for executor threads
+     * @param connectionFactory delegate connection factory
+     * @param threads maximum number of concurrent connects
+     * @param queueSize maximum number of pending connects
+     * @param timeout connect timeout in milliseconds, {@code 0} for no timeout
+     */
+    public ExecutorAsyncConnectionFactory(String name, ConnectionFactory connectionFactory, int threads, int queueSize, long timeout) {
+        this.connectionFactory = connectionFactory;
+        this.timeout = timeout;
+        ThreadFactory threadFactory = threadFactory("pax-jms-connect-" + name);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        if (timeout > 0) {
+            timer = new ScheduledThreadPoolExecutor(1, threadFactory("pax-jms-connect-timeout-" + name));
+            timer.setRemoveOnCancelPolicy(true);
+        } else {
+            timer = null;
+        }
+    }
+
+    @Override
+    public CompletionStage<Connection> createConnectionAsync() {
+        return submit(connectionFactory::createConnection);
+    }
+
+    @Override
+    public CompletionStage<Connection> createConnectionAsync(String userName, String password) {
+        return submit(() -> connectionFactory.createConnection(userName, password));
+    }
+
+    @Override
+    public CompletionStage<JMSContext> createContextAsync() {
+        return submit(connectionFactory::createContext);
+    }
+
+    @Override
+    public CompletionStage<JMSContext> createContextAsync(int sessionMode) {
+        return submit(() -> connectionFactory.createContext(sessionMode));
+    }
+
+    @Override
+    public CompletionStage<JMSContext> createContextAsync(String userName, String password, int sessionMode) {
+        return submit(() -> connectionFactory.createContext(userName, password, sessionMode));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private <T extends AutoCloseable> CompletableFuture<T> submit(Callable<T> connect) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    T value = connect.call();
+                    if (!result.complete(value)) {
+                        // cancelled or timed out in the meantime
+                        safeClose(value);
+                    }
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        if (timer != null) {
+            ScheduledFuture<?> timeoutTask = timer.schedule(() -> {
+                if (result.completeExceptionally(new TimeoutException("Connect timed out after " + timeout + "ms"))) {
+                    task.cancel(true);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((v, t) -> timeoutTask.cancel(false));
+        }
+        result.whenComplete((v, t) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void safeClose(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOG.warn("Error closing " + closeable.getClass() + ": " + e.getMessage(), e);
+        }
+    }
+
+}
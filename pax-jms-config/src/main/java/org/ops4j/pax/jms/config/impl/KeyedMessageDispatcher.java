@@ -0,0 +1,275 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Consumer of {@code org.ops4j.consumer} configuration with {@code workers} set. Messages are received by single
+ * session and dispatched to {@code workers} single-threaded stripes by hash of ordering key - message property
+ * configured with {@code orderingKey} ({@code JMSXGroupID} by default, {@code JMSCorrelationID} header is supported
+ * too). Messages with the same key are processed sequentially, in order of reception. Messages without a key are
+ * dispatched round-robin.</p>
+ *
+ * <p>Session is used only by the receiving thread, workers report processed messages back to it. Acknowledgement
+ * depends on {@code acknowledgeMode}:</p>
+ * <ul>
+ *     <li>provider specific individual acknowledge mode (e.g. {@code 4} for ActiveMQ, {@code 101} for Artemis) -
+ *     each message is acknowledged as soon as it's processed</li>
+ *     <li>{@link Session#CLIENT_ACKNOWLEDGE} (default) - received messages are acknowledged together, when all
+ *     of them are processed</li>
+ * </ul>
+ * <p>At most {@code maxInFlight} messages are received and not yet acknowledged. When a listener fails, messages
+ * queued for workers are skipped and, after processing messages already being processed, the session is recovered,
+ * so all unacknowledged messages are redelivered in original order.</p>
+ */
+public class KeyedMessageDispatcher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedMessageDispatcher.class);
+
+    /**
+     * Receive timeout used while some messages are being processed, so they're acknowledged without delay
+     */
+    private static final long BUSY_RECEIVE_TIMEOUT = 10L;
+
+    private final String name;
+    private final ConnectionFactory connectionFactory;
+    private final MessageListener listener;
+    private final ConsumerContainer.Settings settings;
+    private final boolean individualAcknowledge;
+
+    private final ExecutorService[] stripes;
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private final Thread receiver;
+
+    private volatile boolean running = true;
+    private volatile boolean recovering;
+
+    // used only by receiver thread
+    private Connection connection;
+    private Session session;
+    private MessageConsumer consumer;
+    private int unacknowledged;
+    private int processing;
+    private Message lastProcessed;
+
+    public KeyedMessageDispatcher(String name, ConnectionFactory connectionFactory, MessageListener listener, ConsumerContainer.Settings settings) {
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.listener = listener;
+        this.settings = settings;
+        this.individualAcknowledge = settings.acknowledgeMode != Session.CLIENT_ACKNOWLEDGE;
+
+        ThreadFactory threadFactory = ConsumerContainer.threadFactory(name, settings.virtualThreads);
+        stripes = new ExecutorService[settings.workers];
+        for (int i = 0; i < stripes.length; i++) {
+            String threadName = "pax-jms-worker-" + name + "-" + (i + 1);
+            stripes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = threadFactory.newThread(r);
+                thread.setName(threadName);
+                return thread;
+            });
+        }
+        receiver = threadFactory.newThread(this::run);
+        receiver.setName("pax-jms-dispatcher-" + name);
+        LOG.info("Starting dispatcher of {} with {} worker(s)", name, settings.workers);
+        receiver.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            receiver.join(settings.receiveTimeout + 5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+        LOG.info("Stopped dispatcher of {}", name);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                try {
+                    dispatch();
+                } catch (JMSException e) {
+                    if (!running) {
+                        break;
+                    }
+                    LOG.warn("Error consuming from " + name + ", reconnecting in " + settings.recoveryInterval
+                            + "ms: " + e.getMessage(), e);
+                    // messages received by broken session will be redelivered
+                    recovering = true;
+                    awaitProcessing();
+                    recovering = false;
+                    closeConnection();
+                    Thread.sleep(settings.recoveryInterval);
+                }
+            }
+            awaitProcessing();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Receives and dispatches messages until closed or failed.
+     */
+    private void dispatch() throws JMSException, InterruptedException {
+        connection = connectionFactory.createConnection();
+        session = connection.createSession(false, settings.acknowledgeMode);
+        Destination destination = settings.topic ? session.createTopic(settings.destination)
+                : session.createQueue(settings.destination);
+        consumer = session.createConsumer(destination, settings.messageSelector);
+        connection.start();
+
+        while (running) {
+            boolean full = unacknowledged >= settings.maxInFlight;
+            processCompletions(full || recovering ? settings.receiveTimeout : 0L);
+            if (recovering) {
+                if (processing > 0) {
+                    continue;
+                }
+                // all workers are done - redeliver all not acknowledged messages
+                session.recover();
+                unacknowledged = 0;
+                lastProcessed = null;
+                recovering = false;
+                continue;
+            }
+            if (full) {
+                continue;
+            }
+            Message message = consumer.receive(processing > 0 ? BUSY_RECEIVE_TIMEOUT : settings.receiveTimeout);
+            if (message != null) {
+                unacknowledged++;
+                processing++;
+                stripes[stripe(message)].execute(() -> process(message));
+            }
+        }
+    }
+
+    /**
+     * Called by worker thread
+     */
+    private void process(Message message) {
+        if (recovering || !running) {
+            // skipped, will be redelivered
+            completions.add(new Completion(message, false));
+            return;
+        }
+        boolean success = true;
+        try {
+            listener.onMessage(message);
+        } catch (RuntimeException e) {
+            LOG.warn("Listener of " + name + " failed, message will be redelivered: " + e.getMessage(), e);
+            recovering = true;
+            success = false;
+        }
+        completions.add(new Completion(message, success));
+    }
+
+    /**
+     * Handles messages processed by workers, waiting for the first one if {@code timeout > 0}
+     */
+    private void processCompletions(long timeout) throws JMSException, InterruptedException {
+        Completion completion = timeout > 0 && processing > 0
+                ? completions.poll(timeout, TimeUnit.MILLISECONDS) : completions.poll();
+        while (completion != null) {
+            processing--;
+            if (completion.success && !recovering) {
+                if (individualAcknowledge) {
+                    completion.message.acknowledge();
+                    unacknowledged--;
+                } else {
+                    lastProcessed = completion.message;
+                }
+            }
+            completion = completions.poll();
+        }
+        if (!individualAcknowledge && processing == 0 && lastProcessed != null && !recovering) {
+            // acknowledges all messages received by the session
+            lastProcessed.acknowledge();
+            lastProcessed = null;
+            unacknowledged = 0;
+        }
+    }
+
+    private void awaitProcessing() throws InterruptedException {
+        while (processing > 0) {
+            if (completions.poll(settings.receiveTimeout, TimeUnit.MILLISECONDS) != null) {
+                processing--;
+            }
+        }
+        completions.clear();
+    }
+
+    private int stripe(Message message) throws JMSException {
+        String key = "JMSCorrelationID".equals(settings.orderingKey) ? message.getJMSCorrelationID()
+                : message.getStringProperty(settings.orderingKey);
+        int hash = key == null ? roundRobin.getAndIncrement() : key.hashCode();
+        return Math.floorMod(hash, stripes.length);
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                LOG.debug("Error closing connection: " + e.getMessage(), e);
+            }
+        }
+        connection = null;
+        session = null;
+        consumer = null;
+        unacknowledged = 0;
+        lastProcessed = null;
+    }
+
+    private static final class Completion {
+        private final Message message;
+        private final boolean success;
+
+        Completion(Message message, boolean success) {
+            this.message = message;
+            this.success = success;
+        }
+    }
+
+}
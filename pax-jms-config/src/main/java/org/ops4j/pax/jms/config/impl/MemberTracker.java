@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSRuntimeException;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks {@link ConnectionFactory} services referenced by PID or name ({@code name} or
+ * {@code osgi.jndi.service.name}), which are members of composite connection factories.
+ */
+class MemberTracker extends ServiceTracker<ConnectionFactory, Member> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemberTracker.class);
+
+    static final String[] NAME_KEYS = new String[] {
+            Constants.SERVICE_PID,
+            ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME,
+            ConnectionFactoryRegistration.JNDI_SERVICE_NAME
+    };
+
+    private final Map<String, Integer> weights;
+    private final Consumer<List<Member>> onChange;
+    private volatile List<Member> members = Collections.emptyList();
+
+    /**
+     * @param context bundle context
+     * @param weights weights of members by their PIDs or names
+     * @param onChange called with current members after a member is added or removed
+     */
+    MemberTracker(BundleContext context, Map<String, Integer> weights, Consumer<List<Member>> onChange) {
+        super(context, filter(context, weights), null);
+        this.weights = weights;
+        this.onChange = onChange;
+    }
+
+    /**
+     * @return currently available members
+     */
+    List<Member> getMembers() {
+        return members;
+    }
+
+    @Override
+    public Member addingService(ServiceReference<ConnectionFactory> reference) {
+        String name = null;
+        for (String key : NAME_KEYS) {
+            Object value = reference.getProperty(key);
+            if (value != null && weights.containsKey(value.toString())) {
+                name = value.toString();
+                break;
+            }
+        }
+        if (name == null) {
+            return null;
+        }
+        Member member = new Member(name, weights.get(name), context.getService(reference));
+        synchronized (this) {
+            List<Member> list = new ArrayList<>(members);
+            list.add(member);
+            members = list;
+        }
+        LOG.info("ConnectionFactory member {} available", name);
+        onChange.accept(members);
+        return member;
+    }
+
+    @Override
+    public void removedService(ServiceReference<ConnectionFactory> reference, Member member) {
+        synchronized (this) {
+            List<Member> list = new ArrayList<>(members);
+            list.remove(member);
+            members = list;
+        }
+        LOG.info("ConnectionFactory member {} unavailable", member);
+        onChange.accept(members);
+        context.ungetService(reference);
+    }
+
+    /**
+     * Parses comma separated list of {@code name[*weight]} entries.
+     *
+     * @param value list of members
+     * @return weights by member names, in configured order
+     */
+    static Map<String, Integer> weights(String value) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int weight = 1;
+            int star = entry.lastIndexOf('*');
+            if (star >= 0) {
+                try {
+                    weight = Integer.parseInt(entry.substring(star + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new JMSRuntimeException("Invalid weight of ConnectionFactory member \"" + entry + "\"");
+                }
+                entry = entry.substring(0, star).trim();
+            }
+            weights.put(entry, weight);
+        }
+        if (weights.isEmpty()) {
+            throw new JMSRuntimeException("No ConnectionFactory members configured");
+        }
+        return weights;
+    }
+
+    private static Filter filter(BundleContext context, Map<String, Integer> weights) {
+        StringBuilder sb = new StringBuilder("(&(" + Constants.OBJECTCLASS + "=" + ConnectionFactory.class.getName() + ")(|");
+        for (String name : weights.keySet()) {
+            for (String key : NAME_KEYS) {
+                sb.append("(").append(key).append("=").append(escape(name)).append(")");
+            }
+        }
+        sb.append("))");
+        try {
+            return context.createFilter(sb.toString());
+        } catch (InvalidSyntaxException e) {
+            throw (JMSRuntimeException) new JMSRuntimeException("Invalid ConnectionFactory members: " + weights.keySet())
+                    .initCause(e);
+        }
+    }
+
+    static String escape(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '(' || c == ')' || c == '*' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
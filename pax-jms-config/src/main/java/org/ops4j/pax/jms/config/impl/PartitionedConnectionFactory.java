@@ -0,0 +1,562 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.QueueConnection;
+import javax.jms.TopicConnection;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.jms.XAQueueConnection;
+import javax.jms.XATopicConnection;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.jms.service.internal.BeanConfig.getInt;
+
+/**
+ * <p>Pooled {@link ConnectionFactory} with separate pool (partition) for each credentials passed to
+ * {@code createConnection(userName, password)} or {@code createContext(userName, password)}. Connections are
+ * never shared between different credentials - each partition's pool is created by the pool backend with broker
+ * connection factory bound to partition's credentials. Calls without credentials use default partition.</p>
+ *
+ * <p>Number of partitions and total number of physical connections of all partitions may be limited. When a
+ * limit is reached, least recently used partition without borrowed connections and contexts is closed. When
+ * there's no such partition, the call fails with {@link #PARTITION_LIMIT} or {@link #CONNECTION_LIMIT} error
+ * code.</p>
+ *
+ * <p>Partitioning is not available for XA connection factories - closing evicted partition's pool unregisters
+ * its XA recovery, so in-doubt transactions of the partition could never be recovered.
+ * {@link ConnectionFactoryConfigManager} rejects {@code pool.partition.*} properties together with
+ * {@code xa=true}.</p>
+ */
+public class PartitionedConnectionFactory implements ConnectionFactory, AutoCloseable {
+
+    /** Prefix of partitioning properties */
+    public static final String PARTITION_PREFIX = "pool.partition.";
+    /** Maximum number of partitions - partitioning is enabled when set */
+    public static final String MAX_PARTITIONS = "pool.partition.maxPartitions";
+    /** Maximum number of physical connections of all partitions, unlimited by default */
+    public static final String MAX_CONNECTIONS = "pool.partition.maxConnections";
+
+    /** Error code of borrow failing because all partitions are in use */
+    public static final String PARTITION_LIMIT = "PAX-JMS-POOL-PARTITION-LIMIT";
+    /** Error code of connect failing because all connections are used by busy partitions */
+    public static final String CONNECTION_LIMIT = "PAX-JMS-POOL-CONNECTION-LIMIT";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedConnectionFactory.class);
+
+    private static final Class<?>[] BORROWED_INTERFACES = new Class<?>[] {
+            XAQueueConnection.class, XATopicConnection.class, XAConnection.class,
+            QueueConnection.class, TopicConnection.class, Connection.class,
+            XAJMSContext.class, JMSContext.class
+    };
+
+    private final Function<ConnectionFactoryFactory, ConnectionFactory> poolFactory;
+    private final ConnectionFactoryFactory cff;
+    private final int maxPartitions;
+    private final Semaphore connectionPermits;
+
+    // access order - the first partition is least recently used
+    private final LinkedHashMap<Key, Partition> partitions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param poolFactory creates pool of a partition using given broker-specific {@link ConnectionFactoryFactory}
+     * @param cff broker-specific {@link ConnectionFactoryFactory}
+     * @param maxPartitions maximum number of partitions
+     * @param maxConnections maximum number of physical connections of all partitions
+     */
+    public PartitionedConnectionFactory(Function<ConnectionFactoryFactory, ConnectionFactory> poolFactory,
+            ConnectionFactoryFactory cff, int maxPartitions, int maxConnections) {
+        this.poolFactory = poolFactory;
+        this.cff = cff;
+        this.maxPartitions = maxPartitions;
+        this.connectionPermits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+    }
+
+    /**
+     * Creates partitioned pool if {@link #MAX_PARTITIONS} is configured. All {@code pool.partition.*} properties
+     * are removed from the map.
+     *
+     * @param props pool properties
+     * @param cff broker-specific {@link ConnectionFactoryFactory}
+     * @param poolFactory creates a pool using given {@link ConnectionFactoryFactory}
+     * @return partitioned pool or single pool if partitioning is not enabled
+     */
+    public static ConnectionFactory create(Map<String, Object> props, ConnectionFactoryFactory cff,
+            Function<ConnectionFactoryFactory, ConnectionFactory> poolFactory) {
+        int maxPartitions = getInt(props, MAX_PARTITIONS, 0);
+        int maxConnections = getInt(props, MAX_CONNECTIONS, 0);
+        props.keySet().removeIf(key -> key.startsWith(PARTITION_PREFIX));
+        if (maxPartitions <= 0) {
+            return poolFactory.apply(cff);
+        }
+        return new PartitionedConnectionFactory(poolFactory, cff, maxPartitions, maxConnections);
+    }
+
+    /**
+     * Number of currently open partitions.
+     *
+     * @return number of partitions
+     */
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return createConnection(null, null);
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        Partition partition;
+        try {
+            partition = partition(userName, password);
+        } catch (JMSRuntimeException e) {
+            throw (JMSException) new JMSException(e.getMessage(), e.getErrorCode()).initCause(e);
+        }
+        try {
+            return (Connection) partition.borrowed(partition.pool.createConnection());
+        } catch (JMSException | RuntimeException e) {
+            discardIfUnused(partition);
+            throw e;
+        }
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return createContext(null, null, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return createContext(userName, password, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return createContext(null, null, sessionMode);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        Partition partition = partition(userName, password);
+        try {
+            // partition's pool is already bound to the credentials
+            return (JMSContext) partition.borrowed(partition.pool.createContext(sessionMode));
+        } catch (RuntimeException e) {
+            discardIfUnused(partition);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Partition> closed;
+        synchronized (this) {
+            closed = new ArrayList<>(partitions.values());
+            partitions.clear();
+        }
+        closed.forEach(Partition::close);
+    }
+
+    /**
+     * Gets (or creates) the partition for given credentials and marks it as used, so it's not evicted until
+     * borrowed object is closed.
+     */
+    private Partition partition(String userName, String password) {
+        Key key = new Key(userName, password);
+        Partition evicted = null;
+        Partition partition;
+        synchronized (this) {
+            partition = partitions.get(key);
+            if (partition == null) {
+                if (partitions.size() >= maxPartitions) {
+                    evicted = evictIdle(null);
+                    if (evicted == null) {
+                        throw new JMSRuntimeException("Can't create pool partition for user " + userName + ": all "
+                                + maxPartitions + " partitions are in use", PARTITION_LIMIT);
+                    }
+                }
+                partition = new Partition(key);
+                partitions.put(key, partition);
+            }
+            partition.borrowed.incrementAndGet();
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+        if (partition.pool == null) {
+            synchronized (partition) {
+                if (partition.pool == null) {
+                    try {
+                        partition.pool = poolFactory.apply(partition);
+                    } catch (RuntimeException e) {
+                        synchronized (this) {
+                            partitions.remove(key, partition);
+                        }
+                        throw e;
+                    }
+                }
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Releases partition after failed borrow and removes it, if it has no connections, so it doesn't count
+     * into partition limit.
+     */
+    private void discardIfUnused(Partition partition) {
+        partition.release();
+        boolean removed;
+        synchronized (this) {
+            removed = partition.borrowed.get() == 0 && partition.connections.isEmpty()
+                    && partitions.remove(partition.key, partition);
+        }
+        if (removed) {
+            partition.close();
+        }
+    }
+
+    /**
+     * Removes least recently used partition without borrowed objects.
+     *
+     * @param except partition which should not be evicted
+     * @return removed partition to be closed or {@code null}
+     */
+    private synchronized Partition evictIdle(Partition except) {
+        for (Iterator<Partition> it = partitions.values().iterator(); it.hasNext(); ) {
+            Partition partition = it.next();
+            if (partition != except && partition.borrowed.get() == 0) {
+                it.remove();
+                LOG.info("Evicting idle pool partition of user {}", partition.key.userName);
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a permit for new physical connection, evicting idle partitions if needed.
+     */
+    private void acquireConnection(Partition partition) throws JMSException {
+        if (connectionPermits == null) {
+            return;
+        }
+        while (!connectionPermits.tryAcquire()) {
+            Partition evicted = evictIdle(partition);
+            if (evicted == null) {
+                throw new JMSException("Can't create connection for user " + partition.key.userName
+                        + ": all connections are used by other partitions", CONNECTION_LIMIT);
+            }
+            evicted.close();
+        }
+    }
+
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object proxy(Object target, InvocationHandler handler) {
+        List<Class<?>> interfaces = new ArrayList<>();
+        for (Class<?> iface : BORROWED_INTERFACES) {
+            if (iface.isInstance(target)) {
+                interfaces.add(iface);
+            }
+        }
+        return Proxy.newProxyInstance(PartitionedConnectionFactory.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[0]), handler);
+    }
+
+    private static final class Key {
+
+        private final String userName;
+        private final String password;
+
+        Key(String userName, String password) {
+            this.userName = userName;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(userName, key.userName) && Objects.equals(password, key.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userName, password);
+        }
+    }
+
+    /**
+     * Pool of single credentials. As {@link ConnectionFactoryFactory}, it creates broker-specific connection
+     * factories for the pool, which connect with partition's credentials.
+     */
+    private class Partition implements ConnectionFactoryFactory {
+
+        private final Key key;
+        private final AtomicInteger borrowed = new AtomicInteger();
+        private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+        private volatile ConnectionFactory pool;
+
+        Partition(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public ConnectionFactory createConnectionFactory(Map<String, Object> props) {
+            return wrap(cff.createConnectionFactory(props));
+        }
+
+        @Override
+        public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) {
+            return wrap(cff.createXAConnectionFactory(props));
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T wrap(T cf) {
+            if (cf instanceof XAConnectionFactory) {
+                return (T) new PartitionXAConnectionFactory(this, cf);
+            }
+            return (T) new PartitionConnectionFactory(this, cf);
+        }
+
+        Object borrowed(Object target) {
+            AtomicBoolean closed = new AtomicBoolean();
+            return proxy(target, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "close":
+                        try {
+                            return invoke(target, method, args);
+                        } finally {
+                            if (closed.compareAndSet(false, true)) {
+                                release();
+                            }
+                        }
+                    default:
+                        return invoke(target, method, args);
+                }
+            });
+        }
+
+        void release() {
+            borrowed.decrementAndGet();
+        }
+
+        /**
+         * Registers physical connection created for the pool. Its permit is returned when it's closed.
+         */
+        Connection physical(Connection connection) {
+            AtomicBoolean closed = new AtomicBoolean();
+            Connection[] handle = new Connection[1];
+            handle[0] = (Connection) proxy(connection, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "close":
+                        try {
+                            return invoke(connection, method, args);
+                        } finally {
+                            if (closed.compareAndSet(false, true)) {
+                                connections.remove(handle[0]);
+                                if (connectionPermits != null) {
+                                    connectionPermits.release();
+                                }
+                            }
+                        }
+                    default:
+                        return invoke(connection, method, args);
+                }
+            });
+            connections.add(handle[0]);
+            return handle[0];
+        }
+
+        void close() {
+            if (pool instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) pool).close();
+                } catch (Exception e) {
+                    LOG.warn("Error closing pool partition of user " + key.userName + ": " + e.getMessage(), e);
+                }
+            }
+            // pools without close() still hold their connections
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (JMSException | RuntimeException e) {
+                    LOG.debug("Error closing connection of pool partition: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Broker-specific {@link ConnectionFactory} of a partition. Connections are always created with partition's
+     * credentials, within global connection limit.
+     */
+    private class PartitionConnectionFactory implements ConnectionFactory {
+
+        protected final Partition partition;
+        protected final Object delegate;
+
+        PartitionConnectionFactory(Partition partition, Object delegate) {
+            this.partition = partition;
+            this.delegate = delegate;
+        }
+
+        private ConnectionFactory cf() {
+            return (ConnectionFactory) delegate;
+        }
+
+        @Override
+        public Connection createConnection() throws JMSException {
+            acquireConnection(partition);
+            try {
+                Key key = partition.key;
+                return partition.physical(key.userName == null && key.password == null ? cf().createConnection()
+                        : cf().createConnection(key.userName, key.password));
+            } catch (JMSException | RuntimeException e) {
+                if (connectionPermits != null) {
+                    connectionPermits.release();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) throws JMSException {
+            // partition's credentials are used regardless of what the pool asks for
+            return createConnection();
+        }
+
+        @Override
+        public JMSContext createContext() {
+            return createContext(JMSContext.AUTO_ACKNOWLEDGE);
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            return createContext(JMSContext.AUTO_ACKNOWLEDGE);
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            return createContext(sessionMode);
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            // pools create contexts from their pooled connections, this is used only for non-pooled contexts
+            Key key = partition.key;
+            return key.userName == null && key.password == null ? cf().createContext(sessionMode)
+                    : cf().createContext(key.userName, key.password, sessionMode);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private class PartitionXAConnectionFactory extends PartitionConnectionFactory implements XAConnectionFactory {
+
+        PartitionXAConnectionFactory(Partition partition, Object delegate) {
+            super(partition, delegate);
+        }
+
+        private XAConnectionFactory xacf() {
+            return (XAConnectionFactory) delegate;
+        }
+
+        @Override
+        public XAConnection createXAConnection() throws JMSException {
+            acquireConnection(partition);
+            try {
+                Key key = partition.key;
+                return (XAConnection) partition.physical(key.userName == null && key.password == null
+                        ? xacf().createXAConnection() : xacf().createXAConnection(key.userName, key.password));
+            } catch (JMSException | RuntimeException e) {
+                if (connectionPermits != null) {
+                    connectionPermits.release();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public XAConnection createXAConnection(String userName, String password) throws JMSException {
+            return createXAConnection();
+        }
+
+        @Override
+        public XAJMSContext createXAContext() {
+            Key key = partition.key;
+            return key.userName == null && key.password == null ? xacf().createXAContext()
+                    : xacf().createXAContext(key.userName, key.password);
+        }
+
+        @Override
+        public XAJMSContext createXAContext(String userName, String password) {
+            return createXAContext();
+        }
+    }
+
+}
@@ -15,7 +15,9 @@
  */
 package org.ops4j.pax.jms.config.impl;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSRuntimeException;
 import javax.jms.XAConnectionFactory;
@@ -23,10 +25,19 @@ import javax.jms.XAConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.ops4j.pax.jms.service.PooledConnectionFactoryFactory;
 
-public class PoolingWrapper implements ConnectionFactoryFactory {
+/**
+ * {@link ConnectionFactoryFactory} creating pooled connection factories. Backend independent
+ * {@code pool.validation.*} properties configure {@link ConnectionValidator} of pooled connections and
+ * {@code pool.borrow.*} properties configure {@link BorrowQueueConnectionFactory} wrapping the pool, which may be
+ * partitioned by credentials with {@code pool.partition.*} properties - see {@link PartitionedConnectionFactory}.
+ * Connects to the broker may be guarded by {@link CircuitBreaker} configured with {@code pool.circuitBreaker.*}
+ * properties. Each of them removes its properties, so only the remaining ones configure the pool itself.
+ */
+public class PoolingWrapper implements ConnectionFactoryFactory, AutoCloseable {
     
     private PooledConnectionFactoryFactory pcff;
     private ConnectionFactoryFactory cff;
+    private ConnectionValidator validator;
 
     public PoolingWrapper(PooledConnectionFactoryFactory pcff, ConnectionFactoryFactory cff) {
         this.pcff = pcff;
@@ -35,7 +46,20 @@ public class PoolingWrapper implements ConnectionFactoryFactory {
 
     @Override
     public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
-        return pcff.create(cff, props);
+        Map<String, Object> poolProps = new HashMap<>(props);
+        UnaryOperator<ConnectionFactory> borrowQueue = BorrowQueueConnectionFactory.configure(poolProps);
+        CircuitBreaker circuitBreaker = CircuitBreaker.create(poolProps);
+        ConnectionFactoryFactory brokerCff = circuitBreaker == null ? cff : circuitBreaker.wrap(cff);
+        validator = ConnectionValidator.create(poolProps);
+        try {
+            ConnectionFactory pool = PartitionedConnectionFactory.create(poolProps,
+                    validator == null ? brokerCff : validator.wrap(brokerCff),
+                    partitionCff -> pcff.create(partitionCff, new HashMap<>(poolProps)));
+            return borrowQueue.apply(pool);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
     }
 
     @Override
@@ -43,4 +67,12 @@ public class PoolingWrapper implements ConnectionFactoryFactory {
         return cff.createXAConnectionFactory(props);
     }
 
+    @Override
+    public void close() {
+        if (validator != null) {
+            validator.close();
+            validator = null;
+        }
+    }
+
 }
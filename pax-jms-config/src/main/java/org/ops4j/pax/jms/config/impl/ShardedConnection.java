@@ -0,0 +1,326 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.jms.Connection;
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionFactory;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.Topic;
+
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Connection} of {@link ShardedConnectionFactory}, which lazily opens connections of member connection
+ * factories. Connections of members removed from the ring are closed.
+ */
+class ShardedConnection implements Connection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedConnection.class);
+
+    private final ShardedConnectionFactory factory;
+    private final String userName;
+    private final String password;
+
+    private final Map<Member, Connection> connections = new LinkedHashMap<>();
+    private final Map<Destination, Member> temporaryDestinations = new HashMap<>();
+    private final Set<ShardedSession> sessions = new HashSet<>();
+
+    private String clientID;
+    private ExceptionListener exceptionListener;
+    private boolean started;
+    private boolean closed;
+
+    ShardedConnection(ShardedConnectionFactory factory, String userName, String password) {
+        this.factory = factory;
+        this.userName = userName;
+        this.password = password;
+    }
+
+    /**
+     * @param destination routed destination
+     * @return member owning the destination
+     */
+    Member route(Destination destination) throws JMSException {
+        if (destination instanceof TemporaryQueue || destination instanceof TemporaryTopic) {
+            Member member;
+            synchronized (this) {
+                member = temporaryDestinations.get(destination);
+            }
+            if (member == null) {
+                throw new IllegalStateException("Temporary destination " + destination
+                        + " wasn't created by this connection");
+            }
+            return member;
+        }
+        return factory.route(name(destination));
+    }
+
+    Member route(String name) throws JMSException {
+        return factory.route(name);
+    }
+
+    List<Member> members() {
+        return factory.getMembers();
+    }
+
+    synchronized void temporaryDestinationCreated(Destination destination, Member member) {
+        temporaryDestinations.put(destination, member);
+    }
+
+    synchronized void sessionClosed(ShardedSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Closes and forgets connections (and sessions and temporary destinations) of members which are no longer
+     * available.
+     *
+     * @param members currently available members
+     */
+    void retain(List<Member> members) {
+        List<Connection> dropped = new ArrayList<>();
+        List<ShardedSession> opened;
+        synchronized (this) {
+            for (Iterator<Map.Entry<Member, Connection>> it = connections.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Member, Connection> e = it.next();
+                if (!members.contains(e.getKey())) {
+                    dropped.add(e.getValue());
+                    it.remove();
+                }
+            }
+            temporaryDestinations.values().retainAll(members);
+            opened = new ArrayList<>(sessions);
+        }
+        for (ShardedSession session : opened) {
+            session.retain(members);
+        }
+        for (Connection c : dropped) {
+            try {
+                c.close();
+            } catch (JMSException e) {
+                LOG.warn("Error closing connection of removed member: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns (possibly new) connection of given member.
+     *
+     * @param member member of sharded connection factory
+     * @return connection of the member
+     */
+    synchronized Connection connection(Member member) throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Connection is closed");
+        }
+        Connection connection = connections.get(member);
+        if (connection == null) {
+            ConnectionFactory cf = (ConnectionFactory) member.getConnectionFactory();
+            connection = userName == null ? cf.createConnection() : cf.createConnection(userName, password);
+            try {
+                if (clientID != null) {
+                    connection.setClientID(clientID);
+                }
+                if (exceptionListener != null) {
+                    connection.setExceptionListener(exceptionListener);
+                }
+                if (started) {
+                    connection.start();
+                }
+            } catch (JMSException e) {
+                connection.close();
+                throw e;
+            }
+            connections.put(member, connection);
+        }
+        return connection;
+    }
+
+    @Override
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        ShardedSession session = new ShardedSession(this, transacted,
+                transacted ? Session.SESSION_TRANSACTED : acknowledgeMode);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Connection is closed");
+            }
+            sessions.add(session);
+        }
+        return session;
+    }
+
+    @Override
+    public Session createSession(int sessionMode) throws JMSException {
+        return createSession(sessionMode == Session.SESSION_TRANSACTED, sessionMode);
+    }
+
+    @Override
+    public Session createSession() throws JMSException {
+        return createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public synchronized String getClientID() throws JMSException {
+        return clientID;
+    }
+
+    @Override
+    public synchronized void setClientID(String clientID) throws JMSException {
+        if (!connections.isEmpty()) {
+            throw new IllegalStateException("Client ID can't be set after the connection was used");
+        }
+        this.clientID = clientID;
+    }
+
+    /**
+     * Metadata of already opened member connection or of the first member that can be connected to.
+     */
+    @Override
+    public ConnectionMetaData getMetaData() throws JMSException {
+        List<Member> members = members();
+        Connection opened = null;
+        synchronized (this) {
+            for (Map.Entry<Member, Connection> e : connections.entrySet()) {
+                if (members.contains(e.getKey())) {
+                    opened = e.getValue();
+                    break;
+                }
+            }
+        }
+        if (opened != null) {
+            return opened.getMetaData();
+        }
+        JMSException failure = null;
+        for (Member member : members) {
+            try {
+                return connection(member).getMetaData();
+            } catch (JMSException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new JMSException("No sharded ConnectionFactory members available");
+    }
+
+    @Override
+    public synchronized ExceptionListener getExceptionListener() throws JMSException {
+        return exceptionListener;
+    }
+
+    @Override
+    public synchronized void setExceptionListener(ExceptionListener listener) throws JMSException {
+        this.exceptionListener = listener;
+        for (Connection c : connections.values()) {
+            c.setExceptionListener(listener);
+        }
+    }
+
+    @Override
+    public synchronized void start() throws JMSException {
+        started = true;
+        for (Connection c : connections.values()) {
+            c.start();
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws JMSException {
+        started = false;
+        for (Connection c : connections.values()) {
+            c.stop();
+        }
+    }
+
+    @Override
+    public void close() throws JMSException {
+        List<Connection> toClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<>(connections.values());
+            connections.clear();
+            sessions.clear();
+        }
+        factory.connectionClosed(this);
+        JMSException failure = null;
+        for (Connection c : toClose) {
+            try {
+                c.close();
+            } catch (JMSException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector,
+            ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection(route(destination)).createConnectionConsumer(destination, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection(route(topic)).createSharedConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection(route(topic)).createDurableConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    @Override
+    public ConnectionConsumer createSharedDurableConnectionConsumer(Topic topic, String subscriptionName,
+            String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        return connection(route(topic)).createSharedDurableConnectionConsumer(topic, subscriptionName, messageSelector, sessionPool, maxMessages);
+    }
+
+    static String name(Destination destination) throws JMSException {
+        if (destination instanceof Queue) {
+            return ((Queue) destination).getQueueName();
+        } else if (destination instanceof Topic) {
+            return ((Topic) destination).getTopicName();
+        }
+        throw new InvalidDestinationException("Can't route destination " + destination);
+    }
+
+}
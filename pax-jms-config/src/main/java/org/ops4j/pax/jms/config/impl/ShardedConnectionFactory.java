@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+
+/**
+ * <p>{@link ConnectionFactory} routing destinations to member connection factories (shards) using
+ * {@link ConsistentHashRing consistent hash ring} of destination names. Connections and sessions open
+ * connections and sessions of members lazily, when a destination owned by given member is used.</p>
+ *
+ * <p>Only classic JMS API is supported - {@link JMSContext} can't be created. Transacted sessions commit
+ * member sessions one by one, so transaction spanning several shards is not atomic.</p>
+ */
+public class ShardedConnectionFactory implements ConnectionFactory, AutoCloseable {
+
+    private final int virtualNodes;
+    private volatile List<Member> members;
+    private volatile ConsistentHashRing ring;
+    private final Set<ShardedConnection> connections = ConcurrentHashMap.newKeySet();
+    private Runnable onClose = () -> { };
+
+    public ShardedConnectionFactory(List<Member> members, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        setMembers(members);
+    }
+
+    /**
+     * Rebuilds the ring after members change. Destinations of remaining members keep their shards. Open
+     * connections release connections of removed members.
+     *
+     * @param members currently available members
+     */
+    public void setMembers(List<Member> members) {
+        this.ring = new ConsistentHashRing(members, virtualNodes);
+        this.members = members;
+        for (ShardedConnection connection : connections) {
+            connection.retain(members);
+        }
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Finds member owning given routing key.
+     *
+     * @param key destination name
+     * @return member owning the key
+     * @throws JMSException if there are no members available
+     */
+    Member route(String key) throws JMSException {
+        Member member = ring.select(key);
+        if (member == null) {
+            throw new JMSException("No sharded ConnectionFactory members available");
+        }
+        return member;
+    }
+
+    void connectionClosed(ShardedConnection connection) {
+        connections.remove(connection);
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return createConnection(null, null);
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        ShardedConnection connection = new ShardedConnection(this, userName, password);
+        connections.add(connection);
+        return connection;
+    }
+
+    @Override
+    public JMSContext createContext() {
+        throw unsupportedContext();
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        throw unsupportedContext();
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        throw unsupportedContext();
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        throw unsupportedContext();
+    }
+
+    @Override
+    public void close() {
+        onClose.run();
+    }
+
+    private JMSRuntimeException unsupportedContext() {
+        return new JMSRuntimeException("JMSContext is not supported by sharded ConnectionFactory."
+                + " Use createConnection() instead");
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSRuntimeException;
+import javax.jms.XAConnectionFactory;
+
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.osgi.framework.BundleContext;
+
+/**
+ * <p>{@link ConnectionFactoryFactory} registered with {@code type=sharded}. Created
+ * {@link ShardedConnectionFactory} routes each destination to one of member {@link ConnectionFactory} services
+ * using consistent hashing of destination names. Properties:</p>
+ * <ul>
+ *     <li>{@code members} - comma separated list of PIDs or names ({@code name} or
+ *     {@code osgi.jndi.service.name}) of member connection factories, each optionally followed by
+ *     {@code *weight}. Members are tracked dynamically.</li>
+ *     <li>{@code virtualNodes} - number of ring points per unit of member weight, 160 by default</li>
+ * </ul>
+ * <p>When a member is added or removed, only destinations of ring segments taken or released by this member
+ * are routed differently.</p>
+ */
+public class ShardedConnectionFactoryFactory implements ConnectionFactoryFactory {
+
+    public static final String TYPE = "sharded";
+
+    static final String MEMBERS = "members";
+    static final String VIRTUAL_NODES = "virtualNodes";
+
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final BundleContext context;
+
+    public ShardedConnectionFactoryFactory(BundleContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        Object members = props.get(MEMBERS);
+        if (members == null) {
+            throw new JMSRuntimeException("Sharded ConnectionFactory requires " + MEMBERS + " property");
+        }
+        int virtualNodes = DEFAULT_VIRTUAL_NODES;
+        Object value = props.get(VIRTUAL_NODES);
+        if (value != null) {
+            try {
+                virtualNodes = Integer.parseInt(value.toString().trim());
+            } catch (NumberFormatException e) {
+                virtualNodes = -1;
+            }
+            if (virtualNodes <= 0) {
+                throw new JMSRuntimeException("Invalid " + VIRTUAL_NODES + " value: " + value);
+            }
+        }
+
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(Collections.emptyList(), virtualNodes);
+        MemberTracker tracker = new MemberTracker(context, MemberTracker.weights(members.toString()), cf::setMembers);
+        cf.setOnClose(tracker::close);
+        tracker.open();
+        return cf;
+    }
+
+    @Override
+    public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        throw new JMSRuntimeException("Sharded XA ConnectionFactory is not supported");
+    }
+
+}
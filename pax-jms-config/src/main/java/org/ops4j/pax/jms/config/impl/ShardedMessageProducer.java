@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jms.CompletionListener;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Unidentified {@link MessageProducer} of {@link ShardedSession}, sending each message with producer of the
+ * member session owning its destination.
+ */
+class ShardedMessageProducer implements MessageProducer {
+
+    private final ShardedSession session;
+    private final Map<Session, MessageProducer> producers = new IdentityHashMap<>();
+
+    private boolean disableMessageID;
+    private boolean disableMessageTimestamp;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private long deliveryDelay = Message.DEFAULT_DELIVERY_DELAY;
+
+    ShardedMessageProducer(ShardedSession session) {
+        this.session = session;
+    }
+
+    private synchronized MessageProducer producer(Destination destination) throws JMSException {
+        Session s = session.session(destination);
+        MessageProducer producer = producers.get(s);
+        if (producer == null) {
+            producer = s.createProducer(null);
+            producer.setDisableMessageID(disableMessageID);
+            producer.setDisableMessageTimestamp(disableMessageTimestamp);
+            producer.setDeliveryMode(deliveryMode);
+            producer.setPriority(priority);
+            producer.setTimeToLive(timeToLive);
+            producer.setDeliveryDelay(deliveryDelay);
+            producers.put(s, producer);
+        }
+        return producer;
+    }
+
+    private synchronized List<MessageProducer> opened() {
+        return new ArrayList<>(producers.values());
+    }
+
+    @Override
+    public synchronized void setDisableMessageID(boolean value) throws JMSException {
+        disableMessageID = value;
+        for (MessageProducer p : producers.values()) {
+            p.setDisableMessageID(value);
+        }
+    }
+
+    @Override
+    public synchronized boolean getDisableMessageID() throws JMSException {
+        return disableMessageID;
+    }
+
+    @Override
+    public synchronized void setDisableMessageTimestamp(boolean value) throws JMSException {
+        disableMessageTimestamp = value;
+        for (MessageProducer p : producers.values()) {
+            p.setDisableMessageTimestamp(value);
+        }
+    }
+
+    @Override
+    public synchronized boolean getDisableMessageTimestamp() throws JMSException {
+        return disableMessageTimestamp;
+    }
+
+    @Override
+    public synchronized void setDeliveryMode(int deliveryMode) throws JMSException {
+        this.deliveryMode = deliveryMode;
+        for (MessageProducer p : producers.values()) {
+            p.setDeliveryMode(deliveryMode);
+        }
+    }
+
+    @Override
+    public synchronized int getDeliveryMode() throws JMSException {
+        return deliveryMode;
+    }
+
+    @Override
+    public synchronized void setPriority(int defaultPriority) throws JMSException {
+        this.priority = defaultPriority;
+        for (MessageProducer p : producers.values()) {
+            p.setPriority(defaultPriority);
+        }
+    }
+
+    @Override
+    public synchronized int getPriority() throws JMSException {
+        return priority;
+    }
+
+    @Override
+    public synchronized void setTimeToLive(long timeToLive) throws JMSException {
+        this.timeToLive = timeToLive;
+        for (MessageProducer p : producers.values()) {
+            p.setTimeToLive(timeToLive);
+        }
+    }
+
+    @Override
+    public synchronized long getTimeToLive() throws JMSException {
+        return timeToLive;
+    }
+
+    @Override
+    public synchronized void setDeliveryDelay(long deliveryDelay) throws JMSException {
+        this.deliveryDelay = deliveryDelay;
+        for (MessageProducer p : producers.values()) {
+            p.setDeliveryDelay(deliveryDelay);
+        }
+    }
+
+    @Override
+    public synchronized long getDeliveryDelay() throws JMSException {
+        return deliveryDelay;
+    }
+
+    @Override
+    public Destination getDestination() throws JMSException {
+        return null;
+    }
+
+    @Override
+    public void close() throws JMSException {
+        for (MessageProducer p : opened()) {
+            p.close();
+        }
+        synchronized (this) {
+            producers.clear();
+        }
+    }
+
+    @Override
+    public void send(Message message) throws JMSException {
+        throw new UnsupportedOperationException("Producer without destination requires destination for each message");
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        throw new UnsupportedOperationException("Producer without destination requires destination for each message");
+    }
+
+    @Override
+    public void send(Message message, CompletionListener completionListener) throws JMSException {
+        throw new UnsupportedOperationException("Producer without destination requires destination for each message");
+    }
+
+    @Override
+    public void send(Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        throw new UnsupportedOperationException("Producer without destination requires destination for each message");
+    }
+
+    @Override
+    public void send(Destination destination, Message message) throws JMSException {
+        producer(destination).send(destination, message);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        producer(destination).send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, CompletionListener completionListener) throws JMSException {
+        producer(destination).send(destination, message, completionListener);
+    }
+
+    @Override
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive,
+            CompletionListener completionListener) throws JMSException {
+        producer(destination).send(destination, message, deliveryMode, priority, timeToLive, completionListener);
+    }
+
+}
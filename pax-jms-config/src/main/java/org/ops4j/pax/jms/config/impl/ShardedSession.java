@@ -0,0 +1,370 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+
+/**
+ * {@link Session} of {@link ShardedConnection}, which lazily opens sessions of members owning used destinations.
+ * Messages are created by an already opened member session (usually the one of the producer's destination), so
+ * creating a message doesn't connect to unrelated members. JMS providers accept messages created by other sessions
+ * (and other providers).
+ */
+class ShardedSession implements Session {
+
+    private final ShardedConnection connection;
+    private final boolean transacted;
+    private final int acknowledgeMode;
+
+    private final Map<Member, Session> sessions = new LinkedHashMap<>();
+    private boolean closed;
+
+    ShardedSession(ShardedConnection connection, boolean transacted, int acknowledgeMode) {
+        this.connection = connection;
+        this.transacted = transacted;
+        this.acknowledgeMode = acknowledgeMode;
+    }
+
+    /**
+     * Returns (possibly new) session of given member.
+     *
+     * @param member member of sharded connection factory
+     * @return session of the member
+     */
+    synchronized Session session(Member member) throws JMSException {
+        if (closed) {
+            throw new IllegalStateException("Session is closed");
+        }
+        Session session = sessions.get(member);
+        if (session == null) {
+            session = connection.connection(member).createSession(transacted, acknowledgeMode);
+            sessions.put(member, session);
+        }
+        return session;
+    }
+
+    Session session(Destination destination) throws JMSException {
+        if (destination == null) {
+            throw new InvalidDestinationException("Destination is required");
+        }
+        return session(connection.route(destination));
+    }
+
+    /**
+     * Selects member for operations without destination (messages, temporary destinations) - member of already
+     * opened session if possible, otherwise the first member whose session can be opened.
+     *
+     * @return member with opened session
+     */
+    private Member anyMember() throws JMSException {
+        List<Member> members = connection.members();
+        synchronized (this) {
+            for (Member member : sessions.keySet()) {
+                if (members.contains(member)) {
+                    return member;
+                }
+            }
+        }
+        JMSException failure = null;
+        for (Member member : members) {
+            try {
+                session(member);
+                return member;
+            } catch (JMSException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new JMSException("No sharded ConnectionFactory members available");
+    }
+
+    private Session anySession() throws JMSException {
+        return session(anyMember());
+    }
+
+    /**
+     * Forgets sessions of members which are no longer available - they're closed with their connections.
+     *
+     * @param members currently available members
+     */
+    synchronized void retain(List<Member> members) {
+        sessions.keySet().retainAll(members);
+    }
+
+    private synchronized List<Session> opened() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    @Override
+    public BytesMessage createBytesMessage() throws JMSException {
+        return anySession().createBytesMessage();
+    }
+
+    @Override
+    public MapMessage createMapMessage() throws JMSException {
+        return anySession().createMapMessage();
+    }
+
+    @Override
+    public Message createMessage() throws JMSException {
+        return anySession().createMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage() throws JMSException {
+        return anySession().createObjectMessage();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        return anySession().createObjectMessage(object);
+    }
+
+    @Override
+    public StreamMessage createStreamMessage() throws JMSException {
+        return anySession().createStreamMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage() throws JMSException {
+        return anySession().createTextMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage(String text) throws JMSException {
+        return anySession().createTextMessage(text);
+    }
+
+    @Override
+    public boolean getTransacted() throws JMSException {
+        return transacted;
+    }
+
+    @Override
+    public int getAcknowledgeMode() throws JMSException {
+        return acknowledgeMode;
+    }
+
+    @Override
+    public void commit() throws JMSException {
+        for (Session s : opened()) {
+            s.commit();
+        }
+    }
+
+    @Override
+    public void rollback() throws JMSException {
+        JMSException failure = null;
+        for (Session s : opened()) {
+            try {
+                s.rollback();
+            } catch (JMSException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws JMSException {
+        List<Session> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        connection.sessionClosed(this);
+        JMSException failure = null;
+        for (Session s : toClose) {
+            try {
+                s.close();
+            } catch (JMSException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void recover() throws JMSException {
+        for (Session s : opened()) {
+            s.recover();
+        }
+    }
+
+    @Override
+    public MessageListener getMessageListener() throws JMSException {
+        return null;
+    }
+
+    @Override
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        throw new IllegalStateException("Session message listener is not supported by sharded sessions");
+    }
+
+    @Override
+    public void run() {
+    }
+
+    @Override
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        if (destination == null) {
+            return new ShardedMessageProducer(this);
+        }
+        return session(destination).createProducer(destination);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        return session(destination).createConsumer(destination);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+        return session(destination).createConsumer(destination, messageSelector);
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) throws JMSException {
+        return session(destination).createConsumer(destination, messageSelector, noLocal);
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) throws JMSException {
+        return session(topic).createSharedConsumer(topic, sharedSubscriptionName);
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector) throws JMSException {
+        return session(topic).createSharedConsumer(topic, sharedSubscriptionName, messageSelector);
+    }
+
+    @Override
+    public Queue createQueue(String queueName) throws JMSException {
+        return session(connection.route(queueName)).createQueue(queueName);
+    }
+
+    @Override
+    public Topic createTopic(String topicName) throws JMSException {
+        return session(connection.route(topicName)).createTopic(topicName);
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        return session(topic).createDurableSubscriber(topic, name);
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException {
+        return session(topic).createDurableSubscriber(topic, name, messageSelector, noLocal);
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name) throws JMSException {
+        return session(topic).createDurableConsumer(topic, name);
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException {
+        return session(topic).createDurableConsumer(topic, name, messageSelector, noLocal);
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name) throws JMSException {
+        return session(topic).createSharedDurableConsumer(topic, name);
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector) throws JMSException {
+        return session(topic).createSharedDurableConsumer(topic, name, messageSelector);
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        return session(queue).createBrowser(queue);
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+        return session(queue).createBrowser(queue, messageSelector);
+    }
+
+    @Override
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        Member member = anyMember();
+        TemporaryQueue queue = session(member).createTemporaryQueue();
+        connection.temporaryDestinationCreated(queue, member);
+        return queue;
+    }
+
+    @Override
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        Member member = anyMember();
+        TemporaryTopic topic = session(member).createTemporaryTopic();
+        connection.temporaryDestinationCreated(topic, member);
+        return topic;
+    }
+
+    /**
+     * Durable subscription name doesn't identify the topic, so all members are asked to remove it.
+     */
+    @Override
+    public void unsubscribe(String name) throws JMSException {
+        boolean removed = false;
+        JMSException failure = null;
+        for (Member member : connection.members()) {
+            try {
+                session(member).unsubscribe(name);
+                removed = true;
+            } catch (InvalidDestinationException e) {
+                failure = e;
+            }
+        }
+        if (!removed) {
+            throw failure != null ? failure : new InvalidDestinationException("Unknown subscription " + name);
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings({
+        "rawtypes", "unchecked"
+})
+public class BalancedConnectionFactoryFactoryTest {
+
+    private static final String ARTEMIS_CFF
+            = "(&(objectClass=org.ops4j.pax.jms.service.ConnectionFactoryFactory)(type=artemis))";
+
+    private BundleContext context;
+
+    @Before
+    public void setup() throws Exception {
+        context = mock(BundleContext.class);
+        when(context.createFilter(anyString()))
+                .thenAnswer(invocation -> FrameworkUtil.createFilter(invocation.getArgument(0, String.class)));
+    }
+
+    @Test
+    public void balanceUrls() throws Exception {
+        ConnectionFactoryFactory cff = mock(ConnectionFactoryFactory.class);
+        ServiceReference ref = mock(ServiceReference.class);
+        when(context.getServiceReferences((String) null, ARTEMIS_CFF)).thenReturn(new ServiceReference[] { ref });
+        when(context.getService(ref)).thenReturn(cff);
+        ConnectionFactory cf1 = memberCF(cff, "tcp://b1:61616");
+        ConnectionFactory cf2 = memberCF(cff, "tcp://b2:61616");
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(BalancedConnectionFactoryFactory.URLS, "tcp://b1:61616*3, tcp://b2:61616");
+        props.put(BalancedConnectionFactoryFactory.MEMBER_TYPE, "artemis");
+        props.put(BalancedConnectionFactoryFactory.BALANCING, "weighted");
+        props.put(ConnectionFactoryFactory.JMS_USER, "admin");
+        ConnectionFactory cf = new BalancedConnectionFactoryFactory(context).createConnectionFactory(props);
+
+        for (int i = 0; i < 8; i++) {
+            cf.createConnection();
+        }
+        verify(cf1, times(6)).createConnection();
+        verify(cf2, times(2)).createConnection();
+        verify(cff).createConnectionFactory(argThat(m -> "admin".equals(m.get(ConnectionFactoryFactory.JMS_USER))
+                && !m.containsKey(BalancedConnectionFactoryFactory.URLS)
+                && "tcp://b1:61616".equals(m.get(ConnectionFactoryFactory.JMS_URL))));
+
+        ((AutoCloseable) cf).close();
+        verify(context).ungetService(ref);
+    }
+
+    @Test
+    public void trackMemberType() throws Exception {
+        ArgumentCaptor<ServiceListener> listener = ArgumentCaptor.forClass(ServiceListener.class);
+        doNothing().when(context).addServiceListener(listener.capture(), eq(ARTEMIS_CFF));
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(BalancedConnectionFactoryFactory.URLS, "tcp://b1:61616");
+        props.put(BalancedConnectionFactoryFactory.MEMBER_TYPE, "artemis");
+        // provider bundle is not started yet
+        ConnectionFactory cf = new BalancedConnectionFactoryFactory(context).createConnectionFactory(props);
+        try {
+            cf.createConnection();
+            fail("No members available yet");
+        } catch (JMSException expected) {
+        }
+
+        ConnectionFactoryFactory cff1 = mock(ConnectionFactoryFactory.class);
+        ServiceReference ref1 = mock(ServiceReference.class);
+        when(context.getService(ref1)).thenReturn(cff1);
+        ConnectionFactory cf1 = memberCF(cff1, "tcp://b1:61616");
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref1));
+        cf.createConnection();
+        verify(cf1).createConnection();
+
+        // provider bundle is refreshed
+        ConnectionFactoryFactory cff2 = mock(ConnectionFactoryFactory.class);
+        ServiceReference ref2 = mock(ServiceReference.class);
+        when(context.getService(ref2)).thenReturn(cff2);
+        ConnectionFactory cf2 = memberCF(cff2, "tcp://b1:61616");
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, ref1));
+        verify(context).ungetService(ref1);
+        try {
+            cf.createConnection();
+            fail("Stale member must not be used");
+        } catch (JMSException expected) {
+        }
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref2));
+        cf.createConnection();
+        verify(cf1, times(1)).createConnection();
+        verify(cf2).createConnection();
+
+        ((AutoCloseable) cf).close();
+        verify(context).ungetService(ref2);
+    }
+
+    @Test
+    public void failingMemberIsEjected() throws Exception {
+        ConnectionFactoryFactory cff = mock(ConnectionFactoryFactory.class);
+        ServiceReference ref = mock(ServiceReference.class);
+        when(context.getServiceReferences((String) null, ARTEMIS_CFF)).thenReturn(new ServiceReference[] { ref });
+        when(context.getService(ref)).thenReturn(cff);
+        ConnectionFactory cf1 = memberCF(cff, "tcp://b1:61616");
+        ConnectionFactory cf2 = memberCF(cff, "tcp://b2:61616");
+        when(cf1.createConnection()).thenThrow(new JMSException("Connection refused"));
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(BalancedConnectionFactoryFactory.URLS, "tcp://b1:61616,tcp://b2:61616");
+        props.put(BalancedConnectionFactoryFactory.MEMBER_TYPE, "artemis");
+        ConnectionFactory cf = new BalancedConnectionFactoryFactory(context).createConnectionFactory(props);
+
+        for (int i = 0; i < 10; i++) {
+            cf.createConnection();
+        }
+        verify(cf1, times(1)).createConnection();
+        verify(cf2, times(10)).createConnection();
+    }
+
+    @Test
+    public void trackMembers() throws Exception {
+        ConnectionFactory member = mock(ConnectionFactory.class);
+        when(member.createConnection()).thenReturn(mock(Connection.class));
+        ServiceReference ref = mock(ServiceReference.class);
+        when(ref.getProperty(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME)).thenReturn("cf1");
+        String filter = "(&(objectClass=javax.jms.ConnectionFactory)(|(service.pid=cf1)(name=cf1)(osgi.jndi.service.name=cf1)"
+                + "(service.pid=cf2)(name=cf2)(osgi.jndi.service.name=cf2)))";
+        when(context.getServiceReferences((String) null, filter)).thenReturn(new ServiceReference[] { ref });
+        when(context.getService(ref)).thenReturn(member);
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(BalancedConnectionFactoryFactory.MEMBERS, "cf1, cf2*2");
+        ConnectionFactory cf = new BalancedConnectionFactoryFactory(context).createConnectionFactory(props);
+
+        try (Connection c = cf.createConnection()) {
+            assertTrue(c != null);
+        }
+        verify(member).createConnection();
+        assertEquals(1, ((BalancedConnectionFactoryFactory.BalancedConnectionFactory) cf).getMembers().size());
+
+        ((AutoCloseable) cf).close();
+        verify(context).ungetService(ref);
+    }
+
+    @Test
+    public void invalidConfiguration() {
+        BalancedConnectionFactoryFactory bcff = new BalancedConnectionFactoryFactory(context);
+        Map<String, Object> props = new HashMap<>();
+        try {
+            bcff.createConnectionFactory(props);
+            fail("Members are required");
+        } catch (JMSRuntimeException expected) {
+        }
+        props.put(BalancedConnectionFactoryFactory.URLS, "tcp://b1:61616");
+        try {
+            bcff.createConnectionFactory(props);
+            fail("Member type is required");
+        } catch (JMSRuntimeException expected) {
+        }
+        props.put(BalancedConnectionFactoryFactory.MEMBER_TYPE, "artemis");
+        props.put(BalancedConnectionFactoryFactory.BALANCING, "random");
+        try {
+            bcff.createConnectionFactory(props);
+            fail("Unknown strategy");
+        } catch (JMSRuntimeException expected) {
+        }
+        try {
+            bcff.createXAConnectionFactory(props);
+            fail("XA is not supported");
+        } catch (JMSRuntimeException expected) {
+        }
+    }
+
+    private ConnectionFactory memberCF(ConnectionFactoryFactory cff, String url) throws JMSException {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        when(cf.createConnection()).thenReturn(mock(Connection.class));
+        when(cff.createConnectionFactory(argThat(m -> m != null && url.equals(m.get(ConnectionFactoryFactory.JMS_URL)))))
+                .thenReturn(cf);
+        return cf;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Session;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class BorrowQueueConnectionFactoryTest {
+
+    @Test
+    public void configuration() {
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.maxConnections", "4");
+        props.put(BorrowQueueConnectionFactory.BORROW_TIMEOUT_PROPERTY, "100");
+        assertThat(BorrowQueueConnectionFactory.configure(props).apply(pool), sameInstance(pool));
+        assertThat(props.size(), equalTo(1));
+
+        props.put(BorrowQueueConnectionFactory.BORROW_MAX_ACTIVE, "4");
+        assertThat(BorrowQueueConnectionFactory.configure(props).apply(pool), instanceOf(BorrowQueueConnectionFactory.class));
+        assertThat(props.size(), equalTo(1));
+    }
+
+    @Test
+    public void boundedWaitAndRejection() throws Exception {
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        when(pool.createContext()).thenAnswer(invocation -> mock(JMSContext.class));
+        BorrowQueueConnectionFactory cf = new BorrowQueueConnectionFactory(pool, 1, 200, 1);
+
+        JMSContext first = cf.createContext();
+        CompletableFuture<JMSContext> waiting = CompletableFuture.supplyAsync(cf::createContext);
+        while (cf.getQueueDepth() == 0) {
+            Thread.sleep(5);
+        }
+        try {
+            cf.createContext();
+            fail("Should be rejected");
+        } catch (JMSRuntimeException expected) {
+            assertThat(expected.getErrorCode(), equalTo(BorrowQueueConnectionFactory.QUEUE_FULL));
+        }
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            fail("Should time out");
+        } catch (ExecutionException expected) {
+            assertThat(((JMSRuntimeException) expected.getCause()).getErrorCode(),
+                    equalTo(BorrowQueueConnectionFactory.BORROW_TIMEOUT));
+        }
+
+        // returned permit is handed to the next caller
+        waiting = CompletableFuture.supplyAsync(cf::createContext);
+        while (cf.getQueueDepth() == 0) {
+            Thread.sleep(5);
+        }
+        first.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+
+        BorrowQueueConnectionFactory.Statistics statistics = cf.getBorrowStatistics();
+        assertThat(statistics.getRejected(), equalTo(1L));
+        assertThat(statistics.getTimedOut(), equalTo(1L));
+        assertThat(statistics.getWaitTimeHistogram().size(), equalTo(10));
+        assertThat(statistics.getWaitTimeHistogram().values().stream().mapToLong(Long::longValue).sum(), equalTo(2L));
+    }
+
+    @Test
+    public void statisticsAreExported() {
+        ConnectionFactory pool = mock(ConnectionFactory.class,
+                withSettings().extraInterfaces(ConnectionFactoryStatistics.class));
+        when(((ConnectionFactoryStatistics) pool).getStatistics())
+                .thenReturn(Collections.singletonMap("xa.onePhaseCommits", 3L));
+        when(pool.createContext()).thenAnswer(invocation -> mock(JMSContext.class));
+        BorrowQueueConnectionFactory cf = new BorrowQueueConnectionFactory(pool, 1, 10, 0);
+
+        cf.createContext().close();
+        try {
+            cf.createContext(); // single permit is used
+            cf.createContext();
+            fail("Should be rejected");
+        } catch (JMSRuntimeException expected) {
+        }
+
+        Map<String, Long> statistics = cf.getStatistics();
+        assertThat(statistics.get("xa.onePhaseCommits"), equalTo(3L));
+        // permits were available immediately
+        assertThat(statistics.get("borrow.waitTime.<=0ms"), equalTo(2L));
+        assertThat(statistics.get("borrow.rejected"), equalTo(1L));
+        assertThat(statistics.get("borrow.timedOut"), equalTo(0L));
+        assertThat(statistics.get("borrow.queueDepth"), equalTo(0L));
+    }
+
+    @Test
+    public void sessionsAreBorrowedThroughConnection() throws Exception {
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        Session session = mock(Session.class);
+        when(pool.createConnection()).thenReturn(connection);
+        when(connection.createSession(anyInt())).thenReturn(session);
+        BorrowQueueConnectionFactory cf = new BorrowQueueConnectionFactory(pool, 1, 10, 10);
+
+        Connection c = cf.createConnection();
+        Session s = c.createSession(Session.AUTO_ACKNOWLEDGE);
+        assertThat(s, not(sameInstance(session)));
+        try {
+            c.createSession(Session.AUTO_ACKNOWLEDGE);
+            fail("Should time out");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), equalTo(BorrowQueueConnectionFactory.BORROW_TIMEOUT));
+        }
+        s.close();
+        s.close();
+        verify(session, times(2)).close();
+        c.createSession(Session.AUTO_ACKNOWLEDGE).close();
+        c.close();
+        verify(connection).close();
+    }
+
+    @Test
+    public void closingConnectionReturnsPermitsOfItsSessions() throws Exception {
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        when(pool.createConnection()).thenAnswer(invocation -> {
+            Connection connection = mock(Connection.class);
+            when(connection.createSession(anyBoolean(), anyInt())).thenAnswer(i -> mock(Session.class));
+            return connection;
+        });
+        BorrowQueueConnectionFactory cf = new BorrowQueueConnectionFactory(pool, 2, 10, 10);
+
+        for (int i = 0; i < 3; i++) {
+            try (Connection c = cf.createConnection()) {
+                c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            }
+        }
+
+        // explicitly closed session doesn't return its permit twice
+        Connection c = cf.createConnection();
+        c.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+        c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        c.close();
+        try (Connection c2 = cf.createConnection()) {
+            c2.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            c2.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            try {
+                c2.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                fail("Should time out");
+            } catch (JMSException expected) {
+                assertThat(expected.getErrorCode(), equalTo(BorrowQueueConnectionFactory.BORROW_TIMEOUT));
+            }
+        }
+        assertThat(cf.getBorrowStatistics().getTimedOut(), equalTo(1L));
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.JMSSecurityException;
+import javax.jms.JMSSecurityRuntimeException;
+import javax.jms.XAConnectionFactory;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void configuration() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(CircuitBreaker.OPEN_TIME, "1000");
+        assertThat(CircuitBreaker.create(props), nullValue());
+        assertThat(props.isEmpty(), equalTo(true));
+
+        props.put(CircuitBreaker.FAILURE_THRESHOLD, "3");
+        CircuitBreaker breaker = CircuitBreaker.create(props);
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+        assertThat(breaker.wrap(mock(ConnectionFactory.class)), not(instanceOf(XAConnectionFactory.class)));
+        assertThat(breaker.wrap(mock(XAConnectionFactory.class)), instanceOf(XAConnectionFactory.class));
+    }
+
+    @Test
+    public void opensAfterFailuresAndClosesAfterProbe() throws Exception {
+        ConnectionFactory broker = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(broker.createConnection())
+                .thenThrow(new JMSException("Connection refused"))
+                .thenThrow(new JMSException("Connection refused"))
+                .thenThrow(new JMSException("Connection refused"))
+                .thenReturn(connection);
+        CircuitBreaker breaker = new CircuitBreaker(2, 0, 100);
+        ConnectionFactory cf = breaker.wrap(broker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cf.createConnection();
+                fail("Should fail");
+            } catch (JMSException expected) {
+                assertThat(expected.getErrorCode(), nullValue());
+            }
+        }
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+        try {
+            cf.createContext();
+            fail("Should fail fast");
+        } catch (JMSRuntimeException expected) {
+            assertThat(expected.getErrorCode(), equalTo(CircuitBreaker.CIRCUIT_OPEN));
+        }
+        verify(broker, times(2)).createConnection();
+
+        // failed probe opens the breaker again
+        Thread.sleep(150);
+        try {
+            cf.createConnection();
+            fail("Probe should fail");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), nullValue());
+        }
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+        try {
+            cf.createConnection();
+            fail("Should fail fast");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), equalTo(CircuitBreaker.CIRCUIT_OPEN));
+        }
+
+        Thread.sleep(150);
+        assertThat(cf.createConnection(), sameInstance(connection));
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+        verify(broker, times(4)).createConnection();
+    }
+
+    @Test
+    public void authenticationFailuresAreNotCounted() throws Exception {
+        ConnectionFactory broker = mock(ConnectionFactory.class);
+        when(broker.createConnection("u", "p")).thenThrow(new JMSSecurityException("Invalid credentials"));
+        when(broker.createContext("u", "p")).thenThrow(new JMSSecurityRuntimeException("Invalid credentials"));
+        CircuitBreaker breaker = new CircuitBreaker(1, 0, 60000);
+        ConnectionFactory cf = breaker.wrap(broker);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                cf.createConnection("u", "p");
+                fail("Should fail");
+            } catch (JMSSecurityException expected) {
+            }
+            try {
+                cf.createContext("u", "p");
+                fail("Should fail");
+            } catch (JMSSecurityRuntimeException expected) {
+            }
+        }
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+        verify(broker, times(3)).createConnection("u", "p");
+    }
+
+    @Test
+    public void errorOfProbeOpensTheBreaker() throws Exception {
+        ConnectionFactory broker = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(broker.createConnection())
+                .thenThrow(new JMSException("Connection refused"))
+                .thenThrow(new OutOfMemoryError("probe"))
+                .thenReturn(connection);
+        CircuitBreaker breaker = new CircuitBreaker(1, 0, 100);
+        ConnectionFactory cf = breaker.wrap(broker);
+
+        try {
+            cf.createConnection();
+            fail("Should fail");
+        } catch (JMSException expected) {
+        }
+        Thread.sleep(150);
+        try {
+            cf.createConnection();
+            fail("Probe should fail");
+        } catch (OutOfMemoryError expected) {
+        }
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+
+        Thread.sleep(150);
+        assertThat(cf.createConnection(), sameInstance(connection));
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void slowConnectsOpenTheBreaker() throws Exception {
+        ConnectionFactory broker = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(broker.createConnection()).thenAnswer(invocation -> {
+            Thread.sleep(50);
+            return connection;
+        });
+        CircuitBreaker breaker = new CircuitBreaker(1, 10, 60000);
+        ConnectionFactory cf = breaker.wrap(broker);
+
+        // slow connect still returns the connection
+        assertThat(cf.createConnection(), sameInstance(connection));
+        assertThat(breaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+        try {
+            cf.createConnection();
+            fail("Should fail fast");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), equalTo(CircuitBreaker.CIRCUIT_OPEN));
+        }
+    }
+
+}
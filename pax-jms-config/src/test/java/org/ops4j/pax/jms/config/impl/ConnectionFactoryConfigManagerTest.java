@@ -21,6 +21,7 @@ import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
 import javax.jms.ConnectionFactory;
+import javax.sql.DataSource;
 
 import org.jasypt.encryption.StringEncryptor;
 import org.junit.Before;
@@ -28,6 +29,7 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.ops4j.pax.jms.config.ConfigLoader;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.PooledConnectionFactoryFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkUtil;
@@ -35,8 +37,11 @@ import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ConfigurationException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
@@ -139,6 +144,29 @@ public class ConnectionFactoryConfigManagerTest {
         assertEquals(externalEncryptedValue, properties.get(ConnectionFactoryFactory.JMS_PASSWORD));
     }
 
+    @Test
+    public void testDataSource() throws Exception {
+        final ConnectionFactoryFactory cff = expectTracked(context, ConnectionFactoryFactory.class, ARTEMIS_CFF_FILTER);
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        ArgumentCaptor<Map> capturedProps = ArgumentCaptor.forClass(Map.class);
+        when(cff.createConnectionFactory(capturedProps.capture())).thenReturn(cf);
+        expectRegistration(cf);
+        String dsFilter = "(&(objectClass=javax.sql.DataSource)(dataSourceName=aq))";
+        DataSource ds = expectTracked(context, DataSource.class, dsFilter);
+
+        ConnectionFactoryConfigManager cfManager = new ConnectionFactoryConfigManager(context, new ExternalConfigLoader(context));
+
+        Dictionary<String, String> properties = new Hashtable<String, String>();
+        properties.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME, "mycfname");
+        properties.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_TYPE, "artemis");
+        properties.put(ConnectionFactoryConfigManager.DATASOURCE_FILTER, "dataSourceName=aq");
+        cfManager.updated(TESTPID, properties);
+        verify(context).addServiceListener(any(ServiceListener.class), eq(dsFilter));
+        verify(context).addServiceListener(any(ServiceListener.class), eq(ARTEMIS_CFF_FILTER));
+
+        assertSame(ds, capturedProps.getValue().get(ConnectionFactoryFactory.JMS_DATASOURCE));
+    }
+
     /**
      * Tests: - hidden properties (starting with a dot) are not added to service registry. - nonlocal
      * properties (containing a dot) are not propagated to
@@ -202,6 +230,25 @@ public class ConnectionFactoryConfigManagerTest {
         verify(context).addServiceListener(any(ServiceListener.class), eq(ARTEMIS_CFF_FILTER));
     }
 
+    @Test
+    public void testXaPartitioningRejected() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(PooledConnectionFactoryFactory.POOL_KEY, "narayana");
+        properties.put(PooledConnectionFactoryFactory.XA_KEY, "true");
+        properties.put(PartitionedConnectionFactory.MAX_PARTITIONS, "4");
+        try {
+            ConnectionFactoryConfigManager.getPooledCFFFilter(properties);
+            fail("XA partitioning should be rejected");
+        } catch (ConfigurationException expected) {
+            assertEquals(PartitionedConnectionFactory.MAX_PARTITIONS, expected.getProperty());
+        }
+
+        properties.put(PooledConnectionFactoryFactory.POOL_KEY, "narayana");
+        properties.put(PooledConnectionFactoryFactory.XA_KEY, "false");
+        assertEquals("(&(objectClass=" + PooledConnectionFactoryFactory.class.getName() + ")(pool=narayana)(xa=false))",
+                ConnectionFactoryConfigManager.getPooledCFFFilter(properties));
+    }
+
     private <T> T expectTracked(BundleContext context, Class<T> iface, String expectedFilter) throws InvalidSyntaxException {
         final T serviceMock = mock(iface);
         ServiceReference ref = mock(ServiceReference.class);
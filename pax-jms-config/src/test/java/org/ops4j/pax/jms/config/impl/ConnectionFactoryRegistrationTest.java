@@ -15,11 +15,58 @@
  */
 package org.ops4j.pax.jms.config.impl;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import javax.jms.ConnectionFactory;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.AsyncConnectionFactory;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class ConnectionFactoryRegistrationTest {
 
     private static final String H2_DRIVER_CLASS = "org.h2.Driver";
 
+    @Test
+    public void statisticsRegisteredWithConnectionFactory() {
+        BundleContext context = mock(BundleContext.class);
+        ServiceRegistration cfReg = mock(ServiceRegistration.class);
+        ServiceRegistration statisticsReg = mock(ServiceRegistration.class);
+        when(context.registerService(anyString(), any(), any())).thenReturn(cfReg);
+        when(context.registerService(eq(ConnectionFactoryStatistics.class), any(ConnectionFactoryStatistics.class), any()))
+                .thenReturn(statisticsReg);
+        ConnectionFactory cf = mock(ConnectionFactory.class,
+                withSettings().extraInterfaces(ConnectionFactoryStatistics.class));
+        ConnectionFactoryFactory cff = mock(ConnectionFactoryFactory.class);
+        when(cff.createConnectionFactory(any(Map.class))).thenReturn(cf);
+
+        Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put(ConnectionFactoryFactory.JMS_CONNECTIONFACTORY_NAME, "mycfname");
+        properties.put(AsyncConnectionFactory.ASYNC_THREADS, "0");
+        ConnectionFactoryRegistration registration
+                = new ConnectionFactoryRegistration(context, cff, properties, properties);
+        verify(context).registerService(eq(ConnectionFactoryStatistics.class),
+                same((ConnectionFactoryStatistics) cf), any(Dictionary.class));
+
+        registration.close();
+        verify(statisticsReg).unregister();
+        verify(cfReg).unregister();
+    }
+
 //    @Test
 //    public void testPublishedAndUnpublished() throws ConfigurationException,
 //        InvalidSyntaxException, SQLException {
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.internal.DelegatingInvocationHandler;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class ConnectionValidatorTest {
+
+    @Test
+    public void configuration() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.maxConnections", "4");
+        assertThat(ConnectionValidator.create(props), nullValue());
+
+        props.put(ConnectionValidator.VALIDATION_INTERVAL, "60000");
+        props.put(ConnectionValidator.VALIDATION_TIMEOUT, "1000");
+        try (ConnectionValidator validator = ConnectionValidator.create(props)) {
+            assertThat(validator, not(nullValue()));
+            assertThat(props.size(), equalTo(1));
+
+            ConnectionFactory cf = mock(ConnectionFactory.class);
+            assertThat(validator.wrap(cf), not(instanceOf(XAConnectionFactory.class)));
+            XAConnectionFactory xacf = mock(XAConnectionFactory.class, withSettings().extraInterfaces(ConnectionFactory.class));
+            assertThat(validator.wrap(xacf), instanceOf(XAConnectionFactory.class));
+        }
+    }
+
+    @Test
+    public void idleConnectionIsValidated() throws Exception {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection physical = mock(Connection.class);
+        Session session = mock(Session.class);
+        TemporaryQueue queue = mock(TemporaryQueue.class);
+        when(cf.createConnection()).thenReturn(physical);
+        when(physical.createSession(false, Session.AUTO_ACKNOWLEDGE)).thenReturn(session);
+        when(session.createTemporaryQueue()).thenReturn(queue);
+
+        try (ConnectionValidator validator = new ConnectionValidator(60000, 0, 1000)) {
+            Connection connection = validator.wrap(cf).createConnection();
+            ExceptionListener listener = mock(ExceptionListener.class);
+            connection.setExceptionListener(listener);
+            assertThat(validator.getConnectionCount(), equalTo(1));
+
+            validator.validate();
+            verify(queue).delete();
+            verify(session).close();
+            verify(listener, never()).onException(any());
+            assertThat(validator.getConnectionCount(), equalTo(1));
+
+            connection.close();
+            verify(physical).close();
+            assertThat(validator.getConnectionCount(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void failedConnectionIsEvicted() throws Exception {
+        XAConnectionFactory cf = mock(XAConnectionFactory.class);
+        XAConnection physical = mock(XAConnection.class);
+        when(cf.createXAConnection()).thenReturn(physical);
+        when(physical.createSession(false, Session.AUTO_ACKNOWLEDGE)).thenThrow(new JMSException("Broken pipe"));
+
+        try (ConnectionValidator validator = new ConnectionValidator(60000, 0, 1000)) {
+            XAConnection connection = validator.wrap(cf).createXAConnection();
+            ExceptionListener listener = mock(ExceptionListener.class);
+            connection.setExceptionListener(listener);
+            verify(physical).setExceptionListener(listener);
+
+            validator.validate();
+            verify(listener, timeout(5000)).onException(any(JMSException.class));
+            verify(physical, timeout(5000)).close();
+            assertThat(validator.getConnectionCount(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void hangingConnectionIsEvicted() throws Exception {
+        CountDownLatch halfOpen = new CountDownLatch(1);
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection physical = mock(Connection.class);
+        when(cf.createConnection()).thenReturn(physical);
+        when(physical.createSession(false, Session.AUTO_ACKNOWLEDGE)).thenAnswer(invocation -> {
+            halfOpen.await();
+            return null;
+        });
+
+        try (ConnectionValidator validator = new ConnectionValidator(60000, 0, 100)) {
+            Connection connection = validator.wrap(cf).createConnection();
+            ExceptionListener listener = mock(ExceptionListener.class);
+            connection.setExceptionListener(listener);
+
+            validator.validate();
+            verify(listener, timeout(5000)).onException(any(JMSException.class));
+            assertThat(validator.getConnectionCount(), equalTo(0));
+            halfOpen.countDown();
+        }
+    }
+
+    @Test
+    public void activeConnectionIsNotValidated() throws Exception {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection physical = mock(Connection.class);
+        when(cf.createConnection()).thenReturn(physical);
+
+        try (ConnectionValidator validator = new ConnectionValidator(60000, 60000, 1000)) {
+            Connection connection = validator.wrap(cf).createConnection();
+            connection.start();
+            validator.validate();
+            verify(physical, never()).createSession(false, Session.AUTO_ACKNOWLEDGE);
+        }
+    }
+
+    @Test
+    public void sessionActivityKeepsConnectionActive() throws Exception {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection physical = mock(Connection.class);
+        Session physicalSession = mock(Session.class);
+        when(cf.createConnection()).thenReturn(physical);
+        when(physical.createSession(true, Session.SESSION_TRANSACTED)).thenReturn(physicalSession);
+
+        try (ConnectionValidator validator = new ConnectionValidator(60000, 200, 1000)) {
+            Connection connection = validator.wrap(cf).createConnection();
+            Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            assertThat(DelegatingInvocationHandler.delegateOf(session), sameInstance(physicalSession));
+
+            // only the session is used after the connection became idle
+            Thread.sleep(300);
+            session.createTextMessage("m1");
+            session.commit();
+            validator.validate();
+            verify(physicalSession).commit();
+            verify(physical, never()).createSession(false, Session.AUTO_ACKNOWLEDGE);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.junit.Test;
+import org.osgi.service.cm.ConfigurationException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConsumerContainerTest {
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final Session session = mock(Session.class);
+    private final ConnectionFactory cf = mock(ConnectionFactory.class);
+
+    public ConsumerContainerTest() throws Exception {
+        Connection connection = mock(Connection.class);
+        MessageConsumer consumer = mock(MessageConsumer.class);
+        when(cf.createConnection()).thenReturn(connection);
+        when(connection.createSession(anyBoolean(), anyInt())).thenReturn(session);
+        when(session.createQueue(anyString())).thenReturn(mock(Queue.class));
+        when(session.createConsumer(any(Queue.class), isNull())).thenReturn(consumer);
+        when(consumer.receive(anyLong())).thenAnswer(invocation ->
+                queue.poll(invocation.getArgument(0), TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void acknowledgeAndRedeliver() throws Exception {
+        Message ok = mock(Message.class);
+        Message failing = mock(Message.class);
+        CountDownLatch handled = new CountDownLatch(2);
+        MessageListener listener = message -> {
+            handled.countDown();
+            if (message == failing) {
+                throw new IllegalStateException("failure");
+            }
+        };
+        try (ConsumerContainer container = new ConsumerContainer("test", cf, listener, settings(1, 1))) {
+            queue.add(ok);
+            queue.add(failing);
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+            verify(ok, timeout(5000)).acknowledge();
+            verify(session, timeout(5000)).recover();
+        }
+    }
+
+    @Test
+    public void adaptiveConcurrency() throws Exception {
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(200);
+        MessageListener listener = message -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            handled.countDown();
+        };
+        try (ConsumerContainer container = new ConsumerContainer("test", cf, listener, settings(1, 4))) {
+            assertThat(container.getConsumerCount(), equalTo(1));
+            for (int i = 0; i < 200; i++) {
+                queue.add(mock(Message.class));
+            }
+            assertTrue(handled.await(10, TimeUnit.SECONDS));
+            assertThat(maxConcurrent.get(), equalTo(4));
+
+            // idle consumers stop, down to minimum
+            long deadline = System.currentTimeMillis() + 5000;
+            while (container.getConsumerCount() > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertThat(container.getConsumerCount(), equalTo(1));
+        }
+    }
+
+    private ConsumerContainer.Settings settings(int min, int max) throws ConfigurationException {
+        Dictionary<String, Object> config = new Hashtable<>();
+        config.put(ConsumerContainer.DESTINATION, "q1");
+        config.put(ConsumerContainer.MIN_CONSUMERS, Integer.toString(min));
+        config.put(ConsumerContainer.MAX_CONSUMERS, Integer.toString(max));
+        config.put(ConsumerContainer.RECEIVE_TIMEOUT, "50");
+        config.put(ConsumerContainer.IDLE_RECEIVES, "3");
+        return new ConsumerContainer.Settings(config);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ExecutorAsyncConnectionFactoryTest {
+
+    @Test
+    public void connect() throws Exception {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        JMSContext context = mock(JMSContext.class);
+        when(cf.createConnection()).thenReturn(connection);
+        when(cf.createContext(JMSContext.CLIENT_ACKNOWLEDGE)).thenReturn(context);
+        try (ExecutorAsyncConnectionFactory acf = new ExecutorAsyncConnectionFactory("test", cf, 2, 10, 5000)) {
+            assertThat(acf.createConnectionAsync().toCompletableFuture().get(5, TimeUnit.SECONDS), sameInstance(connection));
+            assertThat(acf.createContextAsync(JMSContext.CLIENT_ACKNOWLEDGE).toCompletableFuture().get(5, TimeUnit.SECONDS),
+                    sameInstance(context));
+        }
+    }
+
+    @Test
+    public void timeoutClosesLateConnection() throws Exception {
+        CountDownLatch handshake = new CountDownLatch(1);
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(cf.createConnection()).thenAnswer(invocation -> {
+            awaitUninterruptibly(handshake);
+            return connection;
+        });
+        try (ExecutorAsyncConnectionFactory acf = new ExecutorAsyncConnectionFactory("test", cf, 1, 10, 100)) {
+            CompletableFuture<Connection> future = acf.createConnectionAsync().toCompletableFuture();
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Should time out");
+            } catch (ExecutionException expected) {
+                assertThat(expected.getCause(), instanceOf(TimeoutException.class));
+            }
+            handshake.countDown();
+            verify(connection, timeout(5000)).close();
+        }
+    }
+
+    @Test
+    public void cancelClosesLateConnection() throws Exception {
+        CountDownLatch handshake = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        when(cf.createConnection()).thenAnswer(invocation -> {
+            started.countDown();
+            awaitUninterruptibly(handshake);
+            return connection;
+        });
+        try (ExecutorAsyncConnectionFactory acf = new ExecutorAsyncConnectionFactory("test", cf, 1, 10, 0)) {
+            CompletableFuture<Connection> future = acf.createConnectionAsync().toCompletableFuture();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            future.cancel(true);
+            handshake.countDown();
+            verify(connection, timeout(5000)).close();
+        }
+    }
+
+    @Test
+    public void boundedQueue() throws Exception {
+        CountDownLatch handshake = new CountDownLatch(1);
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        when(cf.createConnection()).thenAnswer(invocation -> {
+            awaitUninterruptibly(handshake);
+            return mock(Connection.class);
+        });
+        try (ExecutorAsyncConnectionFactory acf = new ExecutorAsyncConnectionFactory("test", cf, 1, 1, 0)) {
+            CompletableFuture<Connection> running = acf.createConnectionAsync().toCompletableFuture();
+            CompletableFuture<Connection> queued = acf.createConnectionAsync().toCompletableFuture();
+            CompletableFuture<Connection> rejected = acf.createConnectionAsync().toCompletableFuture();
+            try {
+                rejected.get(5, TimeUnit.SECONDS);
+                fail("Should be rejected");
+            } catch (ExecutionException expected) {
+                assertThat(expected.getCause(), instanceOf(RejectedExecutionException.class));
+            }
+            handshake.countDown();
+            running.get(5, TimeUnit.SECONDS);
+            queued.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException ignored) {
+                // like blocking socket I/O, which doesn't react to interruption
+            }
+        }
+    }
+
+}
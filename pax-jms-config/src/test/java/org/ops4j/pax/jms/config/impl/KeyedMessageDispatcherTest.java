@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.junit.Test;
+import org.osgi.service.cm.ConfigurationException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class KeyedMessageDispatcherTest {
+
+    private static final int KEYS = 8;
+    private static final int MESSAGES = 400;
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final Session session = mock(Session.class);
+    private final ConnectionFactory cf = mock(ConnectionFactory.class);
+
+    public KeyedMessageDispatcherTest() throws Exception {
+        Connection connection = mock(Connection.class);
+        MessageConsumer consumer = mock(MessageConsumer.class);
+        when(cf.createConnection()).thenReturn(connection);
+        when(connection.createSession(anyBoolean(), anyInt())).thenReturn(session);
+        when(session.createQueue(anyString())).thenReturn(mock(Queue.class));
+        when(session.createConsumer(any(Queue.class), isNull())).thenReturn(consumer);
+        when(consumer.receive(anyLong())).thenAnswer(invocation ->
+                queue.poll(invocation.getArgument(0), TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void orderedPerKey() throws Exception {
+        Map<String, List<Integer>> received = Collections.synchronizedMap(new HashMap<>());
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(MESSAGES);
+        MessageListener listener = message -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+                received.computeIfAbsent(message.getStringProperty("JMSXGroupID"), k -> new ArrayList<>())
+                        .add(message.getIntProperty("seq"));
+            } catch (JMSException | InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                concurrent.decrementAndGet();
+                handled.countDown();
+            }
+        };
+        // acknowledge() of any message acknowledges all messages received by the session
+        CountDownLatch acknowledgedAll = new CountDownLatch(1);
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = message("key" + (i % KEYS), i);
+            doAnswer(invocation -> {
+                if (handled.getCount() == 0) {
+                    acknowledgedAll.countDown();
+                }
+                return null;
+            }).when(message).acknowledge();
+            queue.add(message);
+        }
+        try (KeyedMessageDispatcher dispatcher = new KeyedMessageDispatcher("test", cf, listener, settings(4))) {
+            assertTrue(handled.await(10, TimeUnit.SECONDS));
+            assertTrue(acknowledgedAll.await(5, TimeUnit.SECONDS));
+        }
+        assertTrue("Expected parallel processing", maxConcurrent.get() > 1);
+        for (Map.Entry<String, List<Integer>> e : received.entrySet()) {
+            List<Integer> sorted = new ArrayList<>(e.getValue());
+            Collections.sort(sorted);
+            assertThat("Order of " + e.getKey(), e.getValue(), equalTo(sorted));
+            assertThat(e.getValue().size(), equalTo(MESSAGES / KEYS));
+        }
+        verify(session, never()).recover();
+    }
+
+    @Test
+    public void failureRecoversSession() throws Exception {
+        Message failing = message("k1", 1);
+        MessageListener listener = message -> {
+            if (message == failing) {
+                throw new IllegalStateException("failure");
+            }
+        };
+        Message ok = message("k2", 0);
+        queue.add(ok);
+        queue.add(failing);
+        try (KeyedMessageDispatcher dispatcher = new KeyedMessageDispatcher("test", cf, listener, settings(2))) {
+            verify(session, timeout(5000)).recover();
+        }
+        verify(failing, never()).acknowledge();
+    }
+
+    @Test
+    public void individualAcknowledge() throws Exception {
+        Message m1 = message("k1", 0);
+        Message m2 = message("k2", 1);
+        queue.add(m1);
+        queue.add(m2);
+        Dictionary<String, Object> config = config(2);
+        config.put(ConsumerContainer.ACKNOWLEDGE_MODE, "4");
+        try (KeyedMessageDispatcher dispatcher = new KeyedMessageDispatcher("test", cf, message -> { },
+                new ConsumerContainer.Settings(config))) {
+            verify(m1, timeout(5000)).acknowledge();
+            verify(m2, timeout(5000)).acknowledge();
+        }
+    }
+
+    private Message message(String key, int seq) throws JMSException {
+        Message message = mock(Message.class);
+        when(message.getStringProperty("JMSXGroupID")).thenReturn(key);
+        when(message.getIntProperty("seq")).thenReturn(seq);
+        return message;
+    }
+
+    private ConsumerContainer.Settings settings(int workers) throws ConfigurationException {
+        return new ConsumerContainer.Settings(config(workers));
+    }
+
+    private Dictionary<String, Object> config(int workers) {
+        Dictionary<String, Object> config = new Hashtable<>();
+        config.put(ConsumerContainer.DESTINATION, "q1");
+        config.put(ConsumerContainer.WORKERS, Integer.toString(workers));
+        config.put(ConsumerContainer.RECEIVE_TIMEOUT, "50");
+        return config;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PartitionedConnectionFactoryTest {
+
+    private ConnectionFactory broker;
+    private ConnectionFactoryFactory cff;
+    private Map<String, Connection> physical;
+
+    @Before
+    public void before() throws Exception {
+        physical = new HashMap<>();
+        broker = mock(ConnectionFactory.class);
+        when(broker.createConnection(anyString(), anyString())).thenAnswer(invocation -> {
+            Connection connection = mock(Connection.class);
+            physical.put(invocation.getArgument(0), connection);
+            return connection;
+        });
+        cff = mock(ConnectionFactoryFactory.class);
+        when(cff.createConnectionFactory(any())).thenReturn(broker);
+    }
+
+    @Test
+    public void disabledByDefault() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(PartitionedConnectionFactory.MAX_CONNECTIONS, "10");
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        assertThat(PartitionedConnectionFactory.create(props, cff, f -> pool), equalTo(pool));
+        assertThat(props.isEmpty(), equalTo(true));
+
+        props.put(PartitionedConnectionFactory.MAX_PARTITIONS, "10");
+        assertThat(PartitionedConnectionFactory.create(props, cff, f -> pool),
+                instanceOf(PartitionedConnectionFactory.class));
+    }
+
+    @Test
+    public void connectionsAreNotSharedBetweenCredentials() throws Exception {
+        PartitionedConnectionFactory cf = new PartitionedConnectionFactory(SingleConnectionPool::new, cff, 10, 0);
+
+        cf.createConnection("tenant1", "p1").close();
+        cf.createConnection("tenant1", "p1").close();
+        cf.createConnection("tenant2", "p2").close();
+        assertThat(cf.getPartitionCount(), equalTo(2));
+        verify(broker, times(1)).createConnection("tenant1", "p1");
+        verify(broker, times(1)).createConnection("tenant2", "p2");
+
+        // different password means different partition
+        cf.createConnection("tenant1", "changed").close();
+        assertThat(cf.getPartitionCount(), equalTo(3));
+        verify(broker, never()).createConnection();
+
+        cf.close();
+        verify(physical.get("tenant2")).close();
+    }
+
+    @Test
+    public void leastRecentlyUsedIdlePartitionIsEvicted() throws Exception {
+        PartitionedConnectionFactory cf = new PartitionedConnectionFactory(SingleConnectionPool::new, cff, 2, 0);
+
+        Connection c1 = cf.createConnection("tenant1", "p1");
+        cf.createConnection("tenant2", "p2").close();
+        Connection c3 = cf.createConnection("tenant3", "p3");
+        assertThat(cf.getPartitionCount(), equalTo(2));
+        verify(physical.get("tenant2")).close();
+        verify(physical.get("tenant1"), never()).close();
+
+        try {
+            cf.createConnection("tenant4", "p4");
+            fail("All partitions are in use");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), equalTo(PartitionedConnectionFactory.PARTITION_LIMIT));
+        }
+        c1.close();
+        c3.close();
+        cf.createConnection("tenant4", "p4").close();
+        verify(physical.get("tenant1")).close();
+        cf.close();
+    }
+
+    @Test
+    public void connectionLimitIsShared() throws Exception {
+        PartitionedConnectionFactory cf = new PartitionedConnectionFactory(SingleConnectionPool::new, cff, 10, 1);
+
+        cf.createConnection("tenant1", "p1").close();
+        // the only connection is held by idle partition, which is evicted
+        Connection c2 = cf.createConnection("tenant2", "p2");
+        verify(physical.get("tenant1")).close();
+        assertThat(cf.getPartitionCount(), equalTo(1));
+
+        try {
+            cf.createConnection("tenant3", "p3");
+            fail("The only connection is in use");
+        } catch (JMSException expected) {
+            assertThat(expected.getErrorCode(), equalTo(PartitionedConnectionFactory.CONNECTION_LIMIT));
+        }
+        assertThat(cf.getPartitionCount(), equalTo(1));
+        c2.close();
+        cf.createConnection("tenant3", "p3").close();
+        cf.close();
+    }
+
+    /**
+     * Minimal pool - keeps single physical connection and lends handles to it.
+     */
+    private static class SingleConnectionPool implements ConnectionFactory, AutoCloseable {
+
+        private final ConnectionFactory cf;
+        private Connection connection;
+
+        SingleConnectionPool(ConnectionFactoryFactory cff) {
+            this.cf = cff.createConnectionFactory(new HashMap<>());
+        }
+
+        @Override
+        public synchronized Connection createConnection() throws JMSException {
+            if (connection == null) {
+                connection = cf.createConnection();
+            }
+            // closing handle doesn't close pooled connection
+            return mock(Connection.class);
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) throws JMSException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void close() throws JMSException {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+}
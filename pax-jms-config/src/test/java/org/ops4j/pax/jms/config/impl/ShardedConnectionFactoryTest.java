@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.config.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory.Member;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShardedConnectionFactoryTest {
+
+    @Test
+    public void minimalRemapping() {
+        List<Member> members = new ArrayList<>(Arrays.asList(member("b1"), member("b2"), member("b3")));
+        ConsistentHashRing ring = new ConsistentHashRing(members, 160);
+        Map<String, Member> before = new HashMap<>();
+        Map<Member, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            Member m = ring.select("queue." + i);
+            before.put("queue." + i, m);
+            counts.merge(m, 1, Integer::sum);
+        }
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced ring: " + counts, count > 700 && count < 1300);
+        }
+
+        Member added = member("b4");
+        members.add(added);
+        ring = new ConsistentHashRing(members, 160);
+        int moved = 0;
+        for (Map.Entry<String, Member> e : before.entrySet()) {
+            Member m = ring.select(e.getKey());
+            if (m != e.getValue()) {
+                assertSame("Keys may move only to the new member", added, m);
+                moved++;
+            }
+        }
+        assertTrue("Too many keys remapped: " + moved, moved > 400 && moved < 1100);
+    }
+
+    @Test
+    public void routeProducersAndLazySessions() throws Exception {
+        Member m1 = member("b1");
+        Member m2 = member("b2");
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(Arrays.asList(m1, m2), 160);
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(m1, m2), 160);
+
+        // find queue names owned by each member
+        String q1 = null;
+        String q2 = null;
+        for (int i = 0; q1 == null || q2 == null; i++) {
+            if (ring.select("q" + i) == m1) {
+                q1 = "q" + i;
+            } else {
+                q2 = "q" + i;
+            }
+        }
+
+        try (Connection connection = cf.createConnection()) {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            session.createProducer(queue(q1));
+            Session s1 = memberSession(m1);
+            verify(s1).createProducer(any(Queue.class));
+            verify((ConnectionFactory) m2.getConnectionFactory(), never()).createConnection();
+
+            MessageProducer producer = session.createProducer(null);
+            Message message = mock(Message.class);
+            producer.send(queue(q2), message);
+            Session s2 = memberSession(m2);
+            verify(s2.createProducer(null)).send(any(Queue.class), any(Message.class));
+            verify(memberConnection(m2)).start();
+        }
+        verify(memberConnection(m1)).close();
+        verify(memberConnection(m2)).close();
+    }
+
+    @Test
+    public void temporaryQueueStaysWithItsMember() throws Exception {
+        Member m1 = member("b1");
+        Member m2 = member("b2");
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(Arrays.asList(m1, m2), 160);
+        try (Connection connection = cf.createConnection()) {
+            Session session = connection.createSession();
+            TemporaryQueue tq = session.createTemporaryQueue();
+            Member home = mockingDetails(m1.getConnectionFactory()).getInvocations().isEmpty() ? m2 : m1;
+            Member other = home == m1 ? m2 : m1;
+            session.createConsumer(tq);
+            verify((ConnectionFactory) other.getConnectionFactory(), never()).createConnection();
+            verify(memberSession(home)).createConsumer(tq);
+        }
+    }
+
+    @Test
+    public void messagesAreCreatedWithoutUnrelatedMembers() throws Exception {
+        Member m1 = member("b1");
+        Member m2 = member("b2");
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(Arrays.asList(m1, m2), 160);
+        String q2 = queueOf(m2, m1, m2);
+
+        try (Connection connection = cf.createConnection()) {
+            Session session = connection.createSession();
+            session.createProducer(queue(q2));
+            session.createTextMessage("hello");
+            verify(memberSession(m2)).createTextMessage("hello");
+            verify((ConnectionFactory) m1.getConnectionFactory(), never()).createConnection();
+        }
+
+        // without opened sessions, messages are created by the first reachable member
+        when(((ConnectionFactory) m1.getConnectionFactory()).createConnection())
+                .thenThrow(new JMSException("Connection refused"));
+        try (Connection connection = cf.createConnection()) {
+            Session session = connection.createSession();
+            session.createBytesMessage();
+            verify(memberSession(m2)).createBytesMessage();
+        }
+    }
+
+    @Test
+    public void removedMemberIsReleased() throws Exception {
+        Member m1 = member("b1");
+        Member m2 = member("b2");
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(Arrays.asList(m1, m2), 160);
+        String q1 = queueOf(m1, m1, m2);
+        String q2 = queueOf(m2, m1, m2);
+
+        try (Connection connection = cf.createConnection()) {
+            Session session = connection.createSession();
+            session.createProducer(queue(q1));
+            session.createProducer(queue(q2));
+            Connection c2 = memberConnection(m2);
+
+            cf.setMembers(Collections.singletonList(m1));
+            verify(c2).close();
+            verify(memberConnection(m1), never()).close();
+
+            // destinations of removed member move to remaining one
+            session.createProducer(queue(q2));
+            verify(memberSession(m1), times(2)).createProducer(any(Queue.class));
+            session.commit();
+            verify(memberSession(m2), never()).commit();
+        }
+        cf.setMembers(Collections.emptyList());
+        verify(memberConnection(m1)).close();
+    }
+
+    @Test
+    public void noMembers() throws Exception {
+        ShardedConnectionFactory cf = new ShardedConnectionFactory(new ArrayList<>(), 160);
+        try (Connection connection = cf.createConnection()) {
+            Session session = connection.createSession();
+            session.createProducer(queue("q"));
+        } catch (JMSException expected) {
+            assertEquals("No sharded ConnectionFactory members available", expected.getMessage());
+        }
+    }
+
+    private String queueOf(Member owner, Member... members) {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(members), 160);
+        for (int i = 0; ; i++) {
+            if (ring.select("q" + i) == owner) {
+                return "q" + i;
+            }
+        }
+    }
+
+    private Member member(String name) {
+        ConnectionFactory cf = mock(ConnectionFactory.class);
+        Connection connection = mock(Connection.class);
+        Session session = mock(Session.class);
+        MessageProducer producer = mock(MessageProducer.class);
+        TemporaryQueue tq = mock(TemporaryQueue.class);
+        try {
+            when(cf.createConnection()).thenReturn(connection);
+            when(connection.createSession(anyBoolean(), anyInt())).thenReturn(session);
+            when(session.createProducer(any())).thenReturn(producer);
+            when(session.createTemporaryQueue()).thenReturn(tq);
+        } catch (JMSException e) {
+            throw new RuntimeException(e);
+        }
+        return new Member(name, 1, cf);
+    }
+
+    private Connection memberConnection(Member member) throws JMSException {
+        return ((ConnectionFactory) member.getConnectionFactory()).createConnection();
+    }
+
+    private Session memberSession(Member member) throws JMSException {
+        return memberConnection(member).createSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    private Queue queue(String name) throws JMSException {
+        Queue queue = mock(Queue.class);
+        when(queue.getQueueName()).thenReturn(name);
+        return queue;
+    }
+
+}
@@ -15,79 +15,327 @@
  */
 package org.ops4j.pax.jms.ibmmq;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSRuntimeException;
 import javax.jms.XAConnectionFactory;
 
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory;
 import org.ops4j.pax.jms.service.internal.BeanConfig;
 
+/**
+ * <p>{@link ConnectionFactoryFactory} for IBM MQ. Simple properties are set using matching setters of
+ * {@code com.ibm.mq.jms.MQConnectionFactory} (e.g., {@code hostName}, {@code port}, {@code queueManager},
+ * {@code channel}, {@code transportType}, {@code clientReconnectTimeout}). Additionally these options are
+ * validated and converted to IBM MQ constants:</p>
+ * <ul>
+ *     <li>{@code shareConversations} - {@code true}/{@code false}, whether the connection may share TCP/IP channel
+ *     instance with other conversations. Number of shared conversations is limited by {@code SHARECNV} attribute
+ *     of the server-connection channel (or CCDT entry).</li>
+ *     <li>{@code putAsyncAllowed} - {@code enabled}/{@code disabled}/{@code asDest}, asynchronous put of
+ *     non-transacted/non-persistent messages</li>
+ *     <li>{@code readAheadAllowed} - {@code enabled}/{@code disabled}/{@code asDest}, sending non-persistent
+ *     messages to the client before they're requested</li>
+ *     <li>{@code readAheadClosePolicy} - {@code deliverAll}/{@code deliverCurrent}, what happens to read-ahead
+ *     messages when consumer is closed</li>
+ *     <li>{@code clientReconnectOptions} - {@code asDef}/{@code reconnect}/{@code queueManager}/{@code disabled}</li>
+ *     <li>{@code ccdtUrl} - URL of client channel definition table. Can't be combined with {@code channel}.</li>
+ * </ul>
+ * <p>Numeric values of IBM MQ constants are accepted as well. Options for which the connection factory has no
+ * setter are passed using its property context ({@code XMSC_*} properties).</p>
+ *
+ * <p>Non-XA connection factory may spread connections across several queue managers. These options enable
+ * multi-endpoint mode:</p>
+ * <ul>
+ *     <li>{@code endpoints} - comma separated list of {@code [queueManager@]connectionName[*weight]} entries,
+ *     e.g., {@code QM1@mq1(1414)*2, QM2@mq2(1414)}. With {@code ccdtUrl}, entries may contain queue manager names
+ *     only (e.g., {@code QM1, QM2}) to select CCDT entries. All other options are shared by all endpoints.</li>
+ *     <li>{@code balancing} - {@code leastOutstanding} (default), {@code weighted} or
+ *     {@code powerOfTwoChoices}</li>
+ *     <li>{@code endpointFailureBackoff} - milliseconds for which an endpoint that failed to create a connection
+ *     is avoided, defaults to 30000</li>
+ * </ul>
+ */
 public class MQConnectionFactoryFactory implements ConnectionFactoryFactory {
 
+    public static final String SHARE_CONVERSATIONS = "shareConversations";
+    public static final String PUT_ASYNC_ALLOWED = "putAsyncAllowed";
+    public static final String READ_AHEAD_ALLOWED = "readAheadAllowed";
+    public static final String READ_AHEAD_CLOSE_POLICY = "readAheadClosePolicy";
+    public static final String CLIENT_RECONNECT_OPTIONS = "clientReconnectOptions";
+    public static final String CCDT_URL = "ccdtUrl";
+    public static final String ENDPOINTS = "endpoints";
+    public static final String BALANCING = "balancing";
+    public static final String ENDPOINT_FAILURE_BACKOFF = "endpointFailureBackoff";
+
+    private static final long DEFAULT_ENDPOINT_FAILURE_BACKOFF = 30000L;
+
     private static final String IBM_MQ_CONNECTION_FACTORY_CLASS = "com.ibm.mq.jms.MQConnectionFactory";
     private static final String IBM_MQ_XA_CONNECTION_FACTORY_CLASS = "com.ibm.mq.jms.MQXAConnectionFactory";
 
-    private final Class<?> ibmMqConnectionFactoryClass;
-    private final Class<?> ibmMqXaConnectionFactoryClass;
+    private static final Map<String, IntOption> INT_OPTIONS = new HashMap<>();
+
+    static {
+        Map<String, Integer> allowed = new LinkedHashMap<>();
+        allowed.put("true", 1);
+        allowed.put("false", 0);
+        INT_OPTIONS.put(SHARE_CONVERSATIONS,
+                new IntOption("setShareConvAllowed", "XMSC_WMQ_SHARE_CONV_ALLOWED", allowed));
+
+        allowed = new LinkedHashMap<>();
+        allowed.put("asDest", -1);
+        allowed.put("disabled", 0);
+        allowed.put("enabled", 1);
+        INT_OPTIONS.put(PUT_ASYNC_ALLOWED,
+                new IntOption("setPutAsyncAllowed", "XMSC_WMQ_PUT_ASYNC_ALLOWED", allowed));
+        INT_OPTIONS.put(READ_AHEAD_ALLOWED,
+                new IntOption("setReadAheadAllowed", "XMSC_WMQ_READ_AHEAD_ALLOWED", allowed));
+
+        allowed = new LinkedHashMap<>();
+        allowed.put("deliverAll", 1);
+        allowed.put("deliverCurrent", 2);
+        INT_OPTIONS.put(READ_AHEAD_CLOSE_POLICY,
+                new IntOption("setReadAheadClosePolicy", "XMSC_WMQ_READ_AHEAD_CLOSE_POLICY", allowed));
+
+        allowed = new LinkedHashMap<>();
+        allowed.put("asDef", 0);
+        allowed.put("reconnect", 0x01000000);
+        allowed.put("disabled", 0x02000000);
+        allowed.put("queueManager", 0x04000000);
+        INT_OPTIONS.put(CLIENT_RECONNECT_OPTIONS,
+                new IntOption("setClientReconnectOptions", "XMSC_WMQ_CLIENT_RECONNECT_OPTIONS", allowed));
+    }
+
+    private final MethodHandle ibmMqConnectionFactoryConstructor;
+    private final MethodHandle ibmMqXaConnectionFactoryConstructor;
+
+    public MQConnectionFactoryFactory() throws ReflectiveOperationException {
+        this(MQConnectionFactoryFactory.class.getClassLoader().loadClass(IBM_MQ_CONNECTION_FACTORY_CLASS),
+                MQConnectionFactoryFactory.class.getClassLoader().loadClass(IBM_MQ_XA_CONNECTION_FACTORY_CLASS));
+    }
 
-    public MQConnectionFactoryFactory() throws ClassNotFoundException {
-        ClassLoader classLoader = MQConnectionFactoryFactory.class.getClassLoader();
-        this.ibmMqConnectionFactoryClass = classLoader.loadClass(IBM_MQ_CONNECTION_FACTORY_CLASS);
-        this.ibmMqXaConnectionFactoryClass = classLoader.loadClass(IBM_MQ_XA_CONNECTION_FACTORY_CLASS);
+    /**
+     * Creates the factory for given IBM MQ (or compatible) connection factory classes.
+     *
+     * @param connectionFactoryClass class with public no-arg constructor used for non-XA connection factories
+     * @param xaConnectionFactoryClass class with public no-arg constructor used for XA connection factories
+     * @throws ReflectiveOperationException if the constructors can't be found
+     */
+    MQConnectionFactoryFactory(Class<?> connectionFactoryClass, Class<?> xaConnectionFactoryClass)
+            throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodType noArgs = MethodType.methodType(void.class);
+        this.ibmMqConnectionFactoryConstructor = lookup.findConstructor(connectionFactoryClass, noArgs);
+        this.ibmMqXaConnectionFactoryConstructor = lookup.findConstructor(xaConnectionFactoryClass, noArgs);
     }
 
     @Override
     public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        Map<String, Object> config = new HashMap<>(props);
+        Map<IntOption, Integer> options = intOptions(config);
+        URL ccdtUrl = ccdtUrl(config);
+        Object endpoints = config.remove(ENDPOINTS);
+        Object balancing = config.remove(BALANCING);
+        Object backoff = config.remove(ENDPOINT_FAILURE_BACKOFF);
+        if (endpoints == null) {
+            return createConnectionFactory(config, options, ccdtUrl);
+        }
+
+        BalancingConnectionFactory.Strategy strategy = balancing == null
+                ? BalancingConnectionFactory.Strategy.LEAST_OUTSTANDING
+                : BalancingConnectionFactory.Strategy.of(balancing.toString());
+        long backoffMillis = DEFAULT_ENDPOINT_FAILURE_BACKOFF;
+        if (backoff != null) {
+            try {
+                backoffMillis = Long.parseLong(backoff.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new JMSRuntimeException("Invalid IBM MQ " + ENDPOINT_FAILURE_BACKOFF + ": " + backoff);
+            }
+        }
+
+        List<BalancingConnectionFactory.Member> members = new ArrayList<>();
+        for (String endpoint : endpoints.toString().split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            int weight = 1;
+            String target = endpoint;
+            int star = endpoint.lastIndexOf('*');
+            if (star >= 0) {
+                target = endpoint.substring(0, star).trim();
+                try {
+                    weight = Integer.parseInt(endpoint.substring(star + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new JMSRuntimeException("Invalid weight of IBM MQ endpoint \"" + endpoint + "\"");
+                }
+            }
+            String queueManager = null;
+            String connectionName = null;
+            int at = target.indexOf('@');
+            if (at >= 0) {
+                queueManager = target.substring(0, at).trim();
+                connectionName = target.substring(at + 1).trim();
+            } else if (target.contains("(")) {
+                connectionName = target;
+            } else {
+                queueManager = target;
+            }
+            if (connectionName == null && ccdtUrl == null) {
+                throw new JMSRuntimeException("IBM MQ endpoint \"" + endpoint + "\" requires connection name"
+                        + " or " + CCDT_URL);
+            }
+
+            Map<String, Object> endpointConfig = new HashMap<>(config);
+            if (queueManager != null && !queueManager.isEmpty()) {
+                endpointConfig.put("queueManager", queueManager);
+            }
+            if (connectionName != null && !connectionName.isEmpty()) {
+                endpointConfig.put("connectionNameList", connectionName);
+            }
+            members.add(new BalancingConnectionFactory.Member(target, weight,
+                    createConnectionFactory(endpointConfig, options, ccdtUrl)));
+        }
+        if (members.isEmpty()) {
+            throw new JMSRuntimeException("No IBM MQ endpoints configured in " + ENDPOINTS + " property");
+        }
+        return new BalancingConnectionFactory(members, strategy, backoffMillis);
+    }
+
+    private ConnectionFactory createConnectionFactory(Map<String, Object> config, Map<IntOption, Integer> options,
+            URL ccdtUrl) {
         try {
-            ConnectionFactory cf = ConnectionFactory.class.cast(ibmMqConnectionFactoryClass.newInstance());
-            BeanConfig.configure(cf, props);
+            ConnectionFactory cf = (ConnectionFactory) ibmMqConnectionFactoryConstructor.invoke();
+            configure(cf, config, options, ccdtUrl);
             ConnectionFactoryAdapter cfa = new ConnectionFactoryAdapter();
             cfa.setTargetConnectionFactory(cf);
             return cfa;
-        } catch (Exception ex) {
+        } catch (Throwable ex) {
             throw new JMSRuntimeException(ex.getMessage(), "", ex);
         }
     }
 
     @Override
     public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
+        if (props.get(ENDPOINTS) != null) {
+            // transaction recovery has to reach every queue manager, which can't be done through single endpoint
+            throw new JMSRuntimeException("IBM MQ " + ENDPOINTS + " can't be used with XA connection factories");
+        }
+        Map<String, Object> config = new HashMap<>(props);
+        Map<IntOption, Integer> options = intOptions(config);
+        URL ccdtUrl = ccdtUrl(config);
         try {
-            XAConnectionFactory cf = XAConnectionFactory.class.cast(ibmMqXaConnectionFactoryClass.newInstance());
-            BeanConfig.configure(cf, props);
+            XAConnectionFactory cf = (XAConnectionFactory) ibmMqXaConnectionFactoryConstructor.invoke();
+            configure(cf, config, options, ccdtUrl);
             ConnectionFactoryAdapter cfa = new ConnectionFactoryAdapter();
             cfa.setXaTargetConnectionFactory(cf);
             return cfa;
-        } catch (Exception ex) {
+        } catch (Throwable ex) {
             throw new JMSRuntimeException(ex.getMessage(), "", ex);
         }
     }
 
-    @SuppressWarnings("unused")
-    private void setProperties(Object cf, Class<?> clazz, Map<String, Object> props) throws Exception {
+    private void configure(Object cf, Map<String, Object> config, Map<IntOption, Integer> options, URL ccdtUrl)
+            throws Exception {
+        BeanConfig.configure(cf, config);
+        try {
+            for (Map.Entry<IntOption, Integer> e : options.entrySet()) {
+                e.getKey().apply(cf, e.getValue());
+            }
+            if (ccdtUrl != null) {
+                cf.getClass().getMethod("setCCDTURL", URL.class).invoke(cf, ccdtUrl);
+            }
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
 
-        String hostName = (String) props.remove("hostName");
-        clazz.getMethod("setHostName", String.class).invoke(cf, hostName);
+    /**
+     * Removes typed IBM MQ options from the configuration and converts them to values of IBM MQ constants.
+     *
+     * @param config configuration of the connection factory
+     * @return options to set after simple properties are configured
+     */
+    private Map<IntOption, Integer> intOptions(Map<String, Object> config) {
+        Map<IntOption, Integer> options = new LinkedHashMap<>();
+        for (Map.Entry<String, IntOption> e : INT_OPTIONS.entrySet()) {
+            Object value = config.remove(e.getKey());
+            if (value != null) {
+                options.put(e.getValue(), e.getValue().parse(e.getKey(), value.toString().trim()));
+            }
+        }
+        return options;
+    }
 
-        String port = (String) props.remove("port");
-        if (port != null) {
-            int portNum = Integer.parseInt(port);
-            clazz.getMethod("setPort", int.class).invoke(cf, portNum);
+    private URL ccdtUrl(Map<String, Object> config) {
+        Object value = config.remove(CCDT_URL);
+        if (value == null) {
+            return null;
         }
+        if (config.get("channel") != null) {
+            throw new JMSRuntimeException("IBM MQ " + CCDT_URL + " can't be used together with channel property");
+        }
+        try {
+            return new URL(value.toString().trim());
+        } catch (MalformedURLException e) {
+            throw (JMSRuntimeException) new JMSRuntimeException("Invalid IBM MQ " + CCDT_URL + ": " + value)
+                    .initCause(e);
+        }
+    }
 
-        String queueManager = (String) props.remove("queueManager");
-        clazz.getMethod("setQueueManager", String.class).invoke(cf, queueManager);
+    /**
+     * Integer option of IBM MQ connection factory with limited set of values of IBM MQ constants.
+     */
+    private static class IntOption {
 
-        String channel = (String) props.remove("channel");
-        if (channel != null) {
-            clazz.getMethod("setChannel", String.class).invoke(cf, channel);
+        private final String setter;
+        private final String propertyName;
+        private final Map<String, Integer> allowed;
+
+        IntOption(String setter, String propertyName, Map<String, Integer> allowed) {
+            this.setter = setter;
+            this.propertyName = propertyName;
+            this.allowed = allowed;
+        }
+
+        int parse(String key, String value) {
+            for (Map.Entry<String, Integer> e : allowed.entrySet()) {
+                if (e.getKey().toLowerCase(Locale.ROOT).equals(value.toLowerCase(Locale.ROOT))) {
+                    return e.getValue();
+                }
+            }
+            try {
+                int v = Integer.parseInt(value);
+                if (allowed.containsValue(v)) {
+                    return v;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            throw new JMSRuntimeException("Invalid value of IBM MQ " + key + " option: \"" + value
+                    + "\". Allowed values: " + allowed.keySet());
         }
 
-        String transportType = (String) props.remove("transportType");
-        if (transportType != null) {
-            int transportTypeNum = Integer.parseInt(transportType);
-            clazz.getMethod("setTransportType", int.class).invoke(cf, transportTypeNum);
+        void apply(Object cf, int value) throws Exception {
+            try {
+                cf.getClass().getMethod(setter, int.class).invoke(cf, value);
+            } catch (NoSuchMethodException e) {
+                // com.ibm.msg.client.jms.JmsPropertyContext
+                cf.getClass().getMethod("setIntProperty", String.class, int.class).invoke(cf, propertyName, value);
+            }
         }
+
     }
 
 }
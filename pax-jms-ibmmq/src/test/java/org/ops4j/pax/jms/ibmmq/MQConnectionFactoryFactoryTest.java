@@ -0,0 +1,316 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.ibmmq;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSRuntimeException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.internal.BalancingConnectionFactory;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MQConnectionFactoryFactoryTest {
+
+    @Test
+    public void typedOptions() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put("hostName", "mq1");
+        props.put("port", "1415");
+        props.put(MQConnectionFactoryFactory.SHARE_CONVERSATIONS, "false");
+        props.put(MQConnectionFactoryFactory.PUT_ASYNC_ALLOWED, "Enabled");
+        props.put(MQConnectionFactoryFactory.READ_AHEAD_ALLOWED, "-1");
+        props.put(MQConnectionFactoryFactory.CLIENT_RECONNECT_OPTIONS, "queueManager");
+        // no setter in the stub - set using property context
+        props.put(MQConnectionFactoryFactory.READ_AHEAD_CLOSE_POLICY, "deliverCurrent");
+
+        StubConnectionFactory cf = target(factory().createConnectionFactory(props));
+        assertThat(cf.hostName, equalTo("mq1"));
+        assertThat(cf.port, equalTo(1415));
+        assertThat(cf.shareConvAllowed, equalTo(0));
+        assertThat(cf.putAsyncAllowed, equalTo(1));
+        assertThat(cf.readAheadAllowed, equalTo(-1));
+        assertThat(cf.clientReconnectOptions, equalTo(0x04000000));
+        assertThat(cf.intProperties.get("XMSC_WMQ_READ_AHEAD_CLOSE_POLICY"), equalTo(2));
+    }
+
+    @Test
+    public void invalidTypedOptions() throws Exception {
+        for (String[] option : new String[][] {
+                { MQConnectionFactoryFactory.SHARE_CONVERSATIONS, "yes" },
+                { MQConnectionFactoryFactory.PUT_ASYNC_ALLOWED, "2" },
+                { MQConnectionFactoryFactory.READ_AHEAD_CLOSE_POLICY, "deliverNone" }
+        }) {
+            Map<String, Object> props = new HashMap<>();
+            props.put(option[0], option[1]);
+            try {
+                factory().createConnectionFactory(props);
+                fail("Should fail because of invalid " + option[0]);
+            } catch (JMSRuntimeException e) {
+                assertThat(e.getMessage(), containsString(option[0]));
+                assertThat(e.getMessage(), containsString("Allowed values"));
+            }
+        }
+    }
+
+    @Test
+    public void ccdtUrl() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(MQConnectionFactoryFactory.CCDT_URL, "file:///etc/mq/AMQCLCHL.TAB");
+        props.put("queueManager", "QM1");
+
+        StubConnectionFactory cf = target(factory().createConnectionFactory(props));
+        assertThat(cf.ccdtUrl, equalTo(new URL("file:///etc/mq/AMQCLCHL.TAB")));
+        assertThat(cf.queueManager, equalTo("QM1"));
+
+        StubConnectionFactory xaCf = (StubConnectionFactory) ((ConnectionFactoryAdapter) factory()
+                .createXAConnectionFactory(props)).getXaTargetConnectionFactory();
+        assertThat(xaCf, instanceOf(StubXAConnectionFactory.class));
+        assertThat(xaCf.ccdtUrl, equalTo(new URL("file:///etc/mq/AMQCLCHL.TAB")));
+
+        props.put("channel", "DEV.APP.SVRCONN");
+        try {
+            factory().createConnectionFactory(props);
+            fail("Should fail because of ccdtUrl used with channel");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString("channel"));
+        }
+
+        props.remove("channel");
+        props.put(MQConnectionFactoryFactory.CCDT_URL, "no-scheme");
+        try {
+            factory().createConnectionFactory(props);
+            fail("Should fail because of invalid ccdtUrl");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString(MQConnectionFactoryFactory.CCDT_URL));
+        }
+    }
+
+    @Test
+    public void endpoints() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put("channel", "DEV.APP.SVRCONN");
+        props.put(MQConnectionFactoryFactory.SHARE_CONVERSATIONS, "true");
+        props.put(MQConnectionFactoryFactory.ENDPOINTS, "QM1@mq1(1414)*3, mq2(1414) ,");
+        props.put(MQConnectionFactoryFactory.BALANCING, "weighted");
+        props.put(MQConnectionFactoryFactory.ENDPOINT_FAILURE_BACKOFF, "1000");
+
+        ConnectionFactory cf = factory().createConnectionFactory(props);
+        assertThat(cf, instanceOf(BalancingConnectionFactory.class));
+        List<BalancingConnectionFactory.Member> members = ((BalancingConnectionFactory) cf).getMembers();
+        assertThat(members.size(), equalTo(2));
+
+        assertThat(members.get(0).getName(), equalTo("QM1@mq1(1414)"));
+        assertThat(members.get(0).getWeight(), equalTo(3));
+        StubConnectionFactory mq1 = target(members.get(0).getConnectionFactory());
+        assertThat(mq1.queueManager, equalTo("QM1"));
+        assertThat(mq1.connectionNameList, equalTo("mq1(1414)"));
+        assertThat(mq1.channel, equalTo("DEV.APP.SVRCONN"));
+        assertThat(mq1.shareConvAllowed, equalTo(1));
+
+        assertThat(members.get(1).getWeight(), equalTo(1));
+        StubConnectionFactory mq2 = target(members.get(1).getConnectionFactory());
+        assertThat(mq2.queueManager, nullValue());
+        assertThat(mq2.connectionNameList, equalTo("mq2(1414)"));
+        assertThat(mq2.shareConvAllowed, equalTo(1));
+    }
+
+    @Test
+    public void endpointsSelectingCcdtEntries() throws Exception {
+        Map<String, Object> props = new HashMap<>();
+        props.put(MQConnectionFactoryFactory.CCDT_URL, "file:///etc/mq/AMQCLCHL.TAB");
+        props.put(MQConnectionFactoryFactory.ENDPOINTS, "QM1, QM2");
+
+        List<BalancingConnectionFactory.Member> members
+                = ((BalancingConnectionFactory) factory().createConnectionFactory(props)).getMembers();
+        assertThat(members.size(), equalTo(2));
+        StubConnectionFactory qm2 = target(members.get(1).getConnectionFactory());
+        assertThat(qm2.queueManager, equalTo("QM2"));
+        assertThat(qm2.connectionNameList, nullValue());
+        assertThat(qm2.ccdtUrl, equalTo(new URL("file:///etc/mq/AMQCLCHL.TAB")));
+    }
+
+    @Test
+    public void invalidEndpoints() throws Exception {
+        String[][] invalid = new String[][] {
+                { MQConnectionFactoryFactory.ENDPOINTS, "QM1", "requires connection name" },
+                { MQConnectionFactoryFactory.ENDPOINTS, "mq1(1414)*x", "Invalid weight" },
+                { MQConnectionFactoryFactory.ENDPOINTS, "mq1(1414)*0", "must be positive" },
+                { MQConnectionFactoryFactory.ENDPOINTS, " , ", "No IBM MQ endpoints" },
+                { MQConnectionFactoryFactory.BALANCING, "random", "Unknown balancing strategy" },
+                { MQConnectionFactoryFactory.ENDPOINT_FAILURE_BACKOFF, "30s",
+                        MQConnectionFactoryFactory.ENDPOINT_FAILURE_BACKOFF }
+        };
+        for (String[] option : invalid) {
+            Map<String, Object> props = new HashMap<>();
+            props.put(MQConnectionFactoryFactory.ENDPOINTS, "mq1(1414)");
+            props.put(option[0], option[1]);
+            try {
+                factory().createConnectionFactory(props);
+                fail("Should fail because of " + option[0] + "=" + option[1]);
+            } catch (JMSRuntimeException e) {
+                assertThat(e.getMessage(), containsString(option[2]));
+            }
+        }
+
+        Map<String, Object> props = new HashMap<>();
+        props.put(MQConnectionFactoryFactory.ENDPOINTS, "mq1(1414)");
+        try {
+            factory().createXAConnectionFactory(props);
+            fail("Should fail because endpoints are not supported with XA");
+        } catch (JMSRuntimeException e) {
+            assertThat(e.getMessage(), containsString("XA"));
+        }
+    }
+
+    private static MQConnectionFactoryFactory factory() throws ReflectiveOperationException {
+        return new MQConnectionFactoryFactory(StubConnectionFactory.class, StubXAConnectionFactory.class);
+    }
+
+    private static StubConnectionFactory target(Object cf) {
+        return (StubConnectionFactory) ((ConnectionFactoryAdapter) cf).getTargetConnectionFactory();
+    }
+
+    /**
+     * Bean with a subset of {@code com.ibm.mq.jms.MQConnectionFactory} setters.
+     */
+    public static class StubConnectionFactory implements ConnectionFactory {
+
+        String hostName;
+        int port;
+        String channel;
+        String queueManager;
+        String connectionNameList;
+        URL ccdtUrl;
+        int shareConvAllowed = -100;
+        int putAsyncAllowed = -100;
+        int readAheadAllowed = -100;
+        int clientReconnectOptions = -100;
+        final Map<String, Integer> intProperties = new HashMap<>();
+
+        public void setHostName(String hostName) {
+            this.hostName = hostName;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public void setChannel(String channel) {
+            this.channel = channel;
+        }
+
+        public void setQueueManager(String queueManager) {
+            this.queueManager = queueManager;
+        }
+
+        public void setConnectionNameList(String connectionNameList) {
+            this.connectionNameList = connectionNameList;
+        }
+
+        public void setCCDTURL(URL ccdtUrl) {
+            this.ccdtUrl = ccdtUrl;
+        }
+
+        public void setShareConvAllowed(int shareConvAllowed) {
+            this.shareConvAllowed = shareConvAllowed;
+        }
+
+        public void setPutAsyncAllowed(int putAsyncAllowed) {
+            this.putAsyncAllowed = putAsyncAllowed;
+        }
+
+        public void setReadAheadAllowed(int readAheadAllowed) {
+            this.readAheadAllowed = readAheadAllowed;
+        }
+
+        public void setClientReconnectOptions(int clientReconnectOptions) {
+            this.clientReconnectOptions = clientReconnectOptions;
+        }
+
+        public void setIntProperty(String name, int value) {
+            intProperties.put(name, value);
+        }
+
+        @Override
+        public Connection createConnection() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Connection createConnection(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(String userName, String password, int sessionMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JMSContext createContext(int sessionMode) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static class StubXAConnectionFactory extends StubConnectionFactory implements XAConnectionFactory {
+
+        @Override
+        public XAConnection createXAConnection() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public XAConnection createXAConnection(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public XAJMSContext createXAContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public XAJMSContext createXAContext(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -17,6 +17,7 @@ package org.ops4j.pax.jms.oracleaq;
 
 import java.util.Hashtable;
 
+import org.ops4j.pax.jms.service.BatchMessagingSupport;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -25,6 +26,7 @@ import org.osgi.framework.ServiceRegistration;
 public class Activator implements BundleActivator {
 
     ServiceRegistration<ConnectionFactoryFactory> registration;
+    ServiceRegistration<BatchMessagingSupport> batchRegistration;
 
     @Override
     public void start(BundleContext context) throws Exception {
@@ -33,10 +35,14 @@ public class Activator implements BundleActivator {
         registration = context.registerService(ConnectionFactoryFactory.class,
                 new OracleAQConnectionFactoryFactory(),
                 props);
+        batchRegistration = context.registerService(BatchMessagingSupport.class,
+                new OracleAQBatchMessagingSupport(),
+                props);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        batchRegistration.unregister();
         registration.unregister();
     }
 
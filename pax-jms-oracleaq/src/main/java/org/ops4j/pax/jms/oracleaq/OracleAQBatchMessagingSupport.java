@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.oracleaq;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+
+import org.ops4j.pax.jms.service.BatchMessagingSupport;
+
+/**
+ * <p>{@link BatchMessagingSupport} using Oracle AQ array enqueue and array dequeue - {@code bulkSend()} of
+ * {@code AQjmsProducer} and {@code bulkReceive()} of {@code AQjmsConsumer} - so the whole batch is single
+ * database round trip.</p>
+ *
+ * <p>Producers and consumers of pooled connection factories (pooled-jms) are unwrapped - delivery mode, priority
+ * and time to live of the pooled producer are applied to its delegate before the batch is sent. With drivers
+ * without bulk operations and with unidentified producers, messages are sent and received one by one within
+ * caller's session (which should be transacted, to commit the batch at once).</p>
+ */
+public class OracleAQBatchMessagingSupport implements BatchMessagingSupport {
+
+    private static final MethodType BULK_SEND = MethodType.methodType(void.class, Destination.class, Message[].class);
+    private static final MethodType BULK_RECEIVE = MethodType.methodType(Message[].class, int.class, long.class);
+
+    private static final String[] PRODUCER_DELEGATES = { "getDelegate", "getMessageProducer" };
+    private static final String[] CONSUMER_DELEGATES = { "getMessageConsumer", "getDelegate" };
+
+    private final Map<Class<?>, Optional<MethodHandle>> bulkSend = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Optional<MethodHandle>> bulkReceive = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Optional<MethodHandle>> producerDelegates = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Optional<MethodHandle>> consumerDelegates = new ConcurrentHashMap<>();
+
+    @Override
+    public void send(MessageProducer producer, List<? extends Message> messages) throws JMSException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        // bulkSend() needs the destination, which unidentified producers don't have
+        Destination destination = producer.getDestination();
+        MessageProducer target = destination == null ? null
+                : unwrap(producer, MessageProducer.class, PRODUCER_DELEGATES, producerDelegates,
+                        bulkSend, "bulkSend", BULK_SEND);
+        if (target == null) {
+            BatchMessagingSupport.super.send(producer, messages);
+            return;
+        }
+        try {
+            if (target == producer) {
+                bulkSend.get(target.getClass()).get().invoke(target, destination, messages.toArray(new Message[0]));
+            } else {
+                // delegate of pooled producer may be anonymous producer shared by all pooled producers of the
+                // session - pooled producer's settings are applied to it for the time of the call
+                synchronized (target) {
+                    target.setDeliveryMode(producer.getDeliveryMode());
+                    target.setPriority(producer.getPriority());
+                    target.setTimeToLive(producer.getTimeToLive());
+                    target.setDisableMessageID(producer.getDisableMessageID());
+                    target.setDisableMessageTimestamp(producer.getDisableMessageTimestamp());
+                    bulkSend.get(target.getClass()).get()
+                            .invoke(target, destination, messages.toArray(new Message[0]));
+                }
+            }
+        } catch (JMSException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw (JMSException) new JMSException("Unable to send messages: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    @Override
+    public List<Message> receive(MessageConsumer consumer, int maxMessages, long timeout) throws JMSException {
+        MessageConsumer target = unwrap(consumer, MessageConsumer.class, CONSUMER_DELEGATES, consumerDelegates,
+                bulkReceive, "bulkReceive", BULK_RECEIVE);
+        if (target == null) {
+            return BatchMessagingSupport.super.receive(consumer, maxMessages, timeout);
+        }
+        Message[] messages;
+        try {
+            messages = (Message[]) bulkReceive.get(target.getClass()).get().invoke(target, maxMessages, timeout);
+        } catch (JMSException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw (JMSException) new JMSException("Unable to receive messages: " + e.getMessage()).initCause(e);
+        }
+        return messages == null ? Collections.emptyList() : Arrays.asList(messages);
+    }
+
+    /**
+     * Returns given object or its delegate (for pooled objects) which has the bulk method or {@code null}
+     * if there's no such object. Lookup results are cached in {@code cache} and {@code delegates} for each checked
+     * class.
+     */
+    private <T> T unwrap(T object, Class<T> type, String[] delegateMethods,
+            Map<Class<?>, Optional<MethodHandle>> delegates, Map<Class<?>, Optional<MethodHandle>> cache,
+            String name, MethodType bulkMethod) {
+        T current = object;
+        for (int depth = 0; current != null && depth < 3; depth++) {
+            Class<?> clazz = current.getClass();
+            if (cache.computeIfAbsent(clazz, c -> lookup(c, name, bulkMethod)).isPresent()) {
+                return current;
+            }
+            T delegate = delegate(current, type,
+                    delegates.computeIfAbsent(clazz, c -> delegateGetter(c, type, delegateMethods)));
+            current = delegate == current ? null : delegate;
+        }
+        return null;
+    }
+
+    private static Optional<MethodHandle> lookup(Class<?> clazz, String name, MethodType bulkMethod) {
+        try {
+            return Optional.of(MethodHandles.publicLookup()
+                    .unreflect(clazz.getMethod(name, bulkMethod.parameterArray())));
+        } catch (ReflectiveOperationException | SecurityException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<MethodHandle> delegateGetter(Class<?> clazz, Class<?> type, String[] delegateMethods) {
+        for (String name : delegateMethods) {
+            try {
+                Method method = clazz.getMethod(name);
+                if (type.isAssignableFrom(method.getReturnType())) {
+                    return Optional.of(MethodHandles.publicLookup().unreflect(method));
+                }
+            } catch (ReflectiveOperationException | SecurityException ignored) {
+                // not a wrapper with this method
+            }
+        }
+        return Optional.empty();
+    }
+
+    private <T> T delegate(T object, Class<T> type, Optional<MethodHandle> getter) {
+        if (!getter.isPresent()) {
+            return null;
+        }
+        try {
+            Object delegate = getter.get().invoke(object);
+            return type.isInstance(delegate) ? type.cast(delegate) : null;
+        } catch (Throwable ignored) {
+            // closed wrapper
+            return null;
+        }
+    }
+
+}
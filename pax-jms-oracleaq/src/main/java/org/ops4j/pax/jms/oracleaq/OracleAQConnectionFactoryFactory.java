@@ -15,43 +15,74 @@
  */
 package org.ops4j.pax.jms.oracleaq;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSRuntimeException;
 import javax.jms.XAConnectionFactory;
+import javax.sql.DataSource;
 
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 
+/**
+ * <p>{@link ConnectionFactoryFactory} for Oracle AQ. Connection factory is created either with JDBC {@code url},
+ * {@code user} and {@code password} (each JMS connection opens its own physical JDBC connection) or with
+ * {@link ConnectionFactoryFactory#JMS_DATASOURCE} - a pooled {@link DataSource}, so JMS connections reuse
+ * pooled JDBC connections. In pax-jms-config, the {@link DataSource} service is selected with
+ * {@code dataSource.filter} property of the factory configuration.</p>
+ *
+ * <p>With {@code url}, all other String properties (like {@code oracle.jms.useNativeXA} or
+ * {@code oracle.jms.conservativeNavigation}, configured with {@code jms.} prefix in pax-jms-config) are passed
+ * to {@code AQjmsFactory} together with {@code user} and {@code password}.</p>
+ *
+ * <p>XA connection factories can be created only with {@code url}, {@code user} and {@code password}.</p>
+ */
 public class OracleAQConnectionFactoryFactory implements ConnectionFactoryFactory {
 
     private static final String ORACLE_AQ_FACTORY_CLASS = "oracle.jms.AQjmsFactory";
-    private final Class<?> oracleAqConnectionFactoryClass;
 
-    public OracleAQConnectionFactoryFactory() throws ClassNotFoundException {
+    private final MethodHandle getConnectionFactory;
+    private final MethodHandle getDataSourceConnectionFactory;
+    private final MethodHandle getXAConnectionFactory;
+
+    public OracleAQConnectionFactoryFactory() throws ReflectiveOperationException {
         ClassLoader classLoader = OracleAQConnectionFactoryFactory.class.getClassLoader();
-        this.oracleAqConnectionFactoryClass = classLoader.loadClass(ORACLE_AQ_FACTORY_CLASS);
+        Class<?> oracleAqConnectionFactoryClass = classLoader.loadClass(ORACLE_AQ_FACTORY_CLASS);
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        this.getConnectionFactory = lookup.unreflect(oracleAqConnectionFactoryClass
+                .getMethod("getConnectionFactory", String.class, Properties.class));
+        this.getDataSourceConnectionFactory = lookup.unreflect(oracleAqConnectionFactoryClass
+                .getMethod("getConnectionFactory", DataSource.class));
+        this.getXAConnectionFactory = lookup.unreflect(oracleAqConnectionFactoryClass
+                .getMethod("getXAConnectionFactory", String.class, Properties.class));
     }
 
     @Override
     public ConnectionFactory createConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
 
-        String url = (String) props.remove(ConnectionFactoryFactory.JMS_URL);
-        String user = (String) props.remove(ConnectionFactoryFactory.JMS_USER);
-        String password = (String) props.remove(ConnectionFactoryFactory.JMS_PASSWORD);
-
-        if (url == null || user == null || password == null) {
-            throw new JMSRuntimeException("The url, user and password properties must be set");
+        Object dataSource = props.get(ConnectionFactoryFactory.JMS_DATASOURCE);
+        if (dataSource != null) {
+            if (!(dataSource instanceof DataSource)) {
+                throw new JMSRuntimeException("The " + ConnectionFactoryFactory.JMS_DATASOURCE
+                        + " property must be a javax.sql.DataSource");
+            }
+            try {
+                return (ConnectionFactory) getDataSourceConnectionFactory.invoke((DataSource) dataSource);
+            } catch (Throwable e) {
+                throw (JMSRuntimeException) new JMSRuntimeException("Unable to build Oracle AQ ConnectionFactory").initCause(e);
+            }
         }
 
-        Properties properties = new Properties();
-        properties.setProperty(ConnectionFactoryFactory.JMS_USER, user);
-        properties.setProperty(ConnectionFactoryFactory.JMS_PASSWORD, password);
+        Map<String, Object> config = new HashMap<>(props);
+        String url = (String) config.remove(ConnectionFactoryFactory.JMS_URL);
+        Properties properties = getProperties(url, config);
 
         try {
-            ConnectionFactory cf = ConnectionFactory.class.cast(oracleAqConnectionFactoryClass.getDeclaredMethod("getConnectionFactory", String.class, Properties.class).invoke(null, url, properties));
-            return cf;
-        } catch (Exception e) {
+            return (ConnectionFactory) getConnectionFactory.invoke(url, properties);
+        } catch (Throwable e) {
             throw (JMSRuntimeException) new JMSRuntimeException("Unable to build Oracle AQ ConnectionFactory").initCause(e);
         }
     }
@@ -59,24 +90,44 @@ public class OracleAQConnectionFactoryFactory implements ConnectionFactoryFactor
     @Override
     public XAConnectionFactory createXAConnectionFactory(Map<String, Object> props) throws JMSRuntimeException {
 
-        String url = (String) props.remove(ConnectionFactoryFactory.JMS_URL);
-        String user = (String) props.remove(ConnectionFactoryFactory.JMS_USER);
-        String password = (String) props.remove(ConnectionFactoryFactory.JMS_PASSWORD);
+        if (props.get(ConnectionFactoryFactory.JMS_DATASOURCE) != null) {
+            throw new JMSRuntimeException("Oracle AQ XAConnectionFactory can't be created with a DataSource."
+                    + " The url, user and password properties must be used instead");
+        }
+
+        Map<String, Object> config = new HashMap<>(props);
+        String url = (String) config.remove(ConnectionFactoryFactory.JMS_URL);
+        Properties properties = getProperties(url, config);
+
+        try {
+            return (XAConnectionFactory) getXAConnectionFactory.invoke(url, properties);
+        } catch (Throwable e) {
+            throw (JMSRuntimeException) new JMSRuntimeException("Unable to build Oracle AQ ConnectionFactory").initCause(e);
+        }
+    }
+
+    /**
+     * Properties passed to {@code AQjmsFactory} - user, password and remaining String properties.
+     *
+     * @param url JDBC url
+     * @param config configuration without the url
+     * @return properties for {@code AQjmsFactory}
+     */
+    private Properties getProperties(String url, Map<String, Object> config) {
+        String user = (String) config.get(ConnectionFactoryFactory.JMS_USER);
+        String password = (String) config.get(ConnectionFactoryFactory.JMS_PASSWORD);
 
         if (url == null || user == null || password == null) {
             throw new JMSRuntimeException("The url, user and password properties must be set");
         }
 
         Properties properties = new Properties();
-        properties.setProperty(ConnectionFactoryFactory.JMS_USER, user);
-        properties.setProperty(ConnectionFactoryFactory.JMS_PASSWORD, password);
-
-        try {
-            XAConnectionFactory xaCf = XAConnectionFactory.class.cast(oracleAqConnectionFactoryClass.getDeclaredMethod("getXAConnectionFactory", String.class, Properties.class).invoke(null, url, properties));
-            return xaCf;
-        } catch (Exception e) {
-            throw (JMSRuntimeException) new JMSRuntimeException("Unable to build Oracle AQ ConnectionFactory").initCause(e);
+        for (Map.Entry<String, Object> e : config.entrySet()) {
+            if (e.getValue() instanceof String && !e.getKey().startsWith("pool.") && !e.getKey().startsWith("factory.")) {
+                properties.setProperty(e.getKey(), (String) e.getValue());
+            }
         }
+        return properties;
     }
 
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.oracleaq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+
+import org.junit.Test;
+import org.ops4j.pax.jms.service.BatchMessagingSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Oracle AQ isn't available in tests - {@code AQjmsProducer} and {@code AQjmsConsumer} are replaced by stand-ins
+ * with the same bulk methods, where each call (single or bulk) costs one simulated database round trip.
+ */
+public class OracleAQBatchMessagingSupportTest {
+
+    public static final Logger LOG = LoggerFactory.getLogger(OracleAQBatchMessagingSupportTest.class);
+
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int MESSAGES = 1000;
+    private static final int BATCH = 100;
+
+    private final BatchMessagingSupport support = new OracleAQBatchMessagingSupport();
+    private final Queue queue = mock(Queue.class);
+
+    @Test
+    public void bulkSendAndReceive() throws Exception {
+        AQStandInProducer producer = producer();
+        List<Message> messages = messages(3);
+        support.send(producer, messages);
+        assertThat(producer.roundTrips.get(), equalTo(1));
+        assertThat(producer.sent, equalTo(messages));
+        verify(producer, times(0)).send(any(Message.class));
+
+        AQStandInConsumer consumer = consumer(messages);
+        List<Message> received = support.receive(consumer, 2, 1000L);
+        assertThat(received, equalTo(messages.subList(0, 2)));
+        assertThat(support.receive(consumer, 2, 1000L), equalTo(messages.subList(2, 3)));
+        assertThat(support.receive(consumer, 2, 1000L).size(), equalTo(0));
+        assertThat(consumer.roundTrips.get(), equalTo(3));
+    }
+
+    @Test
+    public void pooledProducerIsUnwrapped() throws Exception {
+        AQStandInProducer producer = producer();
+        PooledStandInProducer pooled = mock(PooledStandInProducer.class);
+        when(pooled.getDelegate()).thenReturn(producer);
+        when(pooled.getDestination()).thenReturn(queue);
+
+        when(pooled.getDeliveryMode()).thenReturn(DeliveryMode.NON_PERSISTENT);
+        when(pooled.getPriority()).thenReturn(7);
+        when(pooled.getTimeToLive()).thenReturn(60000L);
+
+        support.send(pooled, messages(5));
+        assertThat(producer.roundTrips.get(), equalTo(1));
+        assertThat(producer.destination, sameInstance(queue));
+        verify(producer).setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        verify(producer).setPriority(7);
+        verify(producer).setTimeToLive(60000L);
+    }
+
+    @Test
+    public void anonymousPooledProducerSendsOneByOne() throws Exception {
+        AQStandInProducer producer = producer();
+        PooledStandInProducer pooled = mock(PooledStandInProducer.class);
+        when(pooled.getDelegate()).thenReturn(producer);
+
+        support.send(pooled, messages(3));
+        verify(pooled, times(3)).send(any(Message.class));
+        assertThat(producer.roundTrips.get(), equalTo(0));
+    }
+
+    @Test
+    public void fallbackWithoutBulkOperations() throws Exception {
+        MessageProducer producer = mock(MessageProducer.class);
+        support.send(producer, messages(4));
+        verify(producer, times(4)).send(any(Message.class));
+
+        MessageConsumer consumer = mock(MessageConsumer.class);
+        Message m = mock(Message.class);
+        when(consumer.receive(anyLong())).thenReturn(m);
+        when(consumer.receiveNoWait()).thenReturn(m, m, null);
+        assertThat(support.receive(consumer, 10, 1000L).size(), equalTo(3));
+    }
+
+    /**
+     * Not a JMH benchmark - just a logged comparison of sending {@link #MESSAGES} messages one by one and
+     * in batches of {@link #BATCH} messages, when each call is a simulated database round trip.
+     */
+    @Test
+    public void throughput() throws Exception {
+        List<Message> messages = messages(BATCH);
+
+        AQStandInProducer single = producer();
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES / BATCH; i++) {
+            for (Message message : messages) {
+                single.send(message);
+            }
+        }
+        long singleTime = System.nanoTime() - start;
+
+        AQStandInProducer bulk = producer();
+        start = System.nanoTime();
+        for (int i = 0; i < MESSAGES / BATCH; i++) {
+            support.send(bulk, messages);
+        }
+        long bulkTime = System.nanoTime() - start;
+
+        assertThat(single.roundTrips.get(), equalTo(MESSAGES));
+        assertThat(bulk.roundTrips.get(), equalTo(MESSAGES / BATCH));
+        LOG.info("Sent {} messages: {} msg/s one by one, {} msg/s in batches of {}", MESSAGES,
+                MESSAGES * 1_000_000_000L / singleTime, MESSAGES * 1_000_000_000L / bulkTime, BATCH);
+    }
+
+    private AQStandInProducer producer() throws Exception {
+        AQStandInProducer producer = mock(AQStandInProducer.class, withSettings().defaultAnswer(CALLS_REAL_METHODS));
+        producer.roundTrips = new AtomicInteger();
+        producer.sent = new ArrayList<>();
+        when(producer.getDestination()).thenReturn(queue);
+        doAnswer(inv -> {
+            producer.roundTrip();
+            producer.sent.add(inv.getArgument(0));
+            return null;
+        }).when(producer).send(any(Message.class));
+        return producer;
+    }
+
+    private AQStandInConsumer consumer(List<Message> messages) {
+        AQStandInConsumer consumer = mock(AQStandInConsumer.class, withSettings().defaultAnswer(CALLS_REAL_METHODS));
+        consumer.roundTrips = new AtomicInteger();
+        consumer.available = new ArrayList<>(messages);
+        return consumer;
+    }
+
+    private List<Message> messages(int count) {
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = mock(Message.class);
+        }
+        return Arrays.asList(messages);
+    }
+
+    private static void simulateRoundTrip() {
+        long end = System.nanoTime() + ROUND_TRIP_NANOS;
+        while (System.nanoTime() < end) {
+            LockSupport.parkNanos(ROUND_TRIP_NANOS / 4);
+        }
+    }
+
+    /**
+     * Stand-in for {@code oracle.jms.AQjmsProducer}
+     */
+    public abstract static class AQStandInProducer implements MessageProducer {
+        AtomicInteger roundTrips;
+        List<Message> sent;
+        Destination destination;
+
+        public void bulkSend(Destination destination, Message[] messages) {
+            roundTrip();
+            this.destination = destination;
+            sent.addAll(Arrays.asList(messages));
+        }
+
+        void roundTrip() {
+            roundTrips.incrementAndGet();
+            simulateRoundTrip();
+        }
+    }
+
+    /**
+     * Stand-in for {@code oracle.jms.AQjmsConsumer}
+     */
+    public abstract static class AQStandInConsumer implements MessageConsumer {
+        AtomicInteger roundTrips;
+        List<Message> available;
+
+        public Message[] bulkReceive(int count, long timeout) {
+            roundTrips.incrementAndGet();
+            simulateRoundTrip();
+            List<Message> batch = new ArrayList<>(available.subList(0, Math.min(count, available.size())));
+            available.removeAll(batch);
+            return batch.isEmpty() ? null : batch.toArray(new Message[0]);
+        }
+    }
+
+    /**
+     * Stand-in for pooled-jms producer
+     */
+    public abstract static class PooledStandInProducer implements MessageProducer {
+        public abstract MessageProducer getDelegate();
+    }
+
+}
@@ -20,12 +20,31 @@ import javax.jms.ConnectionFactory;
 import javax.jms.JMSContext;
 import javax.jms.JMSException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ConnectionFactory} closing given resources (pool, recovery registration, ...) when it's closed
+ * by pax-jms-config after the configuration or provider is unregistered.
+ */
 public class CloseableConnectionFactory implements ConnectionFactory, AutoCloseable {
 
+    public static final Logger LOG = LoggerFactory.getLogger(CloseableConnectionFactory.class);
+
     private ConnectionFactory delegate;
+    private final AutoCloseable[] resources;
 
-    public CloseableConnectionFactory(ConnectionFactory delegate) {
+    /**
+     * @param delegate connection factory to delegate to
+     * @param resources resources closed in given order
+     */
+    public CloseableConnectionFactory(ConnectionFactory delegate, AutoCloseable... resources) {
         this.delegate = delegate;
+        this.resources = resources;
+    }
+
+    public ConnectionFactory getDelegate() {
+        return delegate;
     }
 
     @Override
@@ -60,6 +79,16 @@ public class CloseableConnectionFactory implements ConnectionFactory, AutoClosea
 
     @Override
     public void close() throws Exception {
+        for (AutoCloseable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (Exception e) {
+                LOG.warn("Error closing " + resource + ": " + e.getMessage(), e);
+            }
+        }
     }
 
 }
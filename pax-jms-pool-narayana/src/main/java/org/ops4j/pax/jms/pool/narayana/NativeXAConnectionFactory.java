@@ -0,0 +1,314 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.JMSRuntimeException;
+import javax.jms.Session;
+import javax.jms.TransactionInProgressException;
+import javax.jms.TransactionInProgressRuntimeException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.jms.XASession;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+import org.ops4j.pax.jms.service.internal.DelegatingInvocationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Non-pooling {@link ConnectionFactory} enlisting XA sessions into current JTA transaction directly, in the
+ * style of Narayana's own JMS integration ({@code ConnectionFactoryProxy}), used with {@code pool.mode=native}.</p>
+ *
+ * <p>Within a transaction, all {@code createConnection()} calls share single {@link XAConnection} and all
+ * {@code createSession()} calls share single {@link XASession}, enlisted once (connection-per-transaction caching).
+ * Similarly, all {@code createContext()} calls share single {@link XAJMSContext}, enlisted once. JMS API doesn't
+ * allow to create a context from existing connection, so the context is a second physical connection of the
+ * transaction. Closing returned connections, sessions and contexts has no effect - physical connections are closed
+ * after the transaction completes. {@link Session#commit()} and {@link Session#rollback()} are not allowed.
+ * Credentials (both user name and password) have to be the same for all calls within single transaction.</p>
+ *
+ * <p>Outside of a transaction, connections and contexts are created by the delegate factory.</p>
+ */
+public class NativeXAConnectionFactory implements ConnectionFactory {
+
+    public static final Logger LOG = LoggerFactory.getLogger(NativeXAConnectionFactory.class);
+
+    private final XAConnectionFactory xaConnectionFactory;
+    private final TransactionManager transactionManager;
+    private final Map<Transaction, TransactionResources> connections = new ConcurrentHashMap<>();
+
+    public NativeXAConnectionFactory(XAConnectionFactory xaConnectionFactory, TransactionManager transactionManager) {
+        this.xaConnectionFactory = xaConnectionFactory;
+        this.transactionManager = transactionManager;
+    }
+
+    @Override
+    public Connection createConnection() throws JMSException {
+        return createConnection(null, null);
+    }
+
+    @Override
+    public Connection createConnection(String userName, String password) throws JMSException {
+        Transaction tx = currentTransaction();
+        if (tx == null) {
+            return userName == null ? xaConnectionFactory.createXAConnection()
+                    : xaConnectionFactory.createXAConnection(userName, password);
+        }
+        return resources(tx, userName, password).connection();
+    }
+
+    @Override
+    public JMSContext createContext() {
+        return createContext(null, null, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password) {
+        return createContext(userName, password, JMSContext.AUTO_ACKNOWLEDGE);
+    }
+
+    @Override
+    public JMSContext createContext(int sessionMode) {
+        return createContext(null, null, sessionMode);
+    }
+
+    @Override
+    public JMSContext createContext(String userName, String password, int sessionMode) {
+        try {
+            Transaction tx = currentTransaction();
+            if (tx == null) {
+                return userName == null ? xaConnectionFactory.createXAContext()
+                        : xaConnectionFactory.createXAContext(userName, password);
+            }
+            return resources(tx, userName, password).context();
+        } catch (JMSException e) {
+            throw (JMSRuntimeException) new JMSRuntimeException(e.getMessage()).initCause(e);
+        }
+    }
+
+    /**
+     * @return number of connections of transactions in progress
+     */
+    public int getTransactionConnectionCount() {
+        return connections.size();
+    }
+
+    private TransactionResources resources(Transaction tx, String userName, String password) throws JMSException {
+        TransactionResources resources = connections.get(tx);
+        if (resources == null) {
+            resources = new TransactionResources(tx, userName, password);
+            try {
+                tx.registerSynchronization(resources);
+            } catch (RollbackException | SystemException | IllegalStateException e) {
+                throw (JMSException) new JMSException("Can't register connection in transaction: " + e.getMessage())
+                        .initCause(e);
+            }
+            connections.put(tx, resources);
+        } else if (!Objects.equals(resources.userName, userName) || !Objects.equals(resources.password, password)) {
+            throw new JMSException("Transaction already uses connection with different credentials");
+        }
+        return resources;
+    }
+
+    private Transaction currentTransaction() throws JMSException {
+        try {
+            Transaction tx = transactionManager.getTransaction();
+            if (tx == null) {
+                return null;
+            }
+            int status = tx.getStatus();
+            return status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK ? tx : null;
+        } catch (SystemException e) {
+            throw (JMSException) new JMSException("Can't get current transaction: " + e.getMessage()).initCause(e);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void safeClose(Connection connection) {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            LOG.warn("Error closing connection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Session enlisted in a transaction - it's closed and completed only together with the transaction
+     */
+    private static class EnlistedSession implements DelegatingInvocationHandler {
+
+        private final XASession xaSession;
+
+        EnlistedSession(XASession xaSession) {
+            this.xaSession = xaSession;
+        }
+
+        @Override
+        public Object getDelegate() {
+            return xaSession;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    return null;
+                case "commit":
+                case "rollback":
+                    throw new TransactionInProgressException("Session is enlisted in JTA transaction");
+                default:
+                    return NativeXAConnectionFactory.invoke(xaSession, method, args);
+            }
+        }
+    }
+
+    /**
+     * Physical connection and context used by single transaction, created lazily
+     */
+    private class TransactionResources implements Synchronization {
+
+        private final Transaction transaction;
+        private final String userName;
+        private final String password;
+        private XAConnection xaConnection;
+        private Session session;
+        private XAJMSContext context;
+
+        TransactionResources(Transaction transaction, String userName, String password) {
+            this.transaction = transaction;
+            this.userName = userName;
+            this.password = password;
+        }
+
+        synchronized Connection connection() throws JMSException {
+            if (xaConnection == null) {
+                xaConnection = userName == null ? xaConnectionFactory.createXAConnection()
+                        : xaConnectionFactory.createXAConnection(userName, password);
+            }
+            XAConnection connection = xaConnection;
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "createSession":
+                        return session();
+                    case "close":
+                        return null;
+                    default:
+                        return invoke(connection, method, args);
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(NativeXAConnectionFactory.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, handler);
+        }
+
+        synchronized Session session() throws JMSException {
+            if (session == null) {
+                XASession xaSession = xaConnection.createXASession();
+                XAResource xaResource = xaSession.getXAResource();
+                try {
+                    if (!transaction.enlistResource(xaResource)) {
+                        throw new JMSException("Can't enlist session in transaction");
+                    }
+                } catch (RollbackException | SystemException | IllegalStateException e) {
+                    xaSession.close();
+                    throw (JMSException) new JMSException("Can't enlist session in transaction: " + e.getMessage())
+                            .initCause(e);
+                }
+                session = (Session) Proxy.newProxyInstance(NativeXAConnectionFactory.class.getClassLoader(),
+                        new Class<?>[] { Session.class }, new EnlistedSession(xaSession));
+            }
+            return session;
+        }
+
+        synchronized JMSContext context() throws JMSException {
+            if (context == null) {
+                XAJMSContext xaContext = userName == null ? xaConnectionFactory.createXAContext()
+                        : xaConnectionFactory.createXAContext(userName, password);
+                try {
+                    if (!transaction.enlistResource(xaContext.getXAResource())) {
+                        throw new JMSException("Can't enlist JMSContext in transaction");
+                    }
+                } catch (RollbackException | SystemException | IllegalStateException e) {
+                    xaContext.close();
+                    throw (JMSException) new JMSException("Can't enlist JMSContext in transaction: "
+                            + e.getMessage()).initCause(e);
+                } catch (JMSException e) {
+                    xaContext.close();
+                    throw e;
+                }
+                context = xaContext;
+            }
+            XAJMSContext xaContext = context;
+            return (JMSContext) Proxy.newProxyInstance(NativeXAConnectionFactory.class.getClassLoader(),
+                    new Class<?>[] { JMSContext.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                return null;
+                            case "commit":
+                            case "rollback":
+                                throw new TransactionInProgressRuntimeException(
+                                        "JMSContext is enlisted in JTA transaction");
+                            default:
+                                return invoke(xaContext, method, args);
+                        }
+                    });
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public synchronized void afterCompletion(int status) {
+            connections.remove(transaction);
+            if (xaConnection != null) {
+                safeClose(xaConnection);
+            }
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (JMSRuntimeException e) {
+                    LOG.warn("Error closing JMSContext: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.jboss.tm.XAResourceRecovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link XAResourceRecovery} keeping single, long-lived recovery {@link XAConnection} instead of connecting to
+ * the broker on each recovery scan.</p>
+ *
+ * <p>The connection is created lazily on first scan and replaced lazily - on next scan after it was reported
+ * broken by {@link ExceptionListener} or after {@link XAResource#recover(int)} failed with
+ * {@link XAException#XAER_RMFAIL} or {@link XAException#XAER_RMERR}. Failing start of a scan is retried once with
+ * new connection. When the broker isn't available, no resources are returned, so the scan of other resources
+ * continues.</p>
+ */
+public class PersistentXAResourceRecovery implements XAResourceRecovery, AutoCloseable {
+
+    public static final Logger LOG = LoggerFactory.getLogger(PersistentXAResourceRecovery.class);
+
+    private final XAConnectionFactory connectionFactory;
+    private final XAResource resource = new RecoveryXAResource();
+
+    private XAConnection connection;
+    private XAResource xaResource;
+    private volatile boolean broken;
+    private boolean closed;
+
+    public PersistentXAResourceRecovery(XAConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    @Override
+    public XAResource[] getXAResources() {
+        try {
+            current();
+            return new XAResource[] { resource };
+        } catch (JMSException e) {
+            LOG.warn("Can't create recovery connection: " + e.getMessage(), e);
+            invalidate();
+            return new XAResource[0];
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        invalidate();
+    }
+
+    /**
+     * Returns {@link XAResource} of current recovery connection, connecting if needed.
+     */
+    private synchronized XAResource current() throws JMSException {
+        if (closed) {
+            throw new JMSException("Recovery connection is closed");
+        }
+        if (broken) {
+            invalidate();
+        }
+        if (xaResource == null) {
+            LOG.debug("Creating recovery connection");
+            XAConnection c = connectionFactory.createXAConnection();
+            try {
+                try {
+                    c.setExceptionListener(e -> {
+                        LOG.debug("Recovery connection failed: " + e.getMessage(), e);
+                        broken = true;
+                    });
+                } catch (JMSException | IllegalStateException e) {
+                    LOG.debug("Can't set exception listener of recovery connection: " + e.getMessage());
+                }
+                xaResource = c.createXASession().getXAResource();
+                connection = c;
+                broken = false;
+            } catch (JMSException | RuntimeException e) {
+                safeClose(c);
+                throw e;
+            }
+        }
+        return xaResource;
+    }
+
+    private synchronized void invalidate() {
+        if (connection != null) {
+            safeClose(connection);
+        }
+        connection = null;
+        xaResource = null;
+        broken = false;
+    }
+
+    private XAResource xaResource() throws XAException {
+        try {
+            return current();
+        } catch (JMSException e) {
+            invalidate();
+            throw (XAException) new XAException(XAException.XAER_RMFAIL).initCause(e);
+        }
+    }
+
+    private static boolean isConnectionError(XAException e) {
+        return e.errorCode == XAException.XAER_RMFAIL || e.errorCode == XAException.XAER_RMERR;
+    }
+
+    private static void safeClose(XAConnection connection) {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            LOG.debug("Error closing recovery connection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@link XAResource} delegating to current recovery connection. Unlike per-scan recovery,
+     * {@link #TMENDRSCAN} doesn't close the connection.
+     */
+    private class RecoveryXAResource implements XAResource {
+
+        @Override
+        public Xid[] recover(int flag) throws XAException {
+            try {
+                return xaResource().recover(flag);
+            } catch (XAException e) {
+                if (!isConnectionError(e)) {
+                    throw e;
+                }
+                invalidate();
+                if ((flag & TMSTARTRSCAN) == 0) {
+                    throw e;
+                }
+                LOG.debug("Recovery scan failed, retrying with new connection: " + e.getMessage());
+                return xaResource().recover(flag);
+            }
+        }
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            try {
+                xaResource().commit(xid, onePhase);
+            } catch (XAException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void rollback(Xid xid) throws XAException {
+            try {
+                xaResource().rollback(xid);
+            } catch (XAException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void forget(Xid xid) throws XAException {
+            try {
+                xaResource().forget(xid);
+            } catch (XAException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void end(Xid xid, int flags) throws XAException {
+            xaResource().end(xid, flags);
+        }
+
+        @Override
+        public int getTransactionTimeout() throws XAException {
+            return xaResource().getTransactionTimeout();
+        }
+
+        @Override
+        public boolean isSameRM(XAResource xares) throws XAException {
+            return xares == this || xaResource().isSameRM(xares);
+        }
+
+        @Override
+        public int prepare(Xid xid) throws XAException {
+            return xaResource().prepare(xid);
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return xaResource().setTransactionTimeout(seconds);
+        }
+
+        @Override
+        public void start(Xid xid, int flags) throws XAException {
+            xaResource().start(xid, flags);
+        }
+
+        private XAException failed(XAException e) {
+            if (isConnectionError(e)) {
+                invalidate();
+            }
+            return e;
+        }
+    }
+
+}
@@ -29,7 +29,11 @@ import javax.transaction.xa.Xid;
 import org.jboss.tm.XAResourceRecovery;
 import org.messaginghub.pooled.jms.JmsPoolXAConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.AdaptivePoolSizer;
 import org.ops4j.pax.jms.service.internal.BeanConfig;
+import org.ops4j.pax.jms.service.internal.CompletionCountingTransactionManager;
+import org.ops4j.pax.jms.service.internal.MonitoredConnectionFactory;
+import org.ops4j.pax.jms.service.internal.TransactionAffinityConnectionFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
@@ -38,15 +42,40 @@ import org.slf4j.LoggerFactory;
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getNonPoolProps;
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getPoolProps;
 
+/**
+ * <p>XA-aware pooled connection factory factory, registering {@link XAResourceRecovery} service for each created
+ * connection factory. Integration with the transaction manager is configured with {@code pool.mode} property:</p>
+ * <ul>
+ *     <li>{@code pooled} (default) - pooled-jms {@link JmsPoolXAConnectionFactory} enlisting pooled sessions, with
+ *     optional {@link TransactionAffinityConnectionFactory transaction affinity} ({@code pool.transactionAffinity=true})</li>
+ *     <li>{@code native} - no pooling, sessions enlisted directly with single connection per transaction, see
+ *     {@link NativeXAConnectionFactory}</li>
+ * </ul>
+ * <p>Completions of enlisted branches are counted, see {@link CompletionCountingTransactionManager}. The counters
+ * are exposed as {@link org.ops4j.pax.jms.service.ConnectionFactoryStatistics} of the connection factory.</p>
+ * <p>Recovery is configured with {@code pool.recoveryMode} property:</p>
+ * <ul>
+ *     <li>{@code perScan} (default) - new recovery connection is created for each recovery scan and closed at
+ *     the end of the scan</li>
+ *     <li>{@code persistent} - single recovery connection is kept between scans and replaced only after
+ *     errors, see {@link PersistentXAResourceRecovery}</li>
+ * </ul>
+ */
 public class PooledJmsXAPooledConnectionFactoryFactory extends PooledJmsPooledConnectionFactoryFactory {
 
     public static final Logger LOG = LoggerFactory.getLogger(PooledJmsXAPooledConnectionFactoryFactory.class);
 
+    public static final String MODE = "mode";
+    public static final String MODE_POOLED = "pooled";
+    public static final String MODE_NATIVE = "native";
+
+    public static final String RECOVERY_MODE = "recoveryMode";
+    public static final String RECOVERY_MODE_PER_SCAN = "perScan";
+    public static final String RECOVERY_MODE_PERSISTENT = "persistent";
+
     private final TransactionManager transactionManager;
     private final BundleContext bundleContext;
 
-    private ServiceRegistration<XAResourceRecovery> recovery;
-
     public PooledJmsXAPooledConnectionFactoryFactory(BundleContext bundleContext, TransactionManager transactionManager) {
         this.bundleContext = bundleContext;
         this.transactionManager = transactionManager;
@@ -55,27 +84,60 @@ public class PooledJmsXAPooledConnectionFactoryFactory extends PooledJmsPooledCo
     @Override
     public ConnectionFactory create(ConnectionFactoryFactory cff, Map<String, Object> props) throws JMSRuntimeException {
         try {
+            Map<String, Object> poolProps = getPoolProps(props);
+            Object mode = poolProps.remove(MODE);
+            Object recoveryMode = poolProps.remove(RECOVERY_MODE);
+            if (mode != null && !MODE_POOLED.equals(mode) && !MODE_NATIVE.equals(mode)) {
+                throw new IllegalArgumentException("Invalid " + MODE + " value: " + mode
+                        + ". Expected " + MODE_POOLED + " or " + MODE_NATIVE);
+            }
+            CompletionCountingTransactionManager monitoredTransactionManager
+                    = new CompletionCountingTransactionManager(transactionManager);
+            // no limits to control in native mode
+            AdaptivePoolSizer sizer = MODE_NATIVE.equals(mode) ? null : AdaptivePoolSizer.create(poolProps);
             XAConnectionFactory cf = cff.createXAConnectionFactory(getNonPoolProps(props));
-            JmsPoolXAConnectionFactory pool = new JmsPoolXAConnectionFactory();
-            pool.setConnectionFactory(cf);
-            pool.setTransactionManager(transactionManager);
-            BeanConfig.configure(pool, getPoolProps(props));
+            ConnectionFactory connectionFactory;
+            JmsPoolXAConnectionFactory pool = null;
+            if (MODE_NATIVE.equals(mode)) {
+                connectionFactory = new NativeXAConnectionFactory(cf, monitoredTransactionManager);
+            } else {
+                pool = new JmsPoolXAConnectionFactory();
+                pool.setConnectionFactory(sizer == null ? cf : sizer.measureCreates(cf));
+                pool.setTransactionManager(monitoredTransactionManager);
+                connectionFactory = TransactionAffinityConnectionFactory.wrap(pool, transactionManager, poolProps);
+                BeanConfig.configure(pool, poolProps);
+                connectionFactory = sized(sizer, pool, connectionFactory);
+            }
 
-            // this service will be unregistered when pax-jms-pool-narayana will be unregistered
-            recovery = bundleContext.registerService(XAResourceRecovery.class, () -> {
-                try {
-                    return new XAResource[] { new Wrapper(cf.createXAConnection()) };
-                } catch (JMSException e) {
-                    throw new RuntimeException(e);
-                }
-            }, null);
+            XAResourceRecovery xaResourceRecovery;
+            PersistentXAResourceRecovery persistentRecovery = null;
+            if (recoveryMode == null || RECOVERY_MODE_PER_SCAN.equals(recoveryMode)) {
+                xaResourceRecovery = () -> {
+                    try {
+                        return new XAResource[] { new Wrapper(cf.createXAConnection()) };
+                    } catch (JMSException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            } else if (RECOVERY_MODE_PERSISTENT.equals(recoveryMode)) {
+                persistentRecovery = new PersistentXAResourceRecovery(cf);
+                xaResourceRecovery = persistentRecovery;
+            } else {
+                throw new IllegalArgumentException("Invalid " + RECOVERY_MODE + " value: " + recoveryMode
+                        + ". Expected " + RECOVERY_MODE_PER_SCAN + " or " + RECOVERY_MODE_PERSISTENT);
+            }
 
-            return new CloseableConnectionFactory(pool) {
-                @Override
-                public void close() throws Exception {
-                    recovery.unregister();
-                }
-            };
+            // this service will be unregistered when pax-jms-pool-narayana will be unregistered
+            ServiceRegistration<XAResourceRecovery> recovery
+                    = bundleContext.registerService(XAResourceRecovery.class, xaResourceRecovery, null);
+
+            return new MonitoredConnectionFactory(new CloseableConnectionFactory(connectionFactory,
+                    () -> LOG.info("Transaction completions of closed connection factory - {}",
+                            monitoredTransactionManager.getStatistics()),
+                    recovery::unregister,
+                    sizer,
+                    pool == null ? null : pool::stop,
+                    persistentRecovery), monitoredTransactionManager.getStatistics());
         } catch (Throwable e) {
             LOG.error("Error creating pooled connection factory: " + e.getMessage(), e);
             if (e instanceof RuntimeException) {
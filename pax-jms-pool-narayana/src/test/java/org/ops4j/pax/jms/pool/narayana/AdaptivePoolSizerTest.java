@@ -0,0 +1,186 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.messaginghub.pooled.jms.JmsPoolConnectionFactory;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.AdaptivePoolSizer;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptivePoolSizerTest {
+
+    private static final String URL = "vm://autoSize?create=false";
+
+    private BrokerService broker;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("autoSize");
+        broker.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void disabledByDefault() {
+        Map<String, Object> poolProps = new HashMap<>();
+        poolProps.put(AdaptivePoolSizer.MAX_CONNECTIONS, "8");
+        poolProps.put("maxConnections", "2");
+        assertThat(AdaptivePoolSizer.create(poolProps), nullValue());
+        assertThat(poolProps.size(), equalTo(1));
+    }
+
+    @Test
+    public void factoryAcceptsSizingProperties() throws Exception {
+        ConnectionFactoryFactory cff = mock(ConnectionFactoryFactory.class);
+        when(cff.createConnectionFactory(any())).thenAnswer(inv -> new ActiveMQConnectionFactory(URL));
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.maxConnections", "2");
+        props.put("pool." + AdaptivePoolSizer.AUTO_SIZE_INTERVAL, "60000");
+        props.put("pool." + AdaptivePoolSizer.MAX_CONNECTIONS, "8");
+
+        ConnectionFactory cf = new PooledJmsPooledConnectionFactoryFactory().create(cff, props);
+        try (Connection connection = cf.createConnection()) {
+            connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+        }
+        assertThat(cf, instanceOf(AutoCloseable.class));
+        ((AutoCloseable) cf).close();
+    }
+
+    @Test
+    public void limitsFollowLoad() throws Exception {
+        Map<String, Object> poolProps = new HashMap<>();
+        poolProps.put(AdaptivePoolSizer.AUTO_SIZE_INTERVAL, "3600000");
+        poolProps.put(AdaptivePoolSizer.MAX_CONNECTIONS, "2");
+        poolProps.put(AdaptivePoolSizer.MAX_SESSIONS, "2");
+        AdaptivePoolSizer sizer = AdaptivePoolSizer.create(poolProps);
+
+        JmsPoolConnectionFactory pool = new JmsPoolConnectionFactory();
+        pool.setConnectionFactory(sizer.measureCreates(new ActiveMQConnectionFactory(URL)));
+        pool.setMaxConnections(1);
+        pool.setMaxSessionsPerConnection(1);
+        pool.setBlockIfSessionPoolIsFull(true);
+        ConnectionFactory cf = sizer.connections(pool::getMaxConnections, pool::setMaxConnections)
+                .sessions(pool::getMaxSessionsPerConnection, pool::setMaxSessionsPerConnection)
+                .wrap(pool);
+
+        try {
+            // single session is borrowed for a while, so the next borrow waits
+            CountDownLatch borrowed = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                try (Connection connection = cf.createConnection()) {
+                    Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                    borrowed.countDown();
+                    Thread.sleep(200);
+                    session.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            holder.start();
+            assertThat(borrowed.await(5, TimeUnit.SECONDS), equalTo(true));
+            try (Connection connection = cf.createConnection()) {
+                connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+            }
+            holder.join();
+
+            sizer.adjust();
+            assertThat(pool.getMaxConnections(), equalTo(2));
+            assertThat(pool.getMaxSessionsPerConnection(), equalTo(1));
+
+            // idle pool shrinks back to lower bounds
+            sizer.adjust();
+            assertThat(pool.getMaxConnections(), equalTo(1));
+            sizer.adjust();
+            assertThat(pool.getMaxConnections(), equalTo(1));
+            assertThat(pool.getMaxSessionsPerConnection(), equalTo(1));
+        } finally {
+            ((AutoCloseable) cf).close();
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void closingConnectionEndsUseOfItsSessions() throws Exception {
+        Map<String, Object> poolProps = new HashMap<>();
+        poolProps.put(AdaptivePoolSizer.AUTO_SIZE_INTERVAL, "3600000");
+        // slow borrows from mocked pool shouldn't grow the pool
+        poolProps.put(AdaptivePoolSizer.TARGET_WAIT, "60000");
+        AdaptivePoolSizer sizer = AdaptivePoolSizer.create(poolProps);
+        AtomicInteger maxConnections = new AtomicInteger(4);
+        ConnectionFactory pool = mock(ConnectionFactory.class);
+        when(pool.createConnection()).thenAnswer(inv -> {
+            Connection connection = mock(Connection.class);
+            when(connection.createSession(false, Session.AUTO_ACKNOWLEDGE)).thenAnswer(i -> mock(Session.class));
+            return connection;
+        });
+        ConnectionFactory cf = sizer.connections(maxConnections::get, maxConnections::set)
+                .sessions(() -> 1, sessions -> { })
+                .wrap(pool);
+
+        try {
+            // sessions are not closed explicitly - only their connections
+            List<Connection> connections = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Connection connection = cf.createConnection();
+                connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                connections.add(connection);
+            }
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            // peak of 3 sessions doesn't allow shrinking
+            sizer.adjust();
+            assertThat(maxConnections.get(), equalTo(4));
+
+            // nothing is borrowed after the connections were closed
+            sizer.adjust();
+            assertThat(maxConnections.get(), equalTo(3));
+        } finally {
+            ((AutoCloseable) cf).close();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.transaction.Transaction;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.jboss.tm.XAResourceRecovery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.ConnectionFactoryStatistics;
+import org.ops4j.pax.jms.service.internal.CompletionCountingTransactionManager;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CompletionCountingTest {
+
+    private static final String URL = "vm://onePhase?create=false";
+
+    private BrokerService broker;
+    private ConnectionFactoryFactory cff;
+    private final ActiveMQQueue queue = new ActiveMQQueue("onePhase");
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("onePhase");
+        broker.start();
+        cff = mock(ConnectionFactoryFactory.class);
+        when(cff.createXAConnectionFactory(any())).thenAnswer(inv -> new ActiveMQXAConnectionFactory(URL));
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void onePhaseCommitByTransactionManager() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        ConnectionFactory cf = create(tx, new HashMap<>());
+        send(cf, "m1");
+        tx.commit();
+
+        Map<String, Long> statistics = ((ConnectionFactoryStatistics) cf).getStatistics();
+        assertThat(statistics.get("xa.onePhaseCommits"), equalTo(1L));
+        assertThat(statistics.get("xa.twoPhaseCommits"), equalTo(0L));
+        assertThat(receive(), equalTo("m1"));
+    }
+
+    @Test
+    public void twoPhaseCommitByTransactionManager() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        ConnectionFactory cf = create(tx, new HashMap<>());
+        send(cf, "m1");
+        tx.commitTwoPhase();
+
+        Map<String, Long> statistics = ((ConnectionFactoryStatistics) cf).getStatistics();
+        assertThat(statistics.get("xa.onePhaseCommits"), equalTo(0L));
+        assertThat(statistics.get("xa.twoPhaseCommits"), equalTo(1L));
+        assertThat(receive(), equalTo("m1"));
+    }
+
+    @Test
+    public void singleWrapperPerTransaction() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        CompletionCountingTransactionManager tm = new CompletionCountingTransactionManager(tx.transactionManager());
+        Transaction monitored = tm.getTransaction();
+        assertThat(tm.getTransaction(), sameInstance(monitored));
+        assertThat(tx.synchronizations.size(), equalTo(1));
+
+        tx.commit();
+        assertThat(tm.getTransaction(), not(sameInstance(monitored)));
+    }
+
+    private ConnectionFactory create(TestTransaction tx, Map<String, Object> props) throws Exception {
+        BundleContext context = mock(BundleContext.class);
+        when(context.registerService(eq(XAResourceRecovery.class), any(XAResourceRecovery.class), any()))
+                .thenReturn(mock(ServiceRegistration.class));
+        return new PooledJmsXAPooledConnectionFactoryFactory(context, tx.transactionManager()).create(cff, props);
+    }
+
+    private void send(ConnectionFactory cf, String text) throws JMSException {
+        try (Connection c = cf.createConnection()) {
+            try (Session session = c.createSession(true, Session.SESSION_TRANSACTED)) {
+                session.createProducer(queue).send(session.createTextMessage(text));
+            }
+        }
+    }
+
+    private String receive() throws JMSException {
+        try (Connection c = new ActiveMQConnectionFactory(URL).createConnection()) {
+            c.start();
+            MessageConsumer consumer = c.createSession(false, Session.AUTO_ACKNOWLEDGE).createConsumer(queue);
+            TextMessage message = (TextMessage) consumer.receive(1000);
+            return message == null ? null : message.getText();
+        }
+    }
+
+}
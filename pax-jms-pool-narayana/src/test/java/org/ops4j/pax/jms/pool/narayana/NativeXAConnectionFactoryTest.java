@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.Connection;
+import javax.jms.JMSContext;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.jms.TransactionInProgressException;
+import javax.jms.TransactionInProgressRuntimeException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NativeXAConnectionFactoryTest {
+
+    private BrokerService broker;
+    private ActiveMQXAConnectionFactory xacf;
+    private AtomicInteger physicalConnections = new AtomicInteger();
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("native");
+        broker.start();
+        xacf = new ActiveMQXAConnectionFactory("vm://native?create=false") {
+            @Override
+            public XAConnection createXAConnection() throws JMSException {
+                physicalConnections.incrementAndGet();
+                return super.createXAConnection();
+            }
+
+            @Override
+            public XAConnection createXAConnection(String userName, String password) throws JMSException {
+                physicalConnections.incrementAndGet();
+                return super.createXAConnection(userName, password);
+            }
+        };
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void connectionPerTransaction() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        TransactionManager tm = tx.transactionManager();
+        NativeXAConnectionFactory cf = new NativeXAConnectionFactory(xacf, tm);
+        ActiveMQQueue queue = new ActiveMQQueue("native");
+
+        for (int i = 0; i < 2; i++) {
+            try (Connection c = cf.createConnection()) {
+                try (Session session = c.createSession(true, Session.SESSION_TRANSACTED)) {
+                    session.createProducer(queue).send(session.createTextMessage("m" + i));
+                    try {
+                        session.commit();
+                        fail("Should not allow local commit");
+                    } catch (TransactionInProgressException expected) {
+                    }
+                }
+            }
+        }
+        assertThat(physicalConnections.get(), equalTo(1));
+        assertThat(tx.resources.size(), equalTo(1));
+        assertThat(tx.synchronizations.size(), equalTo(1));
+        assertThat(cf.getTransactionConnectionCount(), equalTo(1));
+
+        assertThat(receive(queue), nullValue());
+        tx.commit();
+        assertThat(cf.getTransactionConnectionCount(), equalTo(0));
+
+        when(tm.getTransaction()).thenReturn(null);
+        assertThat(((TextMessage) receive(queue)).getText(), equalTo("m0"));
+        assertThat(((TextMessage) receive(queue)).getText(), equalTo("m1"));
+    }
+
+    @Test
+    public void credentialsComparedWithinTransaction() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        NativeXAConnectionFactory cf = new NativeXAConnectionFactory(xacf, tx.transactionManager());
+
+        cf.createConnection("user", "password").close();
+        cf.createConnection("user", "password").close();
+        try {
+            cf.createConnection("user", "other");
+            fail("Should not reuse connection authenticated with different password");
+        } catch (JMSException expected) {
+        }
+        try {
+            cf.createConnection();
+            fail("Should not reuse connection authenticated with different user");
+        } catch (JMSException expected) {
+        }
+        assertThat(physicalConnections.get(), equalTo(1));
+        tx.commit();
+    }
+
+    @Test
+    public void contextPerTransaction() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        XAConnectionFactory factory = mock(XAConnectionFactory.class);
+        XAJMSContext xaContext = mock(XAJMSContext.class);
+        when(xaContext.getXAResource()).thenReturn(mock(XAResource.class));
+        when(factory.createXAContext()).thenReturn(xaContext);
+        NativeXAConnectionFactory cf = new NativeXAConnectionFactory(factory, tx.transactionManager());
+
+        for (int i = 0; i < 2; i++) {
+            try (JMSContext context = cf.createContext()) {
+                context.createTextMessage("m" + i);
+                try {
+                    context.commit();
+                    fail("Should not allow local commit");
+                } catch (TransactionInProgressRuntimeException expected) {
+                }
+            }
+        }
+        verify(factory, times(1)).createXAContext();
+        verify(xaContext, times(2)).createTextMessage(anyString());
+        verify(xaContext, never()).close();
+        assertThat(tx.resources.size(), equalTo(1));
+        assertThat(tx.synchronizations.size(), equalTo(1));
+
+        tx.commit();
+        verify(xaContext).close();
+        assertThat(cf.getTransactionConnectionCount(), equalTo(0));
+    }
+
+    private Object receive(ActiveMQQueue queue) throws JMSException {
+        try (Connection c = new ActiveMQConnectionFactory("vm://native?create=false").createConnection()) {
+            c.start();
+            Session session = c.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(queue);
+            return consumer.receive(500);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Minimal one-phase-commit transaction driving enlisted {@link XAResource XA resources}
+ */
+class TestTransaction {
+
+    final Transaction transaction = mock(Transaction.class);
+    final List<XAResource> resources = new ArrayList<>();
+    final List<Synchronization> synchronizations = new ArrayList<>();
+    final List<Xid> branches = new ArrayList<>();
+
+    TestTransaction() throws Exception {
+        when(transaction.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        doAnswer(inv -> {
+            XAResource resource = inv.getArgument(0);
+            Xid xid = branch(resources.size());
+            resource.start(xid, XAResource.TMNOFLAGS);
+            resources.add(resource);
+            branches.add(xid);
+            return true;
+        }).when(transaction).enlistResource(any(XAResource.class));
+        doAnswer(inv -> synchronizations.add(inv.getArgument(0)))
+                .when(transaction).registerSynchronization(any(Synchronization.class));
+    }
+
+    /**
+     * @return mocked transaction manager with this transaction associated
+     */
+    TransactionManager transactionManager() throws Exception {
+        TransactionManager tm = mock(TransactionManager.class);
+        when(tm.getTransaction()).thenReturn(transaction);
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        return tm;
+    }
+
+    void commit() throws Exception {
+        for (int i = 0; i < resources.size(); i++) {
+            resources.get(i).end(branches.get(i), XAResource.TMSUCCESS);
+            resources.get(i).commit(branches.get(i), true);
+        }
+        for (Synchronization s : synchronizations) {
+            s.afterCompletion(Status.STATUS_COMMITTED);
+        }
+    }
+
+    /**
+     * Two-phase commit, even with single resource
+     */
+    void commitTwoPhase() throws Exception {
+        boolean[] readOnly = new boolean[resources.size()];
+        for (int i = 0; i < resources.size(); i++) {
+            resources.get(i).end(branches.get(i), XAResource.TMSUCCESS);
+            readOnly[i] = resources.get(i).prepare(branches.get(i)) == XAResource.XA_RDONLY;
+        }
+        for (int i = 0; i < resources.size(); i++) {
+            if (!readOnly[i]) {
+                resources.get(i).commit(branches.get(i), false);
+            }
+        }
+        for (Synchronization s : synchronizations) {
+            s.afterCompletion(Status.STATUS_COMMITTED);
+        }
+    }
+
+    private static Xid branch(int branch) {
+        return new Xid() {
+            @Override
+            public int getFormatId() {
+                return 42;
+            }
+
+            @Override
+            public byte[] getGlobalTransactionId() {
+                return new byte[] { 1 };
+            }
+
+            @Override
+            public byte[] getBranchQualifier() {
+                return new byte[] { (byte) branch };
+            }
+        };
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.jboss.tm.XAResourceRecovery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.MonitoredConnectionFactory;
+import org.ops4j.pax.jms.service.internal.TransactionAffinityConnectionFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionAffinityTest {
+
+    private static final String URL = "vm://affinity?create=false";
+
+    private BrokerService broker;
+    private ConnectionFactoryFactory cff;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setBrokerName("affinity");
+        broker.start();
+        cff = mock(ConnectionFactoryFactory.class);
+        when(cff.createXAConnectionFactory(any())).thenAnswer(inv -> new ActiveMQXAConnectionFactory(URL));
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void sessionsSharedWithinTransaction() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        TransactionManager tm = tx.transactionManager();
+        ConnectionFactory cf = create(tm, affinityEnabled());
+        assertThat(delegate(cf) instanceof TransactionAffinityConnectionFactory,
+                equalTo(true));
+        ActiveMQQueue queue = new ActiveMQQueue("affinity");
+
+        Session first = send(cf, queue, "m1");
+        Session second = send(cf, queue, "m2");
+        assertThat(second, sameInstance(first));
+        assertThat(tx.resources.size(), equalTo(1));
+
+        tx.commit();
+        when(tm.getStatus()).thenReturn(Status.STATUS_NO_TRANSACTION);
+        when(tm.getTransaction()).thenReturn(null);
+        assertThat(((TextMessage) receive(queue)).getText(), equalTo("m1"));
+        assertThat(((TextMessage) receive(queue)).getText(), equalTo("m2"));
+        assertThat(receive(queue), nullValue());
+
+        // next transaction gets new session
+        TestTransaction tx2 = new TestTransaction();
+        when(tm.getStatus()).thenReturn(Status.STATUS_ACTIVE);
+        when(tm.getTransaction()).thenReturn(tx2.transaction);
+        assertThat(send(cf, queue, "m3"), not(sameInstance(first)));
+        assertThat(tx2.resources.size(), equalTo(1));
+        tx2.commit();
+    }
+
+    @Test
+    public void affinityByCredentials() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        ConnectionFactory cf = create(tx.transactionManager(), affinityEnabled());
+
+        Connection first = cf.createConnection("user", "secret");
+        assertThat(cf.createConnection("user", "secret"), sameInstance(first));
+        assertThat(cf.createConnection("user", "wrong"), not(sameInstance(first)));
+        assertThat(cf.createConnection(), not(sameInstance(first)));
+        tx.commit();
+    }
+
+    @Test
+    public void affinityDisabledByDefault() throws Exception {
+        TestTransaction tx = new TestTransaction();
+        ConnectionFactory cf = create(tx.transactionManager(), new HashMap<>());
+        assertThat(delegate(cf) instanceof TransactionAffinityConnectionFactory,
+                equalTo(false));
+        ActiveMQQueue queue = new ActiveMQQueue("noAffinity");
+
+        send(cf, queue, "m1");
+        send(cf, queue, "m2");
+        assertThat(tx.resources.size(), equalTo(2));
+
+        // connection opened within the transaction stays usable after completion
+        try (Connection c = cf.createConnection()) {
+            c.createSession(true, Session.SESSION_TRANSACTED).close();
+            tx.commit();
+            c.start();
+            c.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+        }
+    }
+
+    private Map<String, Object> affinityEnabled() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool." + TransactionAffinityConnectionFactory.TRANSACTION_AFFINITY, "true");
+        return props;
+    }
+
+    private ConnectionFactory create(TransactionManager tm, Map<String, Object> props) {
+        BundleContext context = mock(BundleContext.class);
+        when(context.registerService(eq(XAResourceRecovery.class), any(XAResourceRecovery.class), any()))
+                .thenReturn(mock(ServiceRegistration.class));
+        return new PooledJmsXAPooledConnectionFactoryFactory(context, tm).create(cff, props);
+    }
+
+    private static ConnectionFactory delegate(ConnectionFactory cf) {
+        return ((CloseableConnectionFactory) ((MonitoredConnectionFactory) cf).getDelegate()).getDelegate();
+    }
+
+    private Session send(ConnectionFactory cf, ActiveMQQueue queue, String text) throws JMSException {
+        try (Connection c = cf.createConnection()) {
+            try (Session session = c.createSession(true, Session.SESSION_TRANSACTED)) {
+                session.createProducer(queue).send(session.createTextMessage(text));
+                return session;
+            }
+        }
+    }
+
+    private Object receive(ActiveMQQueue queue) throws JMSException {
+        try (Connection c = new ActiveMQConnectionFactory(URL).createConnection()) {
+            c.start();
+            MessageConsumer consumer = c.createSession(false, Session.AUTO_ACKNOWLEDGE).createConsumer(queue);
+            return consumer.receive(500);
+        }
+    }
+
+}
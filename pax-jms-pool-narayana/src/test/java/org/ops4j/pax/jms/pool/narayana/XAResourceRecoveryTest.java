@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.narayana;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.JMSException;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XAJMSContext;
+import javax.transaction.xa.XAResource;
+
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.tm.XAResourceRecovery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class XAResourceRecoveryTest {
+
+    public static final Logger LOG = LoggerFactory.getLogger(XAResourceRecoveryTest.class);
+
+    private static final int SCANS = 200;
+
+    private BrokerService broker;
+    private String url;
+    private CountingConnectionFactory cf;
+
+    @Before
+    public void before() throws Exception {
+        broker = startBroker("tcp://127.0.0.1:0");
+        url = broker.getTransportConnectors().get(0).getPublishableConnectString();
+        cf = new CountingConnectionFactory(new ActiveMQXAConnectionFactory(url));
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void persistentConnectionReconnectsAfterFailure() throws Exception {
+        try (PersistentXAResourceRecovery recovery = new PersistentXAResourceRecovery(cf)) {
+            scan(recovery);
+            scan(recovery);
+            assertThat(cf.created.get(), equalTo(1));
+
+            broker.stop();
+            broker.waitUntilStopped();
+            // broker is down - either no resources or failing scan
+            assertTrue(recovery.getXAResources().length == 0 || !scanSucceeds(recovery));
+
+            broker = startBroker(url);
+            scan(recovery);
+            scan(recovery);
+            assertThat(cf.open.get(), equalTo(1));
+        }
+        assertThat(cf.open.get(), equalTo(0));
+    }
+
+    /**
+     * Not a JMH benchmark - just a logged comparison of {@link #SCANS} recovery scans with new connection per
+     * scan and with persistent connection.
+     */
+    @Test
+    public void recoveryScanCost() throws Exception {
+        PooledJmsXAPooledConnectionFactoryFactory factory = new PooledJmsXAPooledConnectionFactoryFactory(null, null);
+        XAResourceRecovery perScan = () -> {
+            try {
+                return new XAResource[] { factory.new Wrapper(cf.createXAConnection()) };
+            } catch (JMSException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        try (PersistentXAResourceRecovery persistent = new PersistentXAResourceRecovery(cf)) {
+            // warmup
+            for (int i = 0; i < SCANS / 4; i++) {
+                scan(perScan);
+                scan(persistent);
+            }
+
+            cf.created.set(0);
+            long start = System.nanoTime();
+            for (int i = 0; i < SCANS; i++) {
+                scan(perScan);
+            }
+            long perScanNanos = (System.nanoTime() - start) / SCANS;
+            int perScanConnections = cf.created.getAndSet(0);
+
+            start = System.nanoTime();
+            for (int i = 0; i < SCANS; i++) {
+                scan(persistent);
+            }
+            long persistentNanos = (System.nanoTime() - start) / SCANS;
+            int persistentConnections = cf.created.get();
+
+            LOG.info("Recovery scan: {}us and {} connections per {} scans with connection per scan, "
+                    + "{}us and {} connections with persistent connection",
+                    perScanNanos / 1000, perScanConnections, SCANS, persistentNanos / 1000, persistentConnections);
+            assertThat(persistentConnections, equalTo(0));
+        }
+    }
+
+    private static BrokerService startBroker(String url) throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.addConnector(url);
+        broker.start();
+        return broker;
+    }
+
+    /**
+     * The same sequence of calls as in Narayana's XARecoveryModule
+     */
+    private static void scan(XAResourceRecovery recovery) throws Exception {
+        for (XAResource xaResource : recovery.getXAResources()) {
+            xaResource.recover(XAResource.TMSTARTRSCAN);
+            xaResource.recover(XAResource.TMENDRSCAN);
+        }
+    }
+
+    private static boolean scanSucceeds(XAResourceRecovery recovery) {
+        try {
+            scan(recovery);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static class CountingConnectionFactory implements XAConnectionFactory {
+
+        private final XAConnectionFactory delegate;
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger open = new AtomicInteger();
+
+        CountingConnectionFactory(XAConnectionFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public XAConnection createXAConnection() throws JMSException {
+            XAConnection connection = delegate.createXAConnection();
+            created.incrementAndGet();
+            open.incrementAndGet();
+            return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { XAConnection.class }, (proxy, method, args) -> {
+                        if ("close".equals(method.getName())) {
+                            open.decrementAndGet();
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public XAConnection createXAConnection(String userName, String password) throws JMSException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public XAJMSContext createXAContext() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public XAJMSContext createXAContext(String userName, String password) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import javax.jms.JMSRuntimeException;
 import org.messaginghub.pooled.jms.JmsPoolConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.ops4j.pax.jms.service.PooledConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.AdaptivePoolSizer;
 import org.ops4j.pax.jms.service.internal.BeanConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,11 +37,13 @@ public class PooledJmsPooledConnectionFactoryFactory implements PooledConnection
     @Override
     public ConnectionFactory create(ConnectionFactoryFactory cff, Map<String, Object> props) throws JMSRuntimeException {
         try {
+            Map<String, Object> poolProps = getPoolProps(props);
+            AdaptivePoolSizer sizer = AdaptivePoolSizer.create(poolProps);
             ConnectionFactory cf = cff.createConnectionFactory(getNonPoolProps(props));
             JmsPoolConnectionFactory pool = new JmsPoolConnectionFactory();
-            pool.setConnectionFactory(cf);
-            BeanConfig.configure(pool, getPoolProps(props));
-            return pool;
+            pool.setConnectionFactory(sizer == null ? cf : sizer.measureCreates(cf));
+            BeanConfig.configure(pool, poolProps);
+            return sized(sizer, pool, pool);
         } catch (Throwable e) {
             LOG.error("Error creating pooled connection factory: " + e.getMessage(), e);
             if (e instanceof RuntimeException) {
@@ -51,4 +54,23 @@ public class PooledJmsPooledConnectionFactoryFactory implements PooledConnection
         }
     }
 
+    /**
+     * Wraps the pool with {@link AdaptivePoolSizer} controlling its limits, if sizing is configured. Changed
+     * {@code maxSessionsPerConnection} applies to connections created after the change.
+     *
+     * @param sizer controller created from pool properties, may be {@code null}
+     * @param pool pooled-jms pool
+     * @param connectionFactory pool or its wrapper
+     * @return connection factory to register
+     */
+    protected static ConnectionFactory sized(AdaptivePoolSizer sizer, JmsPoolConnectionFactory pool,
+            ConnectionFactory connectionFactory) {
+        if (sizer == null) {
+            return connectionFactory;
+        }
+        return sizer.connections(pool::getMaxConnections, pool::setMaxConnections)
+                .sessions(pool::getMaxSessionsPerConnection, pool::setMaxSessionsPerConnection)
+                .wrap(connectionFactory);
+    }
+
 }
@@ -23,11 +23,21 @@ import javax.transaction.TransactionManager;
 
 import org.messaginghub.pooled.jms.JmsPoolXAConnectionFactory;
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
+import org.ops4j.pax.jms.service.internal.AdaptivePoolSizer;
 import org.ops4j.pax.jms.service.internal.BeanConfig;
+import org.ops4j.pax.jms.service.internal.CompletionCountingTransactionManager;
+import org.ops4j.pax.jms.service.internal.MonitoredConnectionFactory;
+import org.ops4j.pax.jms.service.internal.TransactionAffinityConnectionFactory;
 
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getNonPoolProps;
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getPoolProps;
 
+/**
+ * XA-aware pooled-jms connection factory factory. Sessions borrowed within single transaction may be shared
+ * using {@link TransactionAffinityConnectionFactory}, enabled with {@code pool.transactionAffinity=true}. Completions of
+ * enlisted branches are counted by {@link CompletionCountingTransactionManager} and exposed as
+ * {@link org.ops4j.pax.jms.service.ConnectionFactoryStatistics}. Pool limits may be controlled by {@link AdaptivePoolSizer}.
+ */
 public class PooledJmsXAPooledConnectionFactoryFactory extends PooledJmsPooledConnectionFactoryFactory {
 
     private final TransactionManager transactionManager;
@@ -40,11 +50,18 @@ public class PooledJmsXAPooledConnectionFactoryFactory extends PooledJmsPooledCo
     public ConnectionFactory create(ConnectionFactoryFactory cff, Map<String, Object> props) throws JMSRuntimeException {
         try {
             XAConnectionFactory cf = cff.createXAConnectionFactory(getNonPoolProps(props));
+            Map<String, Object> poolProps = getPoolProps(props);
+            AdaptivePoolSizer sizer = AdaptivePoolSizer.create(poolProps);
             JmsPoolXAConnectionFactory pool = new JmsPoolXAConnectionFactory();
-            pool.setConnectionFactory(cf);
-            pool.setTransactionManager(transactionManager);
-            BeanConfig.configure(pool, getPoolProps(props));
-            return pool;
+            pool.setConnectionFactory(sizer == null ? cf : sizer.measureCreates(cf));
+            CompletionCountingTransactionManager monitoredTransactionManager
+                    = new CompletionCountingTransactionManager(transactionManager);
+            pool.setTransactionManager(monitoredTransactionManager);
+            ConnectionFactory connectionFactory
+                    = TransactionAffinityConnectionFactory.wrap(pool, transactionManager, poolProps);
+            BeanConfig.configure(pool, poolProps);
+            return new MonitoredConnectionFactory(sized(sizer, pool, connectionFactory),
+                    monitoredTransactionManager.getStatistics());
         } catch (Throwable e) {
             LOG.error("Error creating pooled connection factory: " + e.getMessage(), e);
             if (e instanceof RuntimeException) {
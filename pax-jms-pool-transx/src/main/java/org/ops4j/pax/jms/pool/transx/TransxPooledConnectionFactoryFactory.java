@@ -15,13 +15,18 @@
  */
 package org.ops4j.pax.jms.pool.transx;
 
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSRuntimeException;
 import javax.resource.spi.TransactionSupport;
 
 import org.ops4j.pax.jms.service.ConnectionFactoryFactory;
 import org.ops4j.pax.jms.service.PooledConnectionFactoryFactory;
+import org.ops4j.pax.transx.connection.AllExceptionsAreFatalSorter;
+import org.ops4j.pax.transx.connection.NoExceptionsAreFatalSorter;
 import org.ops4j.pax.transx.jms.ManagedConnectionFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,21 +34,47 @@ import org.slf4j.LoggerFactory;
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getNonPoolProps;
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getPoolProps;
 
+/**
+ * <p>Pooled connection factory factory using pax-transx JCA connection manager. Pool is configured with
+ * {@code pool.} prefixed properties:</p>
+ * <ul>
+ *     <li>{@code pool.name} - name of the pool (used also for XA recovery)</li>
+ *     <li>{@code pool.userName}, {@code pool.password} - credentials of pooled connections, default to
+ *     {@code user} and {@code password} of the connection factory. Connections created with other credentials
+ *     (with {@code createConnection(user, password)}) are matched only with pooled connections of the same
+ *     credentials</li>
+ *     <li>{@code pool.clientID}</li>
+ *     <li>{@code pool.minIdle}, {@code pool.maxPoolSize} - pool size</li>
+ *     <li>{@code pool.connectionTimeout} - maximal time to wait for a connection</li>
+ *     <li>{@code pool.idleTimeout}, {@code pool.maxLifetime} - when idle and old connections are closed</li>
+ *     <li>{@code pool.houseKeepingPeriod} - period of idle connection validation and eviction</li>
+ *     <li>{@code pool.aliveBypassWindow} - connections used within this window are not checked for aliveness
+ *     when borrowed</li>
+ *     <li>{@code pool.exceptionSorter} - {@code all} (default) or {@code none} - whether all exceptions reported
+ *     by a connection make it invalid</li>
+ * </ul>
+ * <p>Times are milliseconds or numbers with {@code ms}, {@code s}, {@code m} or {@code h} unit.</p>
+ */
 public class TransxPooledConnectionFactoryFactory implements PooledConnectionFactoryFactory {
 
     public static final Logger LOG = LoggerFactory.getLogger(TransxPooledConnectionFactoryFactory.class);
 
+    public static final String EXCEPTION_SORTER = "exceptionSorter";
+    public static final String EXCEPTION_SORTER_ALL = "all";
+    public static final String EXCEPTION_SORTER_NONE = "none";
+
+    private static final String[] TIME_PROPERTIES = {
+            "aliveBypassWindow", "houseKeepingPeriod", "connectionTimeout", "idleTimeout", "maxLifetime"
+    };
+
     @Override
     public ConnectionFactory create(ConnectionFactoryFactory cff, Map<String, Object> props) throws JMSRuntimeException {
         try {
             ConnectionFactory cf = cff.createConnectionFactory(getNonPoolProps(props));
-            ConnectionFactory mcf = ManagedConnectionFactoryBuilder.builder()
+            ManagedConnectionFactoryBuilder builder = ManagedConnectionFactoryBuilder.builder()
                     .connectionFactory(cf, null)
-                    .transaction(TransactionSupport.TransactionSupportLevel.NoTransaction)
-                    .properties(getPoolProps(props))
-                    .build();
-            // TODO: configure more
-            return mcf;
+                    .transaction(TransactionSupport.TransactionSupportLevel.NoTransaction);
+            return configure(builder, props).build();
         } catch (Throwable e) {
             LOG.error("Error creating pooled connection factory: " + e.getMessage(), e);
             if (e instanceof RuntimeException) {
@@ -54,4 +85,81 @@ public class TransxPooledConnectionFactoryFactory implements PooledConnectionFac
         }
     }
 
+    /**
+     * Configures the pool using {@code pool.} prefixed properties and connection factory properties
+     *
+     * @param builder builder of the pool
+     * @param props connection factory configuration
+     * @return the builder
+     */
+    protected ManagedConnectionFactoryBuilder configure(ManagedConnectionFactoryBuilder builder,
+            Map<String, Object> props) {
+        Map<String, Object> poolProps = new HashMap<>(getPoolProps(props));
+        poolProps.putIfAbsent("userName", props.get(ConnectionFactoryFactory.JMS_USER));
+        poolProps.putIfAbsent("password", props.get(ConnectionFactoryFactory.JMS_PASSWORD));
+        poolProps.values().removeIf(v -> v == null);
+
+        // builder accepts only int milliseconds - set times directly
+        for (String key : TIME_PROPERTIES) {
+            Object value = poolProps.remove(key);
+            if (value != null) {
+                setTime(builder, key, toMillis(key, value.toString()));
+            }
+        }
+
+        Object sorter = poolProps.remove(EXCEPTION_SORTER);
+        if (sorter == null || EXCEPTION_SORTER_ALL.equals(sorter)) {
+            builder.exceptionSorter(new AllExceptionsAreFatalSorter());
+        } else if (EXCEPTION_SORTER_NONE.equals(sorter)) {
+            builder.exceptionSorter(new NoExceptionsAreFatalSorter());
+        } else {
+            throw new IllegalArgumentException("Invalid " + EXCEPTION_SORTER + " value: " + sorter
+                    + ". Expected " + EXCEPTION_SORTER_ALL + " or " + EXCEPTION_SORTER_NONE);
+        }
+
+        return builder.properties(poolProps);
+    }
+
+    private static void setTime(ManagedConnectionFactoryBuilder builder, String key, long millis) {
+        switch (key) {
+            case "aliveBypassWindow":
+                builder.aliveBypassWindow(millis, TimeUnit.MILLISECONDS);
+                break;
+            case "houseKeepingPeriod":
+                builder.houseKeepingPeriod(millis, TimeUnit.MILLISECONDS);
+                break;
+            case "connectionTimeout":
+                builder.connectionTimeout(millis, TimeUnit.MILLISECONDS);
+                break;
+            case "idleTimeout":
+                builder.idleTimeout(millis, TimeUnit.MILLISECONDS);
+                break;
+            default:
+                builder.maxLifetime(millis, TimeUnit.MILLISECONDS);
+                break;
+        }
+    }
+
+    static long toMillis(String key, String value) {
+        String v = value.trim().toLowerCase(Locale.ENGLISH);
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        if (v.endsWith("ms")) {
+            v = v.substring(0, v.length() - 2);
+        } else if (v.endsWith("s")) {
+            unit = TimeUnit.SECONDS;
+            v = v.substring(0, v.length() - 1);
+        } else if (v.endsWith("m")) {
+            unit = TimeUnit.MINUTES;
+            v = v.substring(0, v.length() - 1);
+        } else if (v.endsWith("h")) {
+            unit = TimeUnit.HOURS;
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return unit.toMillis(Long.parseLong(v.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + " value: " + value, e);
+        }
+    }
+
 }
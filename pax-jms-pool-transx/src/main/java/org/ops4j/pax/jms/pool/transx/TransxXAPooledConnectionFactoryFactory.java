@@ -26,7 +26,6 @@ import org.ops4j.pax.transx.jms.ManagedConnectionFactoryBuilder;
 import org.ops4j.pax.transx.tm.TransactionManager;
 
 import static org.ops4j.pax.jms.service.internal.BeanConfig.getNonPoolProps;
-import static org.ops4j.pax.jms.service.internal.BeanConfig.getPoolProps;
 
 public class TransxXAPooledConnectionFactoryFactory extends TransxPooledConnectionFactoryFactory {
 
@@ -40,15 +39,16 @@ public class TransxXAPooledConnectionFactoryFactory extends TransxPooledConnecti
     public ConnectionFactory create(ConnectionFactoryFactory cff, Map<String, Object> props) throws JMSRuntimeException {
         try {
             ConnectionFactory cf = cff.createConnectionFactory(getNonPoolProps(props));
-            XAConnectionFactory xacf = cff.createXAConnectionFactory(getNonPoolProps(props));
-            ConnectionFactory mcf = ManagedConnectionFactoryBuilder.builder()
+            // when the provider's connection factory can create XA connections too (like Artemis), one broker
+            // client factory is enough. The other way is not safe - e.g., ActiveMQ XA factories create
+            // XA connections from createConnection() too
+            XAConnectionFactory xacf = cf instanceof XAConnectionFactory ? (XAConnectionFactory) cf
+                    : cff.createXAConnectionFactory(getNonPoolProps(props));
+            ManagedConnectionFactoryBuilder builder = ManagedConnectionFactoryBuilder.builder()
                     .connectionFactory(cf, xacf)
                     .transaction(TransactionSupport.TransactionSupportLevel.XATransaction)
-                    .transactionManager(transactionManager)
-                    .properties(getPoolProps(props))
-                    .build();
-            // TODO: configure more
-            return mcf;
+                    .transactionManager(transactionManager);
+            return configure(builder, props).build();
         } catch (Throwable e) {
             LOG.error("Error creating pooled connection factory: " + e.getMessage(), e);
             if (e instanceof RuntimeException) {
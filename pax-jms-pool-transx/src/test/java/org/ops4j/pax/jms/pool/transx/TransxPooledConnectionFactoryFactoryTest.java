@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.pool.transx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ops4j.pax.transx.connection.AllExceptionsAreFatalSorter;
+import org.ops4j.pax.transx.connection.NoExceptionsAreFatalSorter;
+import org.ops4j.pax.transx.jms.ManagedConnectionFactoryBuilder;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TransxPooledConnectionFactoryFactoryTest {
+
+    @Test
+    public void times() {
+        assertThat(TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", "5s"), equalTo(5000L));
+        assertThat(TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", "2m"), equalTo(120000L));
+        assertThat(TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", "100ms"), equalTo(100L));
+        assertThat(TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", " 1H "), equalTo(3600000L));
+        assertThat(TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", "250"), equalTo(250L));
+    }
+
+    @Test
+    public void invalidTime() {
+        try {
+            TransxPooledConnectionFactoryFactory.toMillis("idleTimeout", "5 minutes");
+            fail("Should not accept unknown unit");
+        } catch (IllegalArgumentException expected) {
+            assertThat(expected.getMessage(), equalTo("Invalid idleTimeout value: 5 minutes"));
+        }
+    }
+
+    @Test
+    public void timesAreSetOnBuilder() {
+        ManagedConnectionFactoryBuilder builder = mock(ManagedConnectionFactoryBuilder.class, RETURNS_SELF);
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.idleTimeout", "2m");
+        props.put("pool.connectionTimeout", 500);
+        new TransxPooledConnectionFactoryFactory().configure(builder, props);
+
+        verify(builder).idleTimeout(120000L, TimeUnit.MILLISECONDS);
+        verify(builder).connectionTimeout(500L, TimeUnit.MILLISECONDS);
+        verify(builder, never()).maxLifetime(anyLong(), any());
+    }
+
+    @Test
+    public void allExceptionsAreFatalByDefault() {
+        ManagedConnectionFactoryBuilder builder = mock(ManagedConnectionFactoryBuilder.class, RETURNS_SELF);
+        new TransxPooledConnectionFactoryFactory().configure(builder, new HashMap<>());
+
+        verify(builder).exceptionSorter(isA(AllExceptionsAreFatalSorter.class));
+    }
+
+    @Test
+    public void noExceptionsAreFatal() {
+        ManagedConnectionFactoryBuilder builder = mock(ManagedConnectionFactoryBuilder.class, RETURNS_SELF);
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.exceptionSorter", TransxPooledConnectionFactoryFactory.EXCEPTION_SORTER_NONE);
+        new TransxPooledConnectionFactoryFactory().configure(builder, props);
+
+        verify(builder).exceptionSorter(isA(NoExceptionsAreFatalSorter.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidExceptionSorter() {
+        Map<String, Object> props = new HashMap<>();
+        props.put("pool.exceptionSorter", "some");
+        new TransxPooledConnectionFactoryFactory()
+                .configure(mock(ManagedConnectionFactoryBuilder.class, RETURNS_SELF), props);
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.reactive;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link Flow.Publisher} of messages consumed from single destination of given {@link ConnectionFactory}
+ * (typically a managed, possibly pooled connection factory service).</p>
+ *
+ * <p>Each subscription uses its own connection, {@link Session#CLIENT_ACKNOWLEDGE} session and consumer, served by
+ * a dedicated thread. Messages are received only while subscriber has outstanding demand, so besides the
+ * provider's prefetch buffer (configured on the connection factory, e.g. {@code prefetchPolicy} of ActiveMQ or
+ * {@code consumerWindowSize} of Artemis) no messages are buffered.</p>
+ *
+ * <p>Messages are acknowledged after {@link Flow.Subscriber#onNext(Object)} returns - every {@code ackBatchSize}
+ * messages, when demand is exhausted, when no message is available and when the subscription is cancelled.
+ * Messages not acknowledged because of an error are redelivered (at-least-once delivery).</p>
+ */
+public class MessagePublisher implements Flow.Publisher<Message> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessagePublisher.class);
+
+    private static final int DEFAULT_ACK_BATCH_SIZE = 100;
+    private static final long POLL_INTERVAL = 1000L;
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final String messageSelector;
+    private final int ackBatchSize;
+
+    public MessagePublisher(ConnectionFactory connectionFactory, Destination destination) {
+        this(connectionFactory, destination, null, DEFAULT_ACK_BATCH_SIZE);
+    }
+
+    /**
+     * @param connectionFactory connection factory used to create connection for each subscription
+     * @param destination consumed destination
+     * @param messageSelector optional message selector
+     * @param ackBatchSize maximum number of delivered messages acknowledged at once
+     */
+    public MessagePublisher(ConnectionFactory connectionFactory, Destination destination, String messageSelector, int ackBatchSize) {
+        this.connectionFactory = Objects.requireNonNull(connectionFactory, "connectionFactory");
+        this.destination = Objects.requireNonNull(destination, "destination");
+        this.messageSelector = messageSelector;
+        if (ackBatchSize <= 0) {
+            throw new IllegalArgumentException("ackBatchSize should be positive");
+        }
+        this.ackBatchSize = ackBatchSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        ConsumerSubscription subscription = new ConsumerSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        Thread thread = new Thread(subscription, "pax-jms-publisher-" + destination);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private class ConsumerSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super Message> subscriber;
+        private final Object lock = new Object();
+
+        // guarded by lock
+        private long demand;
+        private boolean cancelled;
+        private IllegalArgumentException invalidRequest;
+
+        ConsumerSubscription(Flow.Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+                    cancelled = true;
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            try (Connection connection = connectionFactory.createConnection()) {
+                Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(destination, messageSelector);
+                connection.start();
+                error = consume(consumer);
+            } catch (JMSException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                subscriber.onError(error);
+            }
+        }
+
+        /**
+         * Delivers messages until the subscription is cancelled. Returns an error to be signalled after
+         * the consumer is closed.
+         */
+        private Throwable consume(MessageConsumer consumer) throws JMSException, InterruptedException {
+            Message delivered = null;
+            int pending = 0;
+            while (true) {
+                boolean hasDemand;
+                synchronized (lock) {
+                    while (demand == 0 && !cancelled && delivered == null) {
+                        lock.wait();
+                    }
+                    if (invalidRequest != null) {
+                        return invalidRequest;
+                    }
+                    hasDemand = demand > 0 && !cancelled;
+                }
+                if (!hasDemand) {
+                    // no demand or cancelled - acknowledge what was delivered so far
+                    if (delivered != null) {
+                        delivered.acknowledge();
+                        delivered = null;
+                        pending = 0;
+                    }
+                    synchronized (lock) {
+                        if (cancelled) {
+                            return null;
+                        }
+                    }
+                    continue;
+                }
+
+                Message message = consumer.receive(POLL_INTERVAL);
+                if (message == null) {
+                    if (delivered != null) {
+                        delivered.acknowledge();
+                        delivered = null;
+                        pending = 0;
+                    }
+                    continue;
+                }
+                synchronized (lock) {
+                    if (cancelled) {
+                        // not acknowledged, the message (with ones delivered since last acknowledge) is redelivered
+                        return null;
+                    }
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                }
+                try {
+                    subscriber.onNext(message);
+                } catch (RuntimeException e) {
+                    LOG.warn("Subscriber failed to process a message, cancelling subscription: " + e.getMessage(), e);
+                    cancel();
+                    return null;
+                }
+                delivered = message;
+                if (++pending >= ackBatchSize) {
+                    delivered.acknowledge();
+                    delivered = null;
+                    pending = 0;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.reactive;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link Flow.Subscriber} sending received messages to single destination of given {@link ConnectionFactory}
+ * (typically a managed, possibly pooled connection factory service).</p>
+ *
+ * <p>Messages are sent in a transacted session, committed every {@code batchSize} messages. Subscriber requests
+ * next batch only after previous one is committed, so at most {@code batchSize} messages are in flight.
+ * Remaining messages are committed when the upstream completes and rolled back when it fails. Note that
+ * an incomplete batch is not committed until the batch is filled or the upstream completes.</p>
+ *
+ * <p>Messages may be created by any provider - JMS requires providers to send foreign message
+ * implementations.</p>
+ */
+public class MessageSubscriber implements Flow.Subscriber<Message> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageSubscriber.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final Destination destination;
+    private final int batchSize;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private Flow.Subscription subscription;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private int uncommitted;
+
+    /**
+     * @param connectionFactory connection factory used to create connection when subscribed
+     * @param destination target destination
+     * @param batchSize number of messages sent in single transaction
+     */
+    public MessageSubscriber(ConnectionFactory connectionFactory, Destination destination, int batchSize) {
+        this.connectionFactory = Objects.requireNonNull(connectionFactory, "connectionFactory");
+        this.destination = Objects.requireNonNull(destination, "destination");
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize should be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return stage completed when all messages are sent and committed, or completed exceptionally when
+     * the upstream or sending fails
+     */
+    public CompletionStage<Void> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        try {
+            connection = connectionFactory.createConnection();
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            producer = session.createProducer(destination);
+        } catch (JMSException e) {
+            subscription.cancel();
+            fail(e);
+            return;
+        }
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(Message message) {
+        Objects.requireNonNull(message, "message");
+        if (completion.isDone()) {
+            return;
+        }
+        try {
+            producer.send(message);
+            if (++uncommitted == batchSize) {
+                session.commit();
+                uncommitted = 0;
+                subscription.request(batchSize);
+            }
+        } catch (JMSException e) {
+            subscription.cancel();
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (completion.isDone()) {
+            return;
+        }
+        try {
+            if (uncommitted > 0) {
+                session.commit();
+                uncommitted = 0;
+            }
+            close();
+            completion.complete(null);
+        } catch (JMSException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        if (completion.isDone()) {
+            return;
+        }
+        if (session != null) {
+            try {
+                session.rollback();
+            } catch (JMSException e) {
+                LOG.warn("Error rolling back session: " + e.getMessage(), e);
+            }
+        }
+        try {
+            close();
+        } catch (JMSException e) {
+            LOG.warn("Error closing connection: " + e.getMessage(), e);
+        }
+        completion.completeExceptionally(throwable);
+    }
+
+    private void close() throws JMSException {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+}
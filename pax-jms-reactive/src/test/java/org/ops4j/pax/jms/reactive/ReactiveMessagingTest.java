@@ -0,0 +1,181 @@
+/*
+ * Copyright 2021 OPS4J.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.jms.reactive;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReactiveMessagingTest {
+
+    private static final int MESSAGES = 100;
+
+    private BrokerService broker;
+    private ActiveMQConnectionFactory cf;
+
+    @Before
+    public void before() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("reactive");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        cf = new ActiveMQConnectionFactory("vm://reactive?create=false");
+        cf.getPrefetchPolicy().setQueuePrefetch(10);
+    }
+
+    @After
+    public void after() throws Exception {
+        broker.stop();
+    }
+
+    @Test
+    public void pipeline() throws Exception {
+        ActiveMQQueue queue = new ActiveMQQueue("pipeline");
+        MessageSubscriber sink = new MessageSubscriber(cf, queue, 10);
+        try (SubmissionPublisher<Message> source = new SubmissionPublisher<>()) {
+            source.subscribe(sink);
+            for (int i = 0; i < MESSAGES; i++) {
+                ActiveMQTextMessage message = new ActiveMQTextMessage();
+                message.setText("m" + i);
+                source.submit(message);
+            }
+        }
+        sink.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        // first subscriber takes 5 messages only
+        RecordingSubscriber first = new RecordingSubscriber(5);
+        new MessagePublisher(cf, queue).subscribe(first);
+        assertTrue(first.received.await(10, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        assertThat(first.messages.size(), equalTo(5));
+        assertThat(first.maxOutstanding.get(), equalTo(1));
+        first.subscription.cancel();
+
+        // second subscriber gets the rest, in order and without duplicates
+        RecordingSubscriber second = new RecordingSubscriber(MESSAGES - 5);
+        new MessagePublisher(cf, queue, null, 7).subscribe(second);
+        assertTrue(second.received.await(10, TimeUnit.SECONDS));
+        second.subscription.cancel();
+        for (int i = 0; i < MESSAGES - 5; i++) {
+            assertThat(((TextMessage) second.messages.get(i)).getText(), equalTo("m" + (i + 5)));
+        }
+    }
+
+    @Test
+    public void failedUpstreamRollsBack() throws Exception {
+        ActiveMQQueue queue = new ActiveMQQueue("rollback");
+        MessageSubscriber sink = new MessageSubscriber(cf, queue, 10);
+        AtomicLong requested = new AtomicLong();
+        sink.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                requested.addAndGet(n);
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        for (int i = 0; i < 15; i++) {
+            assertTrue(requested.getAndDecrement() > 0);
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setText("m" + i);
+            sink.onNext(message);
+        }
+        sink.onError(new IllegalStateException("upstream failure"));
+        try {
+            sink.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("Should fail");
+        } catch (ExecutionException expected) {
+            assertThat(expected.getCause().getMessage(), equalTo("upstream failure"));
+        }
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(10);
+        new MessagePublisher(cf, queue).subscribe(subscriber);
+        assertTrue(subscriber.received.await(10, TimeUnit.SECONDS));
+        Thread.sleep(1500);
+        subscriber.subscription.cancel();
+        // only the first, committed batch
+        assertThat(subscriber.messages.size(), equalTo(10));
+    }
+
+    /**
+     * Requests one message at a time, up to given total, checking that no more than requested is delivered.
+     */
+    private static class RecordingSubscriber implements Flow.Subscriber<Message> {
+
+        private final int total;
+        private final List<Message> messages = new CopyOnWriteArrayList<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger maxOutstanding = new AtomicInteger();
+        private final CountDownLatch received = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+
+        RecordingSubscriber(int total) {
+            this.total = total;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            outstanding.incrementAndGet();
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(Message item) {
+            maxOutstanding.accumulateAndGet(outstanding.getAndDecrement(), Math::max);
+            messages.add(item);
+            if (messages.size() < total) {
+                outstanding.incrementAndGet();
+                subscription.request(1);
+            } else {
+                received.countDown();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+}